@@ -11,94 +11,320 @@ import java.util.*;
  
 public class Bee {
 
+    private static final String BUILD_FILE = "build.xml";
+
     private static boolean debug = false;
 
     /**
      * This is the meat of the application.  Phase 1. It parses the build file.  Phase 2.  It then builds
-     * a dictionary of build properties and then adjusts all commands to use the new properties.  Phase 3.
+     * a dictionary of build properties and then adjusts all commands to use the new properties.  Both
+     * phases are skipped when the plan cache has a copy that is still good for this build file.  Phase 3.
      * It gets default target.  Then it executes the build according to the graph that was created from the 
      * parsing of the build file.
-     * @param args Only the first argument, which is a special target, is used.  If not argument is provided,
-     * then the default as designated by the build file, will be used.
+     * @param args The first argument that is not an option is the target to build.  If no target is
+     * provided, then the default as designated by the build file, will be used.  The options are
+     * -j N, to run up to N independent targets at the same time, and --parallel, to run as many
+     * as there are cores, and -Dname=value, to set a build property that the build file cannot
+     * change.  With --daemon it does not build anything, it stays running and serves
+     * builds for BeeClient instead, see Daemon.  With --watch target it builds the target and
+     * then builds it again every time one of its inputs changes, see Watcher.
      */
 
     public static void main(String[] args) {   
+        if (args.length > 0 && args[0].equals("--daemon")) {
+            Daemon.serve(BUILD_FILE);
+            return;
+        }
+        int code = run(args);
+        if (code != 0) System.exit(code);
+    }
 
-        // parse build file
+    /**
+     * This method runs one build, with the same arguments as main.  It is separate from main so
+     * that the daemon can run many builds in the same process, which means it returns instead of
+     * exiting when the build cannot go ahead.
+     * @param args the target to build and the options, see main.
+     * @return the exit code of the build, which is 1 when the targets depend on each other in a
+     * cycle.
+     */
 
-        String defaultTarget = null;
-        System.out.println("parsing build file...");
-        ArrayList<Target> targets = FileFactory.readFromFile("build.xml", debug);
-        if (args.length == 1) {
-            defaultTarget = args[0];
-        } else {
-            defaultTarget = FileFactory.getDefaultTarget("build.xml", debug).toLowerCase();
+    static int run(String[] args) {
+
+        // read the options
+
+        String requested = null;
+        int threads = 1;
+        boolean watch = false;
+        command.Dictionary overrides = new command.Dictionary();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--watch")) {
+                watch = true;
+            } else if (args[i].startsWith("-D") && args[i].length() > 2) {
+                int equals = args[i].indexOf('=');
+                if (equals == -1) {
+                    overrides.add(new command.Tuple(args[i].substring(2), ""));
+                } else {
+                    overrides.add(new command.Tuple(args[i].substring(2, equals), args[i].substring(equals + 1)));
+                }
+            } else if (args[i].equals("-j") && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (args[i].startsWith("-j") && args[i].length() > 2) {
+                threads = Integer.parseInt(args[i].substring(2));
+            } else if (args[i].equals("--parallel")) {
+                threads = Runtime.getRuntime().availableProcessors();
+            } else if (requested == null) {
+                requested = args[i];
+            }
         }
-        boolean found = false;
-        int index = 0;
-        System.out.println("parsing finished"); 
-        printTargetNames(targets);
+        if (threads < 1) threads = 1;
 
-        // Get build properties
+        // parse build file
 
-        System.out.println("Setting environment");
-        command.Dictionary buildProps = getProperties(targets);
-        updateAllTargetProperties(targets, buildProps);
+        if (watch) {
+            new Watcher(BUILD_FILE, requested, overrides, threads, debug).run();
+            return 0;
+        }
+        Project project = loadPlan(BUILD_FILE, requested, overrides);
+        ArrayList<Target> targets = project.getTargets();
+        String defaultTarget = targetToBuild(project, requested);
+        printTargetNames(targets);
         
         // building the build
 
         System.out.println("building " + defaultTarget);
-        while (!found && index < targets.size()) {
-            if (targets.get(index).targetName().matches(defaultTarget)) {
-                found = true;
-                execute(targets.get(index), targets, debug);
-            }
-            index++;
+        ArrayList<Target> order = null;
+        try {
+            order = BuildGraph.order(project, defaultTarget);
+        } catch (command.FailExecException fee) {
+            System.out.println(fee.getMessage());
+            return 1;
+        }
+        if (order.isEmpty()) {
+            System.out.println("No target " + defaultTarget + " to build");
+        } else {
+            build(project, order, threads, new BuildHistory(BUILD_FILE), new TargetState(BUILD_FILE));
         }
-        if (!found) System.out.println("No target " + defaultTarget + " to build");
         System.out.println("Build complete");
+        return 0;
+    }
+
+    /**
+     * This method does phase 1 and phase 2, reading the plan from the plan cache when it is still
+     * good and from the build file otherwise.
+     * @param filename the build file to read.
+     * @param requested the target given on the command line, or null to use the default.
+     * @param overrides the build properties given on the command line with -D.
+     * @return the project with the commands of the needed targets updated.
+     */
+
+    static Project loadPlan(String filename, String requested, command.Dictionary overrides) {
+        Project project = PlanCache.load(filename, requested, overrides, debug);
+        if (project == null) {
+            project = readPlan(filename, requested, overrides);
+            PlanCache.store(filename, requested, overrides, project, debug);
+        } else {
+            System.out.println("using cached build plan");
+        }
+        return project;
+    }
+
+    /**
+     * This method runs the targets in the order they were given, in parallel when there is more
+     * than one thread, and saves the timings and fingerprints afterwards whether it worked or not.
+     * @param project the project the targets belong to.
+     * @param order the targets to run, each one after all of the targets it depends on.
+     * @param threads the most targets that are run at the same time.
+     * @param history the timings of earlier builds, updated with this one.
+     * @param state the fingerprints used to skip targets that are up to date.
+     */
+
+    static void build(Project project, ArrayList<Target> order, int threads, BuildHistory history, TargetState state) {
+        CriticalPath path = new CriticalPath(project, order, history);
+        HashMap<Target, Long> started = new HashMap<>();
+        HashMap<Target, Long> finished = new HashMap<>();
+        HashSet<Target> skipped = new HashSet<>();
+        boolean worked = false;
+        try {
+            if (threads > 1) {
+                new Scheduler(project, threads, path, state, debug).run(order, started, finished, skipped);
+            } else {
+                execute(order, state, started, finished, skipped, debug);
+            }
+            worked = true;
+        } finally {
+            if (worked) path.report(started, finished);
+            // a skipped target only says how long checking it took, not how long it runs
+            for (Target target : finished.keySet()) {
+                if (skipped.contains(target)) continue;
+                history.record(target, (finished.get(target) - started.get(target)) / 1000000);
+            }
+            history.save();
+            state.save();
+            command.FileFingerprints.getInstance().save();
+        }
+    }
+
+    /**
+     * This method returns the name of the target to build.
+     * @param project the project that was read.
+     * @param requested the target given on the command line, or null to use the default.
+     * @return the name of the target to build.
+     */
+
+    static String targetToBuild(Project project, String requested) {
+        if (requested != null) return requested;
+        return project.getDefaultTarget().toLowerCase();
+    }
+
+    /**
+     * This method does phase 1 and phase 2 without the plan cache or any -D properties.
+     * @param filename the build file to read.
+     * @param requested the target given on the command line, or null to use the default.
+     * @return the project with the commands of the needed targets updated.
+     */
+
+    static Project readPlan(String filename, String requested) {
+        return readPlan(filename, requested, new command.Dictionary());
+    }
+
+    /**
+     * This method does phase 1 and phase 2 without the plan cache.  It parses the build file and
+     * works out which targets the requested target needs from the depends attributes.  Only those
+     * targets get their commands made, their build properties gathered and their commands adjusted.
+     * Every other target is left as a stub with its tags unparsed.
+     * @param filename the build file to read.
+     * @param requested the target given on the command line, or null to use the default.
+     * @param overrides the build properties given on the command line with -D.
+     * @return the project with the commands of the needed targets updated.
+     */
+
+    static Project readPlan(String filename, String requested, command.Dictionary overrides) {
+        System.out.println("parsing build file...");
+        Project project = FileFactory.readProject(filename, debug);
+        ArrayList<Target> reached = BuildGraph.closure(project, targetToBuild(project, requested));
+        for (int i = 0; i < reached.size(); i++) {
+            reached.get(i).parseCommands(debug);
+        }
+        System.out.println("parsing finished, " + reached.size() + " of " + project.getTargets().size() + " targets needed"); 
+
+        // Get build properties
+
+        System.out.println("Setting environment");
+        getProperties(project, reached, overrides);
+        updateAllTargetProperties(reached);
+        return project;
     }
 
     /**
      * This method goes through all commands in the build file and updates the variables with the
-     * appropriate build properties that were found during phase 2 - getting build properties.  It
-     * uses a very rudimentary dictionary structure, specifically written for this application.
+     * appropriate build properties that were found during phase 2 - getting build properties.  Each
+     * target uses its own scope, see Target.getScope().
      * @param everything is the list of all targets found during phase 1 - parsing the file.
-     * @param properties is the dictionary of tuple objects (key/value pairs) to use for modifying
-     * the commands
      */
 
-    private static void updateAllTargetProperties(ArrayList<Target> everything, command.Dictionary properties) {
+    private static void updateAllTargetProperties(ArrayList<Target> everything) {
         for (int i = 0; i < everything.size(); i++) {
             Target current = everything.get(i);
             for (int j = 0; j < current.size(); j++) {
                 command.Command cmd = current.get(j);
-                cmd.update(properties);
+                cmd.update(current.getScope());
             }
         }
     }
 
     /**
-     * This method goes through all the targets and commands found in the build file, creates a tuple
-     * for each key / value pair and then adds them to the dictionary.
-     * @param everything the list of all targest found during phase 1 - parsing the file.
-     * @return the dictionary of all the build properties that were found.  
+     * This method gathers the build properties into layers.  The -D properties, the system
+     * properties and the environment are at the bottom, see command.PropertyScope, then the
+     * project level property tags.  Each needed target with property tags gets a layer of its
+     * own on top of that, and a target that depends on others sees their layers, which have run
+     * by the time it does, through an include layer in between.  The layers are shared, never
+     * copied, and a target that adds no properties and depends on none that do shares the
+     * project scope.  A plan read back from the cache gets its layers the same way, from its
+     * property tags, which were already resolved, see PlanCache.load().
+     * @param project the project found during phase 1 - parsing the file.
+     * @param everything the targets that the build needs.
+     * @param overrides the build properties given on the command line with -D.
      */
 
-    private static command.Dictionary getProperties(ArrayList<Target> everything) {
-       command.Dictionary buildProperties = new command.Dictionary();
+    static void getProperties(Project project, ArrayList<Target> everything, command.Dictionary overrides) {
+        command.PropertyScope base = command.PropertyScope.base(overrides);
+        command.Dictionary buildProperties = new command.Dictionary();
+        command.PropertyScope filling = base.view("project", buildProperties);
+        ArrayList<command.Command> projectProps = project.getProperties();
+        for (int i = 0; i < projectProps.size(); i++) {
+            addProperties(buildProperties, (command.BuildPropertyCommand)projectProps.get(i), filling);
+        }
+        command.PropertyScope projectScope = base.child("project", buildProperties);
+        project.setScope(projectScope);
+        HashMap<Target, LinkedHashSet<command.PropertyScope>> defined = new HashMap<>();
         for (int i = 0; i < everything.size(); i++) {
-            Target current = everything.get(i);
-            for (int j = 0; j < current.size(); j++) {
-                command.Command cmd = current.get(j);
-                if (cmd instanceof command.BuildPropertyCommand) {
-                    command.Tuple tuple = ((command.BuildPropertyCommand)cmd).getTuple();
-                    if (debug) System.out.println("build property: " + tuple.toString());
-                    buildProperties.add(tuple);
-                }
+            getTargetLayers(project, everything.get(i), projectScope, defined, new HashSet<Target>());
+        }
+    }
+
+    /**
+     * This method sets the scope of a target and returns the layers of the targets it sees,
+     * which are the layers of the targets it depends on, in the order they run, and its own if
+     * it has property tags.  Each target is only worked out once and only its own properties
+     * go in its layer, the rest is shared with the targets it depends on.
+     * @param project the project the targets belong to.
+     * @param target the target.
+     * @param projectScope the project scope, which every target layer is on top of.
+     * @param defined the layers of the targets that were already worked out.
+     * @param visiting the targets further up, so a dependency cycle does not go round forever.
+     * @return the layers, in the order they were made.
+     */
+
+    private static LinkedHashSet<command.PropertyScope> getTargetLayers(Project project, Target target, command.PropertyScope projectScope,
+            HashMap<Target, LinkedHashSet<command.PropertyScope>> defined, HashSet<Target> visiting) {
+        LinkedHashSet<command.PropertyScope> result = defined.get(target);
+        if (result != null) return result;
+        result = new LinkedHashSet<>();
+        if (!visiting.add(target)) return result;
+        String[] depends = target.getDependencies();
+        for (int i = 0; depends != null && i < depends.length; i++) {
+            Target dependency = project.getTarget(depends[i]);
+            if (dependency == null) continue;
+            result.addAll(getTargetLayers(project, dependency, projectScope, defined, visiting));
+        }
+        String name = target.targetName();
+        command.PropertyScope below = result.isEmpty() ? projectScope
+            : projectScope.include("depends of " + name, new ArrayList<command.PropertyScope>(result));
+        command.Dictionary own = new command.Dictionary();
+        command.PropertyScope filling = below.view("target " + name, own);
+        for (int i = 0; i < target.size(); i++) {
+            if (target.get(i) instanceof command.BuildPropertyCommand) {
+                addProperties(own, (command.BuildPropertyCommand)target.get(i), filling);
             }
         }
-        return buildProperties;
+        if (own.size() == 0) {
+            target.setScope(below);
+        } else {
+            command.PropertyScope layer = below.child("target " + name, own);
+            result.add(layer);
+            target.setScope(layer);
+        }
+        visiting.remove(target);
+        defined.put(target, result);
+        return result;
+    }
+
+    /**
+     * This method adds the key / value pairs of one property tag to the dictionary, which is
+     * several of them when the tag loads a property file.
+     * @param buildProperties the dictionary of build properties found so far.
+     * @param property the property tag.
+     * @param scope the properties the tag can use in its file or location.
+     */
+
+    private static void addProperties(command.Dictionary buildProperties, command.BuildPropertyCommand property,
+            command.PropertyScope scope) {
+        command.Tuple[] tuples = property.getTuples(scope);
+        if (debug && tuples.length > 1) System.out.println("build properties: " + tuples.length + " from " + property);
+        for (command.Tuple tuple : tuples) {
+            if (debug && tuples.length == 1) System.out.println("build property: " + tuple.toString());
+            buildProperties.add(tuple);
+        }
     }
 
     /**
@@ -114,59 +340,76 @@ public class Bee {
         }
     }
 
-     /**
-     * This method provides a means of recursively executing a target based first on dependencies
-     * and then by the Commands in the dependent targets.   Debuggin is turned off.
-     * @param currentTarget is the target to parse and see what dependencies need to be done, then
-     * the respective commands.
-     * @param everythingElse the ArrayList of other targets, for checking dependencies.
+    /**
+     * This method executes the targets in the order that was worked out from the build graph.
+     * Each target runs exactly once, so a target that several others depend on, like makedir,
+     * is not run over and over.
+     * @param order the targets to run, each one after all of the targets it depends on.
+     * @param state the fingerprints used to skip targets that are up to date.
+     * @param started filled in with when each target started, from System.nanoTime().
+     * @param finished filled in with when each target that worked finished.
+     * @param skipped filled in with the targets that were up to date and did not run.
+     * @param debug the boolean that determines if debugging is to be used during this method.
      */
 
-    private static void execute(Target currentTarget, ArrayList<Target> everythingElse) {
-        execute(currentTarget, everythingElse, false);
+    private static void execute(ArrayList<Target> order, TargetState state, HashMap<Target, Long> started,
+            HashMap<Target, Long> finished, HashSet<Target> skipped, boolean debug) {
+        for (int i = 0; i < order.size(); i++) {
+            started.put(order.get(i), System.nanoTime());
+            if (!execute(order.get(i), null, state, debug)) skipped.add(order.get(i));
+            finished.put(order.get(i), System.nanoTime());
+        }
     }
-    
+
     /**
-     * This method provides a means of recursively executing a target based first on dependencies
-     * and then by the Commands in the target.
-     * NOTE: There needs to be a check to make sure that loops are formed.
-     * @param currentTarget is the target to parse and see what dependencies need to be done, then
-     * the respective commands.
-     * @param everythingElse the ArrayList of other targets, for checking dependencies.
+     * This method executes the Commands of a single target.  The targets it depends on must
+     * already have been run.  When targets run in parallel, each command first waits for a
+     * permit from the resource pools it draws from.  A target whose inputs and outputs have not
+     * changed since it last worked is skipped.
+     * @param currentTarget is the target whose commands are to be run.
+     * @param pools the resource pools to take permits from, or null when nothing else runs at
+     * the same time.
+     * @param state the fingerprints used to skip targets that are up to date, or null to always
+     * run the target.
      * @param debug the boolean that determines if debugging is to be used during this method.
+     * @return false if the target was up to date and skipped.
      */
 
-    private static void execute(Target currentTarget, ArrayList<Target> everythingElse, boolean debug) {
-
-        // go through each target and then head to the dependencies to do them first
-
+    static boolean execute(Target currentTarget, ResourcePools pools, TargetState state, boolean debug) {
+        if (state != null && state.isUpToDate(currentTarget)) {
+            System.out.println("[ " + currentTarget.targetName() + " up to date ]");
+            return false;
+        }
+        if (state != null) state.forget(currentTarget);
         System.out.println("[ " + currentTarget.targetName() + " executing...]");
         String[] dependents = currentTarget.getDependencies();
         if (dependents == null) {
             System.out.println("no dependencies");
         } else {
             System.out.println("dependency count:" + dependents.length);
-            for (String selected : dependents) {
-                for (int i = 0; i < everythingElse.size(); i++) {
-                    String currentNodeStr = everythingElse.get(i).targetName();
-                    if (selected.matches(currentNodeStr)) {
-                        execute(everythingElse.get(i), everythingElse);
-                    }
-                }
-            }
         }
         if (debug) System.out.println("[" + currentTarget.targetName() + ": " + currentTarget.size() + "]");
-
-        // after dependencies are done, execute each command for this target
-
         for (int i = 0; i < currentTarget.size(); i++) {
             command.Command cmd = currentTarget.get(i);
             if (!(cmd instanceof command.BuildPropertyCommand)) {
+                if (pools != null) {
+                    try {
+                        pools.acquire(cmd);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        throw new command.FailExecException("interrupted waiting to run " + cmd.commandName(), ie);
+                    }
+                }
                 System.out.println("[" + currentTarget.targetName() + ": executing " + cmd.commandName() + "]");
-                cmd.execute();
+                try {
+                    cmd.execute();
+                } finally {
+                    if (pools != null) pools.release(cmd);
+                }
             }
         }
-  
+        if (state != null) state.record(currentTarget);
+        return true;
     }
 }
 
@@ -0,0 +1,130 @@
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * This class is the thin front end for the daemon.  It takes the same arguments as Bee, hands
+ * them to the daemon for the build file in the working directory together with the directory
+ * itself and its own system properties and environment, and prints whatever the daemon sends
+ * back.  --watch and --daemon are not sent, since the daemon cannot run them.  If there is no daemon yet one is started
+ * in the background and left running for the next build.
+ */
+
+public class BeeClient {
+
+    private static final String BUILD_FILE = "build.xml";
+    private static final int START_ATTEMPTS = 100;
+    private static final long START_WAIT = 100;
+
+    /**
+     * This method runs a build through the daemon and exits with the exit code of the build.
+     * @param args the target to build and the options, see Bee.
+     */
+
+    public static void main(String[] args) {
+        for (String arg : args) {
+            if (arg.equals("--watch") || arg.equals("--daemon")) {
+                System.out.println("BeeClient does not take " + arg + ", run Bee " + arg + " instead");
+                System.exit(1);
+            }
+        }
+        Path socket = Daemon.socketPath(BUILD_FILE);
+        SocketChannel channel = connect(socket);
+        if (channel == null) {
+            startDaemon(socket);
+            for (int i = 0; channel == null && i < START_ATTEMPTS; i++) {
+                try {
+                    Thread.sleep(START_WAIT);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                channel = connect(socket);
+            }
+        }
+        if (channel == null) {
+            System.out.println("unable to reach the bee daemon, see " + socket.resolveSibling(Daemon.LOG_FILE));
+            System.exit(1);
+        }
+        int code = 1;
+        try (SocketChannel open = channel) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(open)));
+            out.writeUTF(System.getProperty("user.dir"));
+            out.writeInt(args.length);
+            for (String arg : args) {
+                out.writeUTF(arg);
+            }
+            HashMap<String, String> properties = new HashMap<>();
+            for (String name : System.getProperties().stringPropertyNames()) {
+                properties.put(name, System.getProperty(name));
+            }
+            Daemon.writeMap(out, properties);
+            Daemon.writeMap(out, System.getenv());
+            out.flush();
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(open)));
+            byte[] buffer = new byte[8192];
+            while (true) {
+                byte type = in.readByte();
+                if (type == Daemon.EXIT) {
+                    code = in.readInt();
+                    break;
+                }
+                int length = in.readInt();
+                if (buffer.length < length) buffer = new byte[length];
+                in.readFully(buffer, 0, length);
+                System.out.write(buffer, 0, length);
+                System.out.flush();
+            }
+        } catch (EOFException eofe) {
+            System.out.println("the bee daemon went away during the build");
+        } catch (IOException ioe) {
+            System.out.println("lost the bee daemon: " + ioe.getMessage());
+        }
+        System.exit(code);
+    }
+
+    /**
+     * This method connects to the daemon.
+     * @param socket the socket of the daemon.
+     * @return the connection, or null if no daemon is listening.
+     */
+
+    private static SocketChannel connect(Path socket) {
+        if (!Files.exists(socket)) return null;
+        try {
+            return SocketChannel.open(UnixDomainSocketAddress.of(socket));
+        } catch (IOException ioe) {
+            return null;
+        }
+    }
+
+    /**
+     * This method starts a daemon in the background with the same java and classpath as this
+     * client.  Its own output goes to a log file next to the socket.
+     * @param socket the socket the daemon will listen on.
+     */
+
+    private static void startDaemon(Path socket) {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        ArrayList<String> command = new ArrayList<>();
+        command.add(java);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        String idle = System.getProperty("bee.daemon.idle");
+        if (idle != null) command.add("-Dbee.daemon.idle=" + idle);
+        command.add("Bee");
+        command.add("--daemon");
+        try {
+            Files.createDirectories(socket.getParent());
+            ProcessBuilder builder = new ProcessBuilder(command);
+            builder.redirectErrorStream(true);
+            builder.redirectOutput(ProcessBuilder.Redirect.appendTo(socket.resolveSibling(Daemon.LOG_FILE).toFile()));
+            builder.start();
+            System.out.println("started the bee daemon");
+        } catch (IOException ioe) {
+            System.out.println("unable to start the bee daemon: " + ioe.getMessage());
+        }
+    }
+}
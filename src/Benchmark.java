@@ -0,0 +1,254 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.jar.*;
+import javax.tools.*;
+
+/**
+ * This class is a small stand alone benchmark for the parts of the build tool that are worth
+ * timing.  It is not part of a build, it is run by hand with the name of the benchmark and is
+ * meant to show whether a change actually made things faster.
+ * <pre>
+ * java Benchmark plan [build file] [iterations]
+ * java Benchmark dictionary [properties] [iterations]
+ * java Benchmark compiler [sources] [targets]
+ * </pre>
+ */
+
+public class Benchmark {
+
+    private static final int DEFAULT_ITERATIONS = 20;
+    private static final int WARMUP = 5;
+    private static final int DEFAULT_PROPERTIES = 10000;
+    private static final int DEFAULT_SOURCES = 200;
+    private static final int DEFAULT_TARGETS = 8;
+
+    /**
+     * This method runs the benchmark that is named by the first argument.
+     * @param args the name of the benchmark followed by its own arguments.
+     */
+
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.out.println("usage: java Benchmark plan [build file] [iterations]");
+            System.out.println("       java Benchmark dictionary [properties] [iterations]");
+            System.out.println("       java Benchmark compiler [sources] [targets]");
+            return;
+        }
+        if (args[0].equals("plan")) {
+            String filename = args.length > 1 ? args[1] : "build.xml";
+            int iterations = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_ITERATIONS;
+            planStartup(filename, iterations);
+        } else if (args[0].equals("dictionary")) {
+            int properties = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PROPERTIES;
+            int iterations = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_ITERATIONS;
+            dictionary(properties, iterations);
+        } else if (args[0].equals("compiler")) {
+            int sources = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_SOURCES;
+            int targets = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_TARGETS;
+            compiler(sources, targets);
+        } else {
+            System.out.println("unknown benchmark " + args[0]);
+        }
+    }
+
+    /**
+     * This benchmark compares reading the build file and resolving all of its properties
+     * against reading the same plan back from the plan cache.
+     * @param filename the build file to use.
+     * @param iterations the number of timed runs of each.
+     */
+
+    private static void planStartup(String filename, int iterations) {
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(new ByteArrayOutputStream()));
+        Project project = Bee.readPlan(filename, null);
+        PlanCache.store(filename, null, new command.Dictionary(), project, false);
+        for (int i = 0; i < WARMUP; i++) {
+            Bee.readPlan(filename, null);
+            PlanCache.load(filename, null, new command.Dictionary(), false);
+        }
+        long parse = 0;
+        long cached = 0;
+        boolean hit = true;
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            Bee.readPlan(filename, null);
+            parse += System.nanoTime() - start;
+            start = System.nanoTime();
+            hit &= PlanCache.load(filename, null, new command.Dictionary(), false) != null;
+            cached += System.nanoTime() - start;
+        }
+        System.setOut(console);
+        System.out.println("build file:  " + filename);
+        System.out.println("cold parse:  " + (parse / iterations / 1000) + " us per run");
+        System.out.println("cache hit:   " + (cached / iterations / 1000) + " us per run" + (hit ? "" : " (cache missed)"));
+    }
+
+    /**
+     * This benchmark fills a dictionary with generated build properties, with dotted keys like
+     * the ones real builds use, and then looks every one of them up.
+     * @param properties the number of properties.
+     * @param iterations the number of timed runs.
+     */
+
+    private static void dictionary(int properties, int iterations) {
+        command.Tuple[] tuples = new command.Tuple[properties];
+        for (int i = 0; i < properties; i++) {
+            tuples[i] = new command.Tuple("module" + (i % 100) + ".dir." + i, "/build/module" + i);
+        }
+        long fill = 0;
+        long lookup = 0;
+        int found = 0;
+        for (int i = 0; i < WARMUP + iterations; i++) {
+            long start = System.nanoTime();
+            command.Dictionary dict = new command.Dictionary();
+            for (command.Tuple tuple : tuples) {
+                dict.add(tuple);
+            }
+            long filled = System.nanoTime();
+            found = 0;
+            for (command.Tuple tuple : tuples) {
+                if (dict.getValueForKey(tuple.key) == tuple.value) found++;
+            }
+            long done = System.nanoTime();
+            if (i >= WARMUP) {
+                fill += filled - start;
+                lookup += done - filled;
+            }
+        }
+        System.out.println("properties:  " + properties);
+        System.out.println("fill:        " + (fill / iterations / 1000) + " us per run");
+        System.out.println("lookup all:  " + (lookup / iterations / 1000) + " us per run" + (found == properties ? "" : " (lookups failed)"));
+    }
+
+    /**
+     * This benchmark compiles a number of generated targets one after the other, the way the
+     * javac tags of a build are, all against the same jar.  Each target is compiled twice, once
+     * with a new file manager, the way every javac tag used to start, and once with a worker of
+     * a command.CompilerPool, which keeps its file manager and the jars it has read.  The two
+     * take turns so the JIT warms up both the same, and the time of every target is printed, so
+     * the first, cold, targets can be compared to the warm ones after them.
+     * @param sources the number of sources in each target.
+     * @param targets the number of targets.
+     */
+
+    private static void compiler(int sources, int targets) {
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        if (javac == null) {
+            System.out.println("there is no compiler, run this on a JDK");
+            return;
+        }
+        try {
+            File root = Files.createTempDirectory("bee-compiler").toFile();
+            File lib = makeLibrary(javac, root);
+            ArrayList<ArrayList<File>> trees = new ArrayList<>();
+            for (int t = 0; t < targets; t++) {
+                trees.add(makeSources(new File(root, "src" + t), "target" + t, sources));
+            }
+            command.CompilerPool pool = new command.CompilerPool(javac, 1);
+            System.out.println("sources:     " + sources + " in each of " + targets + " targets");
+            System.out.println("target       new file manager   pooled worker");
+            for (int t = 0; t < targets; t++) {
+                File fresh = new File(root, "fresh" + t);
+                File pooled = new File(root, "pooled" + t);
+                fresh.mkdirs();
+                pooled.mkdirs();
+                long start = System.nanoTime();
+                StandardJavaFileManager manager = javac.getStandardFileManager(null, null, null);
+                boolean worked = compileTarget(javac, manager, trees.get(t), lib, fresh);
+                manager.close();
+                long middle = System.nanoTime();
+                command.CompilerPool.Worker worker = pool.acquire();
+                worked &= compileTarget(javac, worker.getFileManager(Arrays.asList(lib)), trees.get(t), lib, pooled);
+                pool.release(worker);
+                long end = System.nanoTime();
+                System.out.println(String.format("%-12d %10d ms %14d ms%s", t + 1, (middle - start) / 1000000,
+                    (end - middle) / 1000000, worked ? "" : " (did not compile)"));
+            }
+        } catch (IOException ioe) {
+            System.out.println("unable to set up the benchmark: " + ioe.getMessage());
+        }
+    }
+
+    /**
+     * This method compiles one generated target.
+     * @param javac the compiler.
+     * @param manager the file manager to use.
+     * @param sources the sources of the target.
+     * @param lib the jar on the classpath.
+     * @param out where the classes go.
+     * @return true if the target compiled.
+     * @throws IOException if a location cannot be set.
+     */
+
+    private static boolean compileTarget(JavaCompiler javac, StandardJavaFileManager manager, ArrayList<File> sources,
+            File lib, File out) throws IOException {
+        manager.setLocation(StandardLocation.CLASS_OUTPUT, Arrays.asList(out));
+        manager.setLocation(StandardLocation.CLASS_PATH, Arrays.asList(lib));
+        return javac.getTask(null, manager, null, null, null, manager.getJavaFileObjectsFromFiles(sources)).call();
+    }
+
+    /**
+     * This method generates the jar every target compiles against.
+     * @param javac the compiler.
+     * @param root the directory the benchmark works in.
+     * @return the jar.
+     * @throws IOException if the jar cannot be written.
+     */
+
+    private static File makeLibrary(JavaCompiler javac, File root) throws IOException {
+        ArrayList<File> sources = makeSources(new File(root, "lib"), "lib", 100);
+        File classes = new File(root, "libclasses");
+        classes.mkdirs();
+        StandardJavaFileManager manager = javac.getStandardFileManager(null, null, null);
+        manager.setLocation(StandardLocation.CLASS_OUTPUT, Arrays.asList(classes));
+        javac.getTask(null, manager, null, null, null, manager.getJavaFileObjectsFromFiles(sources)).call();
+        manager.close();
+        File jar = new File(root, "lib.jar");
+        try (JarOutputStream out = new JarOutputStream(new FileOutputStream(jar))) {
+            for (File file : new File(classes, "lib").listFiles()) {
+                out.putNextEntry(new JarEntry("lib/" + file.getName()));
+                out.write(Files.readAllBytes(file.toPath()));
+                out.closeEntry();
+            }
+        }
+        return jar;
+    }
+
+    /**
+     * This method generates the sources of a package, classes that use collections and, for a
+     * target, the classes of the jar.
+     * @param dir the source directory.
+     * @param name the name of the package.
+     * @param count the number of classes.
+     * @return the source files.
+     * @throws IOException if a source cannot be written.
+     */
+
+    private static ArrayList<File> makeSources(File dir, String name, int count) throws IOException {
+        File pkg = new File(dir, name);
+        pkg.mkdirs();
+        ArrayList<File> result = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            File file = new File(pkg, "C" + i + ".java");
+            try (PrintWriter out = new PrintWriter(new FileWriter(file))) {
+                out.println("package " + name + ";");
+                out.println("import java.util.*;");
+                out.println("public class C" + i + " {");
+                out.println("    private final Map<String, List<Integer>> values = new HashMap<>();");
+                out.println("    public int add(String key, int value) {");
+                out.println("        values.computeIfAbsent(key, k -> new ArrayList<>()).add(value);");
+                out.println("        return values.get(key).stream().mapToInt(Integer::intValue).sum();");
+                out.println("    }");
+                if (!name.equals("lib")) {
+                    out.println("    public int use() { return new lib.C" + (i % 100) + "().add(\"" + i + "\", " + i + "); }");
+                }
+                if (i > 0) out.println("    public C" + (i - 1) + " previous() { return new C" + (i - 1) + "(); }");
+                out.println("}");
+            }
+            result.add(file);
+        }
+        return result;
+    }
+}
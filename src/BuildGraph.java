@@ -0,0 +1,99 @@
+import java.util.*;
+
+/**
+ * This class works out which targets a build actually needs.  Only the depends attributes are
+ * looked at, so it can be done before any of the commands are made.  Big build files have
+ * hundreds of targets and a build usually only touches a handful of them.  It also puts the
+ * needed targets in the order they are run, so that each one runs exactly once and after all
+ * of the targets it depends on.
+ */
+
+public class BuildGraph {
+
+    /**
+     * This method returns the requested target and every target it depends on, directly or
+     * not.  A target that depends on a name that is not in the build file is reported and the
+     * name is ignored, the same as the build always did.
+     * @param project the project to look through.
+     * @param targetName the name of the requested target.
+     * @return the targets that are reachable from the requested one, starting with it, or an
+     * empty list if there is no such target.
+     */
+
+    public static ArrayList<Target> closure(Project project, String targetName) {
+        LinkedHashSet<Target> reached = new LinkedHashSet<>();
+        ArrayDeque<Target> work = new ArrayDeque<>();
+        Target root = project.getTarget(targetName);
+        if (root != null) work.push(root);
+        while (!work.isEmpty()) {
+            Target current = work.pop();
+            if (!reached.add(current)) continue;
+            String[] dependents = current.getDependencies();
+            for (int i = 0; dependents != null && i < dependents.length; i++) {
+                Target dependent = project.getTarget(dependents[i]);
+                if (dependent == null) {
+                    System.out.println(current.targetName() + " depends on unknown target " + dependents[i]);
+                } else {
+                    work.push(dependent);
+                }
+            }
+        }
+        return new ArrayList<>(reached);
+    }
+
+    /**
+     * This method sorts the requested target and everything it depends on so each target comes
+     * after all of its dependencies.  Dependencies are visited in the order of the depends list,
+     * so a build that has no shared targets runs in the same order it always did.  The whole
+     * graph is checked before anything is run, and a cycle is reported with the targets that
+     * form it.
+     * @param project the project to look through.
+     * @param targetName the name of the requested target.
+     * @return the targets in the order they are to be run, ending with the requested one, or an
+     * empty list if there is no such target.
+     * @throws command.FailExecException if the depends attributes form a cycle.
+     */
+
+    public static ArrayList<Target> order(Project project, String targetName) throws command.FailExecException {
+        ArrayList<Target> result = new ArrayList<>();
+        Target root = project.getTarget(targetName);
+        if (root != null) {
+            visit(project, root, new HashSet<Target>(), new ArrayList<Target>(), result);
+        }
+        return result;
+    }
+
+    /**
+     * This method is the depth first walk behind order().  The path holds the targets that are
+     * being visited right now, so finding one of them again means there is a cycle.
+     * @param project the project to look through.
+     * @param current the target being visited.
+     * @param done the targets that have already been put in the result.
+     * @param path the targets on the way from the requested target to this one.
+     * @param result the targets in the order they are to be run.
+     * @throws command.FailExecException if the depends attributes form a cycle.
+     */
+
+    private static void visit(Project project, Target current, HashSet<Target> done, ArrayList<Target> path,
+            ArrayList<Target> result) throws command.FailExecException {
+        if (done.contains(current)) return;
+        int index = path.indexOf(current);
+        if (index != -1) {
+            StringBuilder buffer = new StringBuilder();
+            for (int i = index; i < path.size(); i++) {
+                buffer.append(path.get(i).targetName() + " -> ");
+            }
+            buffer.append(current.targetName());
+            throw new command.FailExecException("dependency cycle: " + buffer.toString());
+        }
+        path.add(current);
+        String[] dependents = current.getDependencies();
+        for (int i = 0; dependents != null && i < dependents.length; i++) {
+            Target dependent = project.getTarget(dependents[i]);
+            if (dependent != null) visit(project, dependent, done, path, result);
+        }
+        path.remove(path.size() - 1);
+        done.add(current);
+        result.add(current);
+    }
+}
@@ -0,0 +1,90 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * This class remembers how long each target took on earlier builds.  The times are kept in a
+ * small text file next to the plan cache, one target per line, and are used to guess which
+ * targets are on the longest chain of the build so those can be started first.
+ */
+
+public class BuildHistory {
+
+    private static final String HISTORY_DIR = ".bee";
+    private static final String HISTORY_FILE = "durations";
+    private static final long UNKNOWN = 1;
+
+    private final File file;
+    private final HashMap<String, Long> durations = new HashMap<>();
+
+    /**
+     * The constructor reads the history that belongs to a build file.  A missing or unreadable
+     * history just means nothing is known yet.
+     * @param filename the build file.
+     */
+
+    public BuildHistory(String filename) {
+        File parent = new File(filename).getAbsoluteFile().getParentFile();
+        file = new File(new File(parent, HISTORY_DIR), HISTORY_FILE);
+        if (!file.exists()) return;
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (tab == -1) continue;
+                try {
+                    durations.put(line.substring(tab + 1), Long.parseLong(line.substring(0, tab)));
+                } catch (NumberFormatException nfe) {
+                    // skip the line
+                }
+            }
+        } catch (IOException ioe) {
+            durations.clear();
+        }
+    }
+
+    /**
+     * This method returns how long a target is expected to take.  Targets that have never run
+     * are given the average of the ones that have, so they are not always put last.
+     * @param target the target.
+     * @return the expected time in milliseconds.
+     */
+
+    public long estimate(Target target) {
+        Long known = durations.get(target.targetName());
+        if (known != null) return Math.max(known, UNKNOWN);
+        if (durations.isEmpty()) return UNKNOWN;
+        long total = 0;
+        for (long duration : durations.values()) {
+            total += duration;
+        }
+        return Math.max(total / durations.size(), UNKNOWN);
+    }
+
+    /**
+     * This method records how long a target took on this build.  It is averaged with what was
+     * known before so one slow or fast run does not throw the estimate off.
+     * @param target the target.
+     * @param millis the time it took in milliseconds.
+     */
+
+    public void record(Target target, long millis) {
+        Long known = durations.get(target.targetName());
+        durations.put(target.targetName(), known == null ? millis : (known + millis) / 2);
+    }
+
+    /**
+     * This method writes the history back to its file.  Failing to write it is only reported,
+     * it is not a reason to fail the build.
+     */
+
+    public void save() {
+        file.getParentFile().mkdirs();
+        try (PrintWriter writer = new PrintWriter(new FileWriter(file))) {
+            for (Map.Entry<String, Long> entry : durations.entrySet()) {
+                writer.println(entry.getValue() + "\t" + entry.getKey());
+            }
+        } catch (IOException ioe) {
+            System.out.println("unable to save build durations: " + ioe.getMessage());
+        }
+    }
+}
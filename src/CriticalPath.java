@@ -0,0 +1,157 @@
+import java.util.*;
+
+/**
+ * This class works out the critical path of a build, the chain of targets that decides how long
+ * the whole build takes no matter how many cores there are.  Before the build it is predicted from
+ * the durations of earlier builds, and every target is ranked by the longest remaining path from
+ * it to the requested target, so the scheduler can start the long chains first.  After the build
+ * the actual path is worked out from when each target finished and both are reported.
+ */
+
+public class CriticalPath {
+
+    private final ArrayList<Target> order;
+    private final BuildHistory history;
+    private final HashMap<Target, ArrayList<Target>> dependencies = new HashMap<>();
+    private final HashMap<Target, ArrayList<Target>> dependents = new HashMap<>();
+    private final HashMap<Target, Long> ranks = new HashMap<>();
+    private final HashMap<Target, Integer> positions = new HashMap<>();
+
+    /**
+     * The constructor ranks the targets of a build.
+     * @param project the project the targets belong to.
+     * @param order the targets of the build, each one after all of the targets it depends on.
+     * @param history the durations of earlier builds.
+     */
+
+    public CriticalPath(Project project, ArrayList<Target> order, BuildHistory history) {
+        this.order = order;
+        this.history = history;
+        HashSet<Target> included = new HashSet<>(order);
+        for (Target target : order) {
+            positions.put(target, positions.size());
+            dependencies.put(target, new ArrayList<Target>());
+            dependents.put(target, new ArrayList<Target>());
+        }
+        for (Target target : order) {
+            String[] depends = target.getDependencies();
+            for (int i = 0; depends != null && i < depends.length; i++) {
+                Target dependency = project.getTarget(depends[i]);
+                if (dependency != null && included.contains(dependency) && !dependencies.get(target).contains(dependency)) {
+                    dependencies.get(target).add(dependency);
+                    dependents.get(dependency).add(target);
+                }
+            }
+        }
+        for (int i = order.size() - 1; i >= 0; i--) {
+            Target target = order.get(i);
+            long longest = 0;
+            for (Target dependent : dependents.get(target)) {
+                longest = Math.max(longest, ranks.get(dependent));
+            }
+            ranks.put(target, history.estimate(target) + longest);
+        }
+    }
+
+    /**
+     * This method returns the rank of a target, which is its own expected time plus the longest
+     * expected chain of targets that has to run after it.
+     * @param target the target.
+     * @return the rank in milliseconds, higher ranks should be started first.
+     */
+
+    public long rank(Target target) {
+        return ranks.get(target);
+    }
+
+    /**
+     * This method returns the position of a target in the build order.  It breaks ties between
+     * targets with the same rank so they start in the order of the build file, and since the
+     * scheduler asks for it on every comparison it is looked up rather than searched for.
+     * @param target the target.
+     * @return the index of the target in the build order.
+     */
+
+    public int position(Target target) {
+        return positions.get(target);
+    }
+
+    /**
+     * This method returns the critical path that is expected from earlier builds.  It starts with
+     * the highest ranked target that depends on nothing and follows the highest ranked target
+     * that depends on it until the requested target is reached.
+     * @return the predicted critical path, ending with the requested target.
+     */
+
+    public ArrayList<Target> predicted() {
+        ArrayList<Target> result = new ArrayList<>();
+        Target current = null;
+        for (Target target : order) {
+            if (dependencies.get(target).isEmpty() && (current == null || rank(target) > rank(current))) {
+                current = target;
+            }
+        }
+        while (current != null) {
+            result.add(current);
+            Target next = null;
+            for (Target dependent : dependents.get(current)) {
+                if (next == null || rank(dependent) > rank(next)) next = dependent;
+            }
+            current = next;
+        }
+        return result;
+    }
+
+    /**
+     * This method returns the critical path that actually happened.  Going back from the
+     * requested target, it follows the dependency that finished last, since that was the one
+     * the target had to wait for.
+     * @param finished when each target finished, from System.nanoTime().
+     * @return the actual critical path, ending with the requested target.
+     */
+
+    public ArrayList<Target> actual(HashMap<Target, Long> finished) {
+        ArrayList<Target> result = new ArrayList<>();
+        Target current = order.isEmpty() ? null : order.get(order.size() - 1);
+        while (current != null && finished.containsKey(current)) {
+            result.add(0, current);
+            Target last = null;
+            for (Target dependency : dependencies.get(current)) {
+                if (finished.containsKey(dependency) && (last == null || finished.get(dependency) > finished.get(last))) {
+                    last = dependency;
+                }
+            }
+            current = last;
+        }
+        return result;
+    }
+
+    /**
+     * This method prints the predicted critical path next to the actual one, with the time each
+     * target was expected to take and the time it did take.
+     * @param started when each target started, from System.nanoTime().
+     * @param finished when each target finished, from System.nanoTime().
+     */
+
+    public void report(HashMap<Target, Long> started, HashMap<Target, Long> finished) {
+        ArrayList<Target> predicted = predicted();
+        ArrayList<Target> actual = actual(finished);
+        long expected = 0;
+        StringBuilder buffer = new StringBuilder();
+        for (Target target : predicted) {
+            expected += history.estimate(target);
+            buffer.append(" -> " + target.targetName() + " (" + history.estimate(target) + " ms)");
+        }
+        System.out.println("predicted critical path, " + expected + " ms:");
+        System.out.println("   " + (buffer.length() > 0 ? buffer.substring(4) : "none"));
+        long took = 0;
+        buffer = new StringBuilder();
+        for (Target target : actual) {
+            long millis = (finished.get(target) - started.get(target)) / 1000000;
+            took += millis;
+            buffer.append(" -> " + target.targetName() + " (" + millis + " ms)");
+        }
+        System.out.println("actual critical path, " + took + " ms:");
+        System.out.println("   " + (buffer.length() > 0 ? buffer.substring(4) : "none"));
+    }
+}
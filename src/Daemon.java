@@ -0,0 +1,233 @@
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * This class keeps Bee running in the background so that small builds do not pay for starting
+ * the JVM, loading the classes and warming up the JIT every time.  It listens on a Unix domain
+ * socket in the .bee directory next to the build file and runs one build at a time for whatever
+ * BeeClient connects to it, sending the output of the build back as it is printed.  Everything
+ * that is kept in memory between runs stays warm, like the file fingerprints, and the build file
+ * is only parsed again when it changed, see PlanCache.  The client sends its system properties
+ * and environment with every build, and the build sees those rather than the daemon's, so that
+ * ${env.NAME} means the same as it would without the daemon.  When no build has been asked for
+ * in a while the daemon shuts itself down.
+ * <pre>
+ * request:  working directory, argument count, arguments (all writeUTF / writeInt)
+ *           property count, name value ..., variable count, name value ... (writeInt / writeString)
+ * response: OUTPUT length bytes ... EXIT code
+ * </pre>
+ */
+
+public class Daemon {
+
+    static final String SOCKET_FILE = "daemon.sock";
+    static final String LOG_FILE = "daemon.log";
+    static final byte OUTPUT = 1;
+    static final byte EXIT = 2;
+
+    private static final String DAEMON_DIR = ".bee";
+    private static final long DEFAULT_IDLE_MINUTES = 30;
+
+    /**
+     * This method returns the socket the daemon for a build file listens on.
+     * @param filename the build file.
+     * @return the path of the socket.
+     */
+
+    static Path socketPath(String filename) {
+        File parent = new File(filename).getAbsoluteFile().getParentFile();
+        return new File(new File(parent, DAEMON_DIR), SOCKET_FILE).toPath();
+    }
+
+    /**
+     * This method listens for builds until the daemon has been idle for too long.  The idle time
+     * is 30 minutes unless the bee.daemon.idle system property gives another number of minutes.
+     * Only one build runs at a time since the output of a build goes through System.out.
+     * @param filename the build file the daemon serves.
+     */
+
+    public static void serve(String filename) {
+        Path socket = socketPath(filename);
+        long idle = Long.getLong("bee.daemon.idle", DEFAULT_IDLE_MINUTES) * 60 * 1000;
+        String directory = new File(filename).getAbsoluteFile().getParent();
+        try {
+            Files.createDirectories(socket.getParent());
+            Files.deleteIfExists(socket);
+        } catch (IOException ioe) {
+            System.out.println("unable to create " + socket + ": " + ioe.getMessage());
+            return;
+        }
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+                Selector selector = Selector.open()) {
+            server.bind(UnixDomainSocketAddress.of(socket));
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+            System.out.println("bee daemon listening on " + socket);
+            while (true) {
+                if (selector.select(Math.max(idle, 1)) == 0) {
+                    System.out.println("bee daemon idle, shutting down");
+                    break;
+                }
+                selector.selectedKeys().clear();
+                SocketChannel client = server.accept();
+                if (client == null) continue;
+                client.configureBlocking(true);
+                try {
+                    handle(client, directory);
+                } catch (IOException ioe) {
+                    System.out.println("lost a client: " + ioe.getMessage());
+                } finally {
+                    client.close();
+                }
+            }
+        } catch (IOException ioe) {
+            System.out.println("bee daemon stopped: " + ioe.getMessage());
+        } finally {
+            try {
+                Files.deleteIfExists(socket);
+            } catch (IOException ioe) {
+                // nothing else to do on the way out
+            }
+        }
+    }
+
+    /**
+     * This method runs the build a client asked for.  The output of the build is sent to the
+     * client while it runs and the exit code is sent at the end.  A build that throws is
+     * reported to the client instead of stopping the daemon.
+     * @param client the connection to the client.
+     * @param directory the directory the daemon serves.
+     * @throws IOException if the client goes away.
+     */
+
+    private static void handle(SocketChannel client, String directory) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(client)));
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(client)));
+        String workingDir = in.readUTF();
+        String[] args = new String[in.readInt()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = in.readUTF();
+        }
+        Map<String, String> system = readMap(in);
+        Map<String, String> environment = readMap(in);
+        PrintStream console = System.out;
+        PrintStream errors = System.err;
+        PrintStream forward = new PrintStream(new OutputStream() {
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            public synchronized void write(byte[] bytes, int offset, int length) throws IOException {
+                out.writeByte(OUTPUT);
+                out.writeInt(length);
+                out.write(bytes, offset, length);
+            }
+
+            public synchronized void flush() throws IOException {
+                out.flush();
+            }
+        }, true);
+        int code = 1;
+        System.setOut(forward);
+        System.setErr(forward);
+        try {
+            String refused = refused(args);
+            if (!new File(workingDir).getCanonicalPath().equals(new File(directory).getCanonicalPath())) {
+                System.out.println("this daemon builds " + directory + ", not " + workingDir);
+            } else if (refused != null) {
+                System.out.println("the bee daemon does not take " + refused + ", run Bee " + refused + " instead");
+            } else {
+                command.PropertyScope.setExternal(system, environment);
+                code = Bee.run(args);
+            }
+        } catch (RuntimeException re) {
+            System.out.println("build failed: " + re.getMessage());
+        } finally {
+            command.PropertyScope.setExternal(null, null);
+            forward.flush();
+            System.setOut(console);
+            System.setErr(errors);
+        }
+        out.writeByte(EXIT);
+        out.writeInt(code);
+        out.flush();
+    }
+
+    /**
+     * This method finds an argument the daemon cannot run a build with.  --watch never returns,
+     * so it would keep the one build the daemon runs at a time, and --daemon would start a
+     * second daemon inside this one.
+     * @param args the arguments the client sent.
+     * @return the argument, or null if the build can go ahead.
+     */
+
+    private static String refused(String[] args) {
+        for (String arg : args) {
+            if (arg.equals("--watch") || arg.equals("--daemon")) return arg;
+        }
+        return null;
+    }
+
+    /**
+     * This method sends a map of Strings, like the system properties of the client.
+     * @param out the stream to write to.
+     * @param map the map.
+     * @throws IOException if the write fails.
+     */
+
+    static void writeMap(DataOutputStream out, Map<String, String> map) throws IOException {
+        out.writeInt(map.size());
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            writeString(out, entry.getKey());
+            writeString(out, entry.getValue());
+        }
+    }
+
+    /**
+     * This method reads a map of Strings sent by writeMap.
+     * @param in the stream to read from.
+     * @return the map.
+     * @throws IOException if the read fails.
+     */
+
+    private static Map<String, String> readMap(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        HashMap<String, String> result = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            String key = readString(in);
+            result.put(key, readString(in));
+        }
+        return result;
+    }
+
+    /**
+     * This method sends a String as its length and UTF-8 bytes, since writeUTF cannot send one
+     * longer than 64K, which an environment variable can be.
+     * @param out the stream to write to.
+     * @param value the String.
+     * @throws IOException if the write fails.
+     */
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * This method reads a String sent by writeString.
+     * @param in the stream to read from.
+     * @return the String.
+     * @throws IOException if the read fails.
+     */
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
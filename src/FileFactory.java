@@ -1,7 +1,5 @@
-import org.xml.sax.SAXException;
-import javax.xml.parsers.*;
+import javax.xml.stream.*;
 import java.io.*;
-import org.w3c.dom.*;
 import java.util.*;
 import command.*;
 
@@ -11,12 +9,15 @@ import command.*;
  * as the call is once or twice for the entire run of the application and
  * would be a waste of resources to keep references of objects no longer used.
  * This is especially true considering the cost of each command tag in the 
- * build file.  Thanksfully build files arent very big, otherwise I would
- * have to find another way of performing the build.
+ * build file.  The file is read with a streaming parser in a single forward pass,
+ * so only the command currently being read is held as XML.  Generated build files
+ * can be tens of thousands of lines and a DOM of all of them is a waste.
  */
 
 public class FileFactory {
 
+	private static final int BUFFER_SIZE = 64 * 1024;
+
 	/**
 	 * This method returns the default target that is used for the build process.
 	 * This version has no boolean argument, which is used to toggle debugging.
@@ -32,7 +33,8 @@ public class FileFactory {
 
 	/**
 	 * This method returns the default target that is used for the build process.
-	 * This version has a boolean argument, which is used to toggle debugging.
+	 * This version has a boolean argument, which is used to toggle debugging.  Only
+	 * the project tag is read, the rest of the file is never looked at.
 	 * @param filename as a String that is to be used for parsing the default
 	 * target.
 	 * @param debug is the boolean flag to turn debugging on while using the function.
@@ -41,25 +43,22 @@ public class FileFactory {
 	 */
 
 	public static String getDefaultTarget(String filename, boolean debug) {
-		File file = new File(filename);
-		DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-		DocumentBuilder builder = null;
-		Document doc = null;
+		String defaultTarget = null;
+		XMLStreamReader reader = null;
 		try {
-			builder = dbf.newDocumentBuilder();
-		} catch (ParserConfigurationException pce) {
-			// do nothing
-		}
-		try {
-			doc = builder.parse(file);
-		} catch (SAXException se) {
+			reader = openReader(filename);
+			while (reader.hasNext()) {
+				if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+					defaultTarget = reader.getAttributeValue(null, "default");
+					break;
+				}
+			}
+			reader.close();
+		} catch (XMLStreamException xse) {
 			// do nothing
 		} catch (IOException ioe) {
 			// do nothing
 		}
-		doc.getDocumentElement().normalize();
-		NodeList list = doc.getElementsByTagName("project");
-		String defaultTarget = list.item(0).getAttributes().getNamedItem("default").getNodeValue();
 		if (debug) System.out.println("Default: " + defaultTarget);
 		return defaultTarget;
 	}
@@ -76,8 +75,6 @@ public class FileFactory {
 		return readFromFile(filename, false);
 	}
 
-	
-
 	/**
 	 * This method reads all of the targets and creates graphs of the commands needed
 	 * to execute them.  This version has a boolean argument, which is used to toggle 
@@ -88,62 +85,131 @@ public class FileFactory {
 	 */
 
 	public static ArrayList<Target> readFromFile(String filename, boolean debug) {
-		if (debug) System.out.println("Starting readFromFile()");
-		File file = new File(filename);
-		DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-		DocumentBuilder builder = null;
-		Document doc = null;
-		try {
-			builder = dbf.newDocumentBuilder();
-		} catch (ParserConfigurationException pce) {
-			pce.printStackTrace();
-			System.exit(0);
+		ArrayList<Target> result = readProject(filename, debug).getTargets();
+		for (int i = 0; i < result.size(); i++) {
+			result.get(i).parseCommands(debug);
 		}
+		return result;
+	}
+
+	/**
+	 * This method reads the whole build file in one forward pass.  The project header
+	 * and the targets are created as the tags go by.  The tags in each target are kept as
+	 * small nodes and only turned into commands for the targets the build actually reaches.
+	 * @param filename is the file to read, assuming it is an XML file.
+	 * @param debug the boolean flag used to determine is debugging is on or not.
+	 * @return The project with its default target, targets and project level commands.
+	 */
+
+	public static Project readProject(String filename, boolean debug) {
+		if (debug) System.out.println("Starting readProject()");
+		Project project = null;
 		try {
-			doc = builder.parse(file);
-		} catch (SAXException se) {
-			se.printStackTrace();
-			System.exit(0);
+			XMLStreamReader reader = openReader(filename);
+			project = readProject(reader, debug);
+			reader.close();
 		} catch (FileNotFoundException fnfe) {
-			System.out.println("No build file at location");
-			System.exit(0);
+			throw new FailExecException("No build file at location");
+		} catch (XMLStreamException xse) {
+			throw new FailExecException("unable to parse " + filename + ": " + xse.getMessage(), xse);
 		} catch (IOException ioe) {
-			ioe.printStackTrace();
-			System.exit(0);
+			throw new FailExecException("unable to read " + filename + ": " + ioe.getMessage(), ioe);
+		}
+		if (project == null) {
+			throw new FailExecException("No project tag in " + filename);
 		}
-		doc.getDocumentElement().normalize();
-		NodeList list = doc.getElementsByTagName("project");
-
-		// this is gnarly loopy stuff..once it works i will reduce the looping to optimize 
-		// processing as it is (O)n^3 right now..if possible
-
-		ArrayList<Target> result = new ArrayList<>();
-		for (int index = 0; index < list.getLength(); index++) {
-			Node node = list.item(index);
-        	if (node.getNodeType() == Node.ELEMENT_NODE) {
- 		 		Element element = (Element) node;
-				NodeList currentList = element.getElementsByTagName("target"); 
-				System.out.println("targets: " + currentList.getLength());
-				for (int i = 0; i < currentList.getLength(); i++) {
-					Node newNode = currentList.item(i);
-					Target currentTarget = new Target(newNode, debug);
+		return project;
+	}
+
+	/**
+	 * This method opens a streaming reader on the build file.
+	 * @param filename is the file to read.
+	 * @return the reader, positioned at the start of the document.
+	 * @throws IOException if the file cannot be opened.
+	 * @throws XMLStreamException if the reader cannot be created.
+	 */
+
+	private static XMLStreamReader openReader(String filename) throws IOException, XMLStreamException {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(XMLInputFactory.IS_COALESCING, false);
+		InputStream in = new BufferedInputStream(new FileInputStream(filename), BUFFER_SIZE);
+		return factory.createXMLStreamReader(in);
+	}
+
+	/**
+	 * This method does the actual reading of the build file.  The depth of each tag decides
+	 * what it is.  The first tag is the project, targets and project level commands are 
+	 * directly under it, and anything else is a command or nested in a command.
+	 * @param reader the streaming reader for the build file.
+	 * @param debug the boolean flag used to determine is debugging is on or not.
+	 * @return The project that was read, or null if there was no project tag.
+	 * @throws XMLStreamException if the build file is not well formed.
+	 */
+
+	private static Project readProject(XMLStreamReader reader, boolean debug) throws XMLStreamException {
+		Project project = null;
+		Target currentTarget = null;
+		ArrayDeque<CommandNode> open = new ArrayDeque<>();
+		int depth = 0;
+		while (reader.hasNext()) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+				String tag = reader.getLocalName();
+				if (depth == 1) {
+					project = new Project(reader.getAttributeValue(null, "name"),
+						reader.getAttributeValue(null, "default"), reader.getAttributeValue(null, "basedir"));
+					if (debug) System.out.println("Default: " + project.getDefaultTarget());
+				} else if (depth == 2 && tag.equalsIgnoreCase("target")) {
+					currentTarget = new Target(reader.getAttributeValue(null, "name"),
+						reader.getAttributeValue(null, "depends"), debug);
 					System.out.println("parsing " + currentTarget.targetName());
-					result.add(currentTarget);
-					if (debug) System.out.println("target: " + currentTarget.targetName());
-					NodeList commands = currentList.item(i).getChildNodes();
-					for (int k = 0 ; k < commands.getLength(); k++) {
-						Node child = commands.item(k);
-						if (child.getNodeType() == Node.ELEMENT_NODE) {
-							Element debugger = (Element)child;
-							if (debug) System.out.println("converting " + debugger.getTagName().toLowerCase());
-							Command resultCmd = CommandFactory.getCommandForNode(child, debug);	
-							if (debug) System.out.println(currentTarget.targetName() + " -> " + resultCmd.commandName());
-							currentTarget.appendCommand(resultCmd);
-						}
+					project.appendTarget(currentTarget);
+				} else {
+					CommandNode node = new CommandNode(tag);
+					for (int i = 0; i < reader.getAttributeCount(); i++) {
+						node.setAttribute(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+					}
+					if (!open.isEmpty()) open.peek().appendChild(node);
+					open.push(node);
+				}
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				if (!open.isEmpty()) {
+					CommandNode node = open.pop();
+					if (open.isEmpty()) {
+						finishCommand(project, currentTarget, node, debug);
 					}
+				} else if (depth == 2) {
+					currentTarget = null;
 				}
+				depth--;
 			}
 		}
-		return result;
+		if (project != null) System.out.println("targets: " + project.getTargets().size());
+		return project;
+	}
+
+	/**
+	 * This method attaches a fully read tag to the target it was found in.  The tag is not
+	 * turned into a command yet, the target stays a stub until the build knows it needs it.
+	 * Tags outside of a target are kept by the project when they are build properties or
+	 * resource pools, everything else at that level, such as path or description, is skipped.
+	 * @param project the project being read.
+	 * @param currentTarget the target the tag was in, or null if it was at the project level.
+	 * @param node the tag that was read.
+	 * @param debug the boolean flag used to determine is debugging is on or not.
+	 */
+
+	private static void finishCommand(Project project, Target currentTarget, CommandNode node, boolean debug) {
+		if (currentTarget == null) {
+			if (node.getName().equalsIgnoreCase("property")) {
+				project.appendProperty(CommandFactory.getCommandForNode(node, debug), node);
+			} else if (node.getName().equalsIgnoreCase("pool") && node.getAttribute("name") != null) {
+				project.appendPool(node.getAttribute("name"), node.getAttribute("size"));
+			}
+			return;
+		}
+		currentTarget.appendNode(node);
 	}
-}
\ No newline at end of file
+}
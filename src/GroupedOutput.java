@@ -0,0 +1,89 @@
+import java.io.*;
+
+/**
+ * This class keeps the console output of each target together when targets run at the same
+ * time.  Every thread that has started a group writes into its own buffer, and the buffer is
+ * written to the console in one piece when the group ends.  Threads without a group, like the
+ * main thread, write straight through.
+ */
+
+public class GroupedOutput extends OutputStream {
+
+    private final PrintStream console;
+    private final ThreadLocal<ByteArrayOutputStream> group = new ThreadLocal<>();
+
+    /**
+     * The constructor wraps the real console.
+     * @param console the stream the grouped output ends up on, usually the original System.out.
+     */
+
+    public GroupedOutput(PrintStream console) {
+        this.console = console;
+    }
+
+    /**
+     * This method starts collecting the output of the current thread.
+     */
+
+    public void begin() {
+        group.set(new ByteArrayOutputStream());
+    }
+
+    /**
+     * This method writes everything the current thread collected since begin() to the console
+     * in one piece and goes back to writing straight through.
+     */
+
+    public void end() {
+        ByteArrayOutputStream buffer = group.get();
+        group.remove();
+        if (buffer != null) {
+            synchronized (console) {
+                console.write(buffer.toByteArray(), 0, buffer.size());
+                console.flush();
+            }
+        }
+    }
+
+    /**
+     * This method writes a single byte to the group of the current thread, or to the console.
+     * @param b the byte to write.
+     */
+
+    public void write(int b) {
+        ByteArrayOutputStream buffer = group.get();
+        if (buffer != null) {
+            buffer.write(b);
+        } else {
+            synchronized (console) {
+                console.write(b);
+            }
+        }
+    }
+
+    /**
+     * This method writes bytes to the group of the current thread, or to the console.
+     * @param b the bytes to write.
+     * @param off the offset of the first byte.
+     * @param len the number of bytes.
+     */
+
+    public void write(byte[] b, int off, int len) {
+        ByteArrayOutputStream buffer = group.get();
+        if (buffer != null) {
+            buffer.write(b, off, len);
+        } else {
+            synchronized (console) {
+                console.write(b, off, len);
+            }
+        }
+    }
+
+    /**
+     * This method flushes the console.  Grouped output is only flushed when its group ends.
+     */
+
+    public void flush() {
+        if (group.get() == null) console.flush();
+    }
+}
@@ -0,0 +1,339 @@
+import java.io.*;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+
+/**
+ * This class keeps a compiled copy of the build plan between runs.  Reading the build file,
+ * making every command and substituting the build properties is the same work every time the
+ * build file has not changed, so the result is written to a small binary file and read back on
+ * the next run instead.  The plan is keyed by a hash of the build file and of every property
+ * file it references, so editing either one makes the cached plan stale and it is rebuilt.  The
+ * -D properties the plan was made with, and every system property and environment variable
+ * the build properties looked up, have to be the same as well.  Each requested target has its
+ * own plan, which only holds the targets that it needs.
+ */
+
+public class PlanCache {
+
+    private static final String CACHE_DIR = ".bee";
+    private static final String CACHE_FILE = "plan";
+    private static final String CACHE_EXT = ".cache";
+    private static final int MAGIC = 0x42454550;
+    private static final int VERSION = 4;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * This method reads the cached build plan for the build file, if there is one and it is
+     * still valid.  The commands are made from the nodes that were already resolved, so there
+     * is no property substitution to do, and the scopes of the project and its targets are made
+     * again from its property tags, so the plan has them just like one that was parsed.
+     * @param filename the build file the plan was made from.
+     * @param requested the target given on the command line, or null for the default target.
+     * @param overrides the build properties given on the command line with -D.
+     * @param debug the boolean flag used to determine if debugging is on.
+     * @return the project from the cache, or null if there is no valid cached plan.
+     */
+
+    public static Project load(String filename, String requested, command.Dictionary overrides, boolean debug) {
+        File cache = cacheFile(filename, requested);
+        if (!cache.exists()) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cache), BUFFER_SIZE))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) return null;
+            if (!in.readUTF().equals(hash(filename))) {
+                if (debug) System.out.println("build file changed since the plan was cached");
+                return null;
+            }
+            int fileCount = in.readInt();
+            for (int i = 0; i < fileCount; i++) {
+                String propertyFile = in.readUTF();
+                if (!in.readUTF().equals(hash(propertyFile))) {
+                    if (debug) System.out.println(propertyFile + " changed since the plan was cached");
+                    return null;
+                }
+            }
+            int overrideCount = in.readInt();
+            boolean same = overrideCount == overrides.size();
+            for (int i = 0; i < overrideCount; i++) {
+                String key = in.readUTF();
+                String value = readString(in);
+                same &= value == null ? overrides.getValueForKey(key) == null : value.equals(overrides.getValueForKey(key));
+            }
+            if (!same) {
+                if (debug) System.out.println("-D properties changed since the plan was cached");
+                return null;
+            }
+            int lookupCount = in.readInt();
+            for (int i = 0; i < lookupCount; i++) {
+                String layer = in.readUTF();
+                String key = in.readUTF();
+                if (!command.PropertyScope.isCurrent(layer, key, readString(in))) {
+                    if (debug) System.out.println(layer + " property " + key + " changed since the plan was cached");
+                    return null;
+                }
+            }
+            Project project = new Project(readString(in), readString(in), readString(in));
+            int poolCount = in.readInt();
+            for (int i = 0; i < poolCount; i++) {
+                project.appendPool(in.readUTF(), readString(in));
+            }
+            int propertyCount = in.readInt();
+            for (int i = 0; i < propertyCount; i++) {
+                command.CommandNode node = readNode(in);
+                project.appendProperty(command.CommandFactory.getCommandForNode(node, debug), node);
+            }
+            int targetCount = in.readInt();
+            for (int i = 0; i < targetCount; i++) {
+                Target target = new Target(in.readUTF(), readString(in), debug);
+                int commandCount = in.readInt();
+                for (int j = 0; j < commandCount; j++) {
+                    command.CommandNode node = readNode(in);
+                    target.appendCommand(command.CommandFactory.getCommandForNode(node, debug), node);
+                }
+                project.appendTarget(target);
+            }
+            // the scopes are not cached, they are made again from the property tags, which
+            // were resolved already, so the project and targets have them like a parsed plan
+            Bee.getProperties(project, project.getTargets(), overrides);
+            return project;
+        } catch (IOException ioe) {
+            if (debug) System.out.println("unable to read the cached plan: " + ioe.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * This method writes the build plan to the cache.  The nodes are resolved against the build
+     * properties first, so the cached plan needs no further substitution when it is read back.
+     * Failing to write the cache is not a reason to fail the build, so it is only reported.
+     * Only the targets the requested target needs are written.
+     * @param filename the build file the plan was made from.
+     * @param requested the target given on the command line, or null for the default target.
+     * @param overrides the build properties given on the command line with -D.
+     * @param project the project that was read and had its properties gathered.
+     * @param debug the boolean flag used to determine if debugging is on.
+     */
+
+    public static void store(String filename, String requested, command.Dictionary overrides, Project project, boolean debug) {
+        command.PropertyScope scope = project.getScope();
+        ArrayList<Target> targets = BuildGraph.closure(project, Bee.targetToBuild(project, requested));
+        ArrayList<String> propertyFiles = getPropertyFiles(project, targets);
+        ArrayList<command.CommandNode> propertyNodes = new ArrayList<>();
+        for (command.CommandNode node : project.getPropertyNodes()) {
+            propertyNodes.add(node.resolve(scope));
+        }
+        HashMap<Target, ArrayList<command.CommandNode>> targetNodes = new HashMap<>();
+        for (Target target : targets) {
+            ArrayList<command.CommandNode> nodes = new ArrayList<>();
+            for (int i = 0; i < target.size(); i++) {
+                nodes.add(target.getNode(i).resolve(target.getScope()));
+            }
+            targetNodes.put(target, nodes);
+        }
+        File cache = cacheFile(filename, requested);
+        File temp = new File(cache.getPath() + ".tmp");
+        cache.getParentFile().mkdirs();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), BUFFER_SIZE))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(hash(filename));
+            out.writeInt(propertyFiles.size());
+            for (String propertyFile : propertyFiles) {
+                out.writeUTF(propertyFile);
+                out.writeUTF(hash(propertyFile));
+            }
+            String[] keys = overrides.getKeys();
+            out.writeInt(keys.length);
+            for (String key : keys) {
+                out.writeUTF(key);
+                writeString(out, overrides.getValueForKey(key));
+            }
+            ArrayList<String[]> lookups = scope.getExternalLookups();
+            out.writeInt(lookups.size());
+            for (String[] lookup : lookups) {
+                out.writeUTF(lookup[0]);
+                out.writeUTF(lookup[1]);
+                writeString(out, lookup[2]);
+            }
+            writeString(out, project.getName());
+            writeString(out, project.getDefaultTarget());
+            writeString(out, project.getBasedir());
+            out.writeInt(project.getPools().size());
+            for (Map.Entry<String, String> pool : project.getPools().entrySet()) {
+                out.writeUTF(pool.getKey());
+                writeString(out, pool.getValue());
+            }
+            out.writeInt(propertyNodes.size());
+            for (command.CommandNode node : propertyNodes) {
+                writeNode(out, node);
+            }
+            out.writeInt(targets.size());
+            for (Target target : targets) {
+                out.writeUTF(target.targetName());
+                String[] depends = target.getDependencies();
+                writeString(out, depends == null ? null : String.join(",", depends));
+                ArrayList<command.CommandNode> nodes = targetNodes.get(target);
+                out.writeInt(nodes.size());
+                for (command.CommandNode node : nodes) {
+                    writeNode(out, node);
+                }
+            }
+        } catch (IOException ioe) {
+            System.out.println("unable to cache the build plan: " + ioe.getMessage());
+            temp.delete();
+            return;
+        }
+        try {
+            Files.move(temp.toPath(), cache.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            if (debug) System.out.println("build plan cached in " + cache.getPath());
+        } catch (IOException ioe) {
+            System.out.println("unable to cache the build plan: " + ioe.getMessage());
+            temp.delete();
+        }
+    }
+
+    /**
+     * This method returns the location of the cache file, which is kept next to the build file.
+     * @param filename the build file.
+     * @param requested the target given on the command line, or null for the default target.
+     * @return the cache file.
+     */
+
+    private static File cacheFile(String filename, String requested) {
+        File parent = new File(filename).getAbsoluteFile().getParentFile();
+        String name = CACHE_FILE;
+        if (requested != null) name = name + "-" + requested.replaceAll("[^A-Za-z0-9_.-]", "_");
+        return new File(new File(parent, CACHE_DIR), name + CACHE_EXT);
+    }
+
+    /**
+     * This method collects the property files referenced by the property tags of the project,
+     * with their build properties already substituted.
+     * @param project the project to look through.
+     * @param targets the targets that are written to the plan.
+     * @return the list of property file names.
+     */
+
+    private static ArrayList<String> getPropertyFiles(Project project, ArrayList<Target> targets) {
+        ArrayList<String> result = new ArrayList<>();
+        for (command.CommandNode node : project.getPropertyNodes()) {
+            addPropertyFile(result, node, project.getScope());
+        }
+        for (Target target : targets) {
+            for (int i = 0; i < target.size(); i++) {
+                addPropertyFile(result, target.getNode(i), target.getScope());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * This method adds the property file of a node to the list, if it is a property tag with a
+     * file attribute.
+     * @param result the property file names found so far.
+     * @param node the node to look at.
+     * @param scope the build properties the node uses.
+     */
+
+    private static void addPropertyFile(ArrayList<String> result, command.CommandNode node, command.PropertyScope scope) {
+        if (node.getName().equalsIgnoreCase("property") && node.getAttribute("file") != null) {
+            String propertyFile = node.resolve(scope).getAttribute("file");
+            if (!result.contains(propertyFile)) result.add(propertyFile);
+        }
+    }
+
+    /**
+     * This method returns a SHA-256 hash of the contents of a file.  A file that does not
+     * exist hashes to an empty String, so creating it later also makes the plan stale.
+     * @param filename the file to hash.
+     * @return the hash as a hex String.
+     * @throws IOException if the file exists but cannot be read.
+     */
+
+    private static String hash(String filename) throws IOException {
+        File file = new File(filename);
+        if (!file.isFile()) return "";
+        MessageDigest digest = null;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IOException("no SHA-256 available", nsae);
+        }
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int len;
+            while ((len = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, len);
+            }
+        }
+        StringBuilder buffer = new StringBuilder();
+        for (byte b : digest.digest()) {
+            buffer.append(String.format("%02x", b));
+        }
+        return buffer.toString();
+    }
+
+    /**
+     * This method writes a node and everything nested in it.
+     * @param out the stream to write to.
+     * @param node the node to write.
+     * @throws IOException if the write fails.
+     */
+
+    private static void writeNode(DataOutputStream out, command.CommandNode node) throws IOException {
+        out.writeUTF(node.getName());
+        String[] names = node.getAttributeNames();
+        out.writeInt(names.length);
+        for (String name : names) {
+            out.writeUTF(name);
+            writeString(out, node.getAttribute(name));
+        }
+        out.writeInt(node.size());
+        for (int i = 0; i < node.size(); i++) {
+            writeNode(out, node.get(i));
+        }
+    }
+
+    /**
+     * This method reads a node and everything nested in it.
+     * @param in the stream to read from.
+     * @return the node that was read.
+     * @throws IOException if the read fails.
+     */
+
+    private static command.CommandNode readNode(DataInputStream in) throws IOException {
+        command.CommandNode node = new command.CommandNode(in.readUTF());
+        int attributeCount = in.readInt();
+        for (int i = 0; i < attributeCount; i++) {
+            node.setAttribute(in.readUTF(), readString(in));
+        }
+        int childCount = in.readInt();
+        for (int i = 0; i < childCount; i++) {
+            node.appendChild(readNode(in));
+        }
+        return node;
+    }
+
+    /**
+     * This method writes a String that may be null.
+     * @param out the stream to write to.
+     * @param value the String to write.
+     * @throws IOException if the write fails.
+     */
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) out.writeUTF(value);
+    }
+
+    /**
+     * This method reads a String that may be null.
+     * @param in the stream to read from.
+     * @return the String that was read, or null.
+     * @throws IOException if the read fails.
+     */
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -0,0 +1,164 @@
+import java.util.*;
+
+/**
+ * This class holds everything that was read from the build file in a single pass.  That is the
+ * project header, which gives the default target, the targets themselves and any commands that
+ * were declared at the project level, such as the build properties.
+ */
+
+public class Project {
+
+    private String name;
+    private String defaultTarget;
+    private String basedir;
+    private ArrayList<Target> targets;
+    private HashMap<String, Target> byName;
+    private ArrayList<command.Command> properties;
+    private ArrayList<command.CommandNode> propertyNodes;
+    private command.PropertyScope scope;
+    private LinkedHashMap<String, String> pools;
+
+    /**
+     * The constructor uses the attributes of the project tag.  Targets and project level
+     * commands are added while the rest of the build file is read.
+     * @param name the name attribute of the project tag.
+     * @param defaultTarget the default attribute of the project tag.
+     * @param basedir the basedir attribute of the project tag.
+     */
+
+    public Project(String name, String defaultTarget, String basedir) {
+        this.name = name;
+        this.defaultTarget = defaultTarget;
+        this.basedir = basedir;
+        targets = new ArrayList<>();
+        byName = new HashMap<>();
+        properties = new ArrayList<>();
+        propertyNodes = new ArrayList<>();
+        pools = new LinkedHashMap<>();
+    }
+
+    /**
+     * This method adds a target to the project, in the order they are found in the build file.
+     * @param target the target to add.
+     */
+
+    public void appendTarget(Target target) {
+        targets.add(target);
+        byName.putIfAbsent(target.targetName(), target);
+    }
+
+    /**
+     * This method finds a target by its name.  If the build file has the same name twice, the
+     * first one wins, which is what the build always did.
+     * @param name the name of the target.
+     * @return the target, or null if there is no target by that name.
+     */
+
+    public Target getTarget(String name) {
+        return byName.get(name);
+    }
+
+    /**
+     * This method adds a command that was found outside of any target, such as a property.
+     * @param cmd the project level command to add.
+     * @param node the parsed node the command was made from.
+     */
+
+    public void appendProperty(command.Command cmd, command.CommandNode node) {
+        properties.add(cmd);
+        propertyNodes.add(node);
+    }
+
+    /**
+     * This method returns the name of the project.
+     * @return the name of the project, or null if it was not given.
+     */
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * This method returns the target that is built when no target is given on the command line.
+     * @return the name of the default target.
+     */
+
+    public String getDefaultTarget() {
+        return defaultTarget;
+    }
+
+    /**
+     * This method returns the base directory of the project.
+     * @return the basedir attribute, or null if it was not given.
+     */
+
+    public String getBasedir() {
+        return basedir;
+    }
+
+    /**
+     * This method returns all of the targets in the order they are found in the build file.
+     * @return the ArrayList of targets.
+     */
+
+    public ArrayList<Target> getTargets() {
+        return targets;
+    }
+
+    /**
+     * This method returns the commands that were declared at the project level.
+     * @return the ArrayList of project level commands.
+     */
+
+    public ArrayList<command.Command> getProperties() {
+        return properties;
+    }
+
+    /**
+     * This method returns the parsed nodes of the project level commands, in the same order
+     * as getProperties().
+     * @return the ArrayList of project level nodes.
+     */
+
+    public ArrayList<command.CommandNode> getPropertyNodes() {
+        return propertyNodes;
+    }
+
+    /**
+     * This method returns the build properties of the project once they have been gathered.
+     * Each target sees these with its own properties on top, see Target.getScope().
+     * @return the project scope, or null if the properties have not been gathered yet.
+     */
+
+    public command.PropertyScope getScope() {
+        return scope;
+    }
+
+    /**
+     * This method keeps the build properties of the project.
+     * @param scope the project scope.
+     */
+
+    public void setScope(command.PropertyScope scope) {
+        this.scope = scope;
+    }
+
+    /**
+     * This method declares a resource pool that limits how many commands of a kind run at once.
+     * @param name the name of the pool, such as forks, cpu or io.
+     * @param size the number of permits, or ncores for one per core.
+     */
+
+    public void appendPool(String name, String size) {
+        pools.put(name, size);
+    }
+
+    /**
+     * This method returns the resource pools that were declared in the project.
+     * @return the size of each pool by name, as it was written in the build file.
+     */
+
+    public LinkedHashMap<String, String> getPools() {
+        return pools;
+    }
+}
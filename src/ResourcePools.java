@@ -0,0 +1,93 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * This class limits how many commands of a kind run at the same time when targets run in
+ * parallel.  The pools are declared in the project with tags like these, and a size of ncores
+ * means one permit per core.
+ * <pre>
+ * &lt;pool name="forks" size="4"/&gt;
+ * &lt;pool name="io" size="2"/&gt;
+ * &lt;pool name="cpu" size="ncores"/&gt;
+ * </pre>
+ * Each command says which pools it draws from, see Command.getPools(), and only starts once it
+ * has a permit from every one of them.  A pool that is not declared has no limit.
+ */
+
+public class ResourcePools {
+
+    private static final String NCORES = "ncores";
+
+    private final TreeMap<String, Semaphore> pools = new TreeMap<>();
+
+    /**
+     * The constructor creates the pools that were declared in the project.
+     * @param sizes the size of each pool by name, as it was written in the build file.
+     */
+
+    public ResourcePools(Map<String, String> sizes) {
+        for (Map.Entry<String, String> entry : sizes.entrySet()) {
+            int size = 1;
+            String value = entry.getValue() == null ? "" : entry.getValue().trim();
+            if (value.equalsIgnoreCase(NCORES)) {
+                size = Runtime.getRuntime().availableProcessors();
+            } else {
+                try {
+                    size = Integer.parseInt(value);
+                } catch (NumberFormatException nfe) {
+                    System.out.println("pool " + entry.getKey() + " has a bad size '" + value + "', using 1");
+                }
+            }
+            pools.put(entry.getKey(), new Semaphore(Math.max(size, 1), true));
+        }
+    }
+
+    /**
+     * This method waits for a permit from each pool the command needs.  The pools are always
+     * taken in the same order, by name, so two commands can never hold a permit the other one
+     * is waiting for.
+     * @param cmd the command that is about to run.
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+
+    public void acquire(command.Command cmd) throws InterruptedException {
+        ArrayList<Semaphore> needed = needed(cmd);
+        for (int i = 0; i < needed.size(); i++) {
+            try {
+                needed.get(i).acquire();
+            } catch (InterruptedException ie) {
+                for (int j = 0; j < i; j++) {
+                    needed.get(j).release();
+                }
+                throw ie;
+            }
+        }
+    }
+
+    /**
+     * This method gives back the permits taken by acquire().
+     * @param cmd the command that is done.
+     */
+
+    public void release(command.Command cmd) {
+        for (Semaphore pool : needed(cmd)) {
+            pool.release();
+        }
+    }
+
+    /**
+     * This method returns the declared pools the command draws from, sorted by name.
+     * @param cmd the command.
+     * @return the pools, without the ones that were not declared.
+     */
+
+    private ArrayList<Semaphore> needed(command.Command cmd) {
+        TreeSet<String> names = new TreeSet<>(Arrays.asList(cmd.getPools()));
+        ArrayList<Semaphore> result = new ArrayList<>();
+        for (String name : names) {
+            Semaphore pool = pools.get(name);
+            if (pool != null) result.add(pool);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,288 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * This class runs the targets of a build at the same time when they do not depend on each other.
+ * A target is started, on a work stealing pool, as soon as every target in its depends list has
+ * finished.  The entries of one depends list only wait for each other when they would get in
+ * each other's way, which is when a target one of them brings in writes a file or directory
+ * that a target a later one brings in reads or writes, like depends="clean, makedir".  Those
+ * run in the order a build on one thread would run them, and everything else shares the
+ * cores.  The output of each target is held back and printed in one piece when the target is done so it does not get mixed
+ * up with the output of the others.  When more targets are ready than there are threads, the
+ * one with the longest expected chain still ahead of it, see CriticalPath, is started first.
+ * Commands inside the targets are further limited by the resource pools of the project.
+ */
+
+public class Scheduler {
+
+    private final Project project;
+    private final int threads;
+    private final boolean debug;
+    private final HashMap<Target, Integer> waitingOn = new HashMap<>();
+    private final HashMap<Target, ArrayList<Target>> dependents = new HashMap<>();
+    private final PriorityQueue<Target> ready;
+    private final ResourcePools pools;
+    private final TargetState state;
+    private HashMap<Target, Long> started;
+    private HashMap<Target, Long> finished;
+    private HashSet<Target> skipped;
+    private GroupedOutput output;
+    private ForkJoinPool pool;
+    private int remaining;
+    private int running;
+    private Throwable failure;
+
+    /**
+     * The constructor sets up a scheduler for a project.
+     * @param project the project the targets belong to.
+     * @param threads the most targets that are run at the same time.
+     * @param path the ranks of the targets, used to pick which ready target starts first.
+     * @param state the fingerprints used to skip targets that are up to date.
+     * @param debug the boolean that determines if debugging is to be used.
+     */
+
+    public Scheduler(Project project, int threads, final CriticalPath path, TargetState state, boolean debug) {
+        this.project = project;
+        this.state = state;
+        this.threads = threads;
+        this.debug = debug;
+        pools = new ResourcePools(project.getPools());
+        ready = new PriorityQueue<>(new Comparator<Target>() {
+            public int compare(Target a, Target b) {
+                int result = Long.compare(path.rank(b), path.rank(a));
+                return result != 0 ? result : Integer.compare(path.position(a), path.position(b));
+            }
+        });
+    }
+
+    /**
+     * This method makes a target wait for another one to finish, if it is not waiting already.
+     * @param before the target that runs first.
+     * @param after the target that waits for it.
+     */
+
+    private void addEdge(Target before, Target after) {
+        if (dependents.get(before).contains(after)) return;
+        dependents.get(before).add(after);
+        waitingOn.put(after, waitingOn.get(after) + 1);
+    }
+
+    /**
+     * This method runs the targets and waits for them to finish.  After a target fails no new
+     * targets are started, the ones that are already running are allowed to finish and then the
+     * failure is thrown again here.
+     * @param order the targets to run, each one after all of the targets it depends on.
+     * @param started filled in with when each target started, from System.nanoTime().
+     * @param finished filled in with when each target that worked finished.
+     * @param skipped filled in with the targets that were up to date and did not run.
+     */
+
+    public void run(ArrayList<Target> order, HashMap<Target, Long> started, HashMap<Target, Long> finished, HashSet<Target> skipped) {
+        this.started = started;
+        this.finished = finished;
+        this.skipped = skipped;
+        HashMap<Target, Integer> positions = new HashMap<>();
+        for (Target target : order) {
+            positions.put(target, positions.size());
+            dependents.put(target, new ArrayList<Target>());
+            waitingOn.put(target, 0);
+        }
+        HashMap<Target, LinkedHashSet<Target>> closures = new HashMap<>();
+        HashMap<Target, ArrayList<Path>> reads = new HashMap<>();
+        HashMap<Target, ArrayList<Path>> writes = new HashMap<>();
+        for (Target target : order) {
+            reads.put(target, paths(target, false));
+            writes.put(target, paths(target, true));
+        }
+        for (Target target : order) {
+            String[] depends = target.getDependencies();
+            ArrayList<Target> siblings = new ArrayList<>();
+            for (int i = 0; depends != null && i < depends.length; i++) {
+                Target dependency = project.getTarget(depends[i]);
+                if (dependency == null || !positions.containsKey(dependency)) continue;
+                addEdge(dependency, target);
+                siblings.add(dependency);
+            }
+            // each edge points forward in BuildGraph.order(), like the depends do, so none of
+            // them can make a cycle
+            for (int i = 0; i < siblings.size(); i++) {
+                LinkedHashSet<Target> earlier = closure(siblings.get(i), positions, closures);
+                for (int j = i + 1; j < siblings.size(); j++) {
+                    LinkedHashSet<Target> later = closure(siblings.get(j), positions, closures);
+                    for (Target before : earlier) {
+                        if (later.contains(before)) continue;
+                        for (Target after : later) {
+                            if (earlier.contains(after) || positions.get(before) >= positions.get(after)) continue;
+                            if (overlap(writes.get(before), writes.get(after)) || overlap(writes.get(before), reads.get(after))
+                                    || overlap(reads.get(before), writes.get(after))) {
+                                addEdge(before, after);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        PrintStream console = System.out;
+        output = new GroupedOutput(console);
+        System.setOut(new PrintStream(output, true));
+        pool = new ForkJoinPool(threads, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+        if (debug) System.out.println("running " + order.size() + " targets on " + threads + " threads");
+        try {
+            synchronized (this) {
+                remaining = order.size();
+                for (Target target : order) {
+                    if (waitingOn.get(target) == 0) start(target);
+                }
+                while (remaining > 0 && (failure == null || running > 0)) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+        } finally {
+            pool.shutdown();
+            System.setOut(console);
+        }
+        if (failure instanceof RuntimeException) throw (RuntimeException) failure;
+        if (failure instanceof Error) throw (Error) failure;
+    }
+
+    /**
+     * This method returns a target and every target it depends on, directly or not, that is in
+     * the build.  Each closure is only worked out once.
+     * @param target the target.
+     * @param positions where each target of the build is in the order.
+     * @param closures the closures that were already worked out.
+     * @return the targets.
+     */
+
+    private LinkedHashSet<Target> closure(Target target, HashMap<Target, Integer> positions,
+            HashMap<Target, LinkedHashSet<Target>> closures) {
+        LinkedHashSet<Target> result = closures.get(target);
+        if (result != null) return result;
+        result = new LinkedHashSet<>();
+        closures.put(target, result);
+        String[] depends = target.getDependencies();
+        for (int i = 0; depends != null && i < depends.length; i++) {
+            Target dependency = project.getTarget(depends[i]);
+            if (dependency == null || !positions.containsKey(dependency)) continue;
+            result.addAll(closure(dependency, positions, closures));
+        }
+        result.add(target);
+        return result;
+    }
+
+    /**
+     * This method returns the files and directories the commands of a target declare, as
+     * absolute paths.  A command that cannot say what it uses adds nothing, so it is only
+     * ordered by its depends.
+     * @param target the target.
+     * @param outputs true for what the target writes, false for what it reads.
+     * @return the paths.
+     */
+
+    private static ArrayList<Path> paths(Target target, boolean outputs) {
+        ArrayList<Path> result = new ArrayList<>();
+        for (int i = 0; i < target.size(); i++) {
+            String[] declared = outputs ? target.get(i).getOutputs() : target.get(i).getInputs();
+            for (int j = 0; declared != null && j < declared.length; j++) {
+                try {
+                    result.add(Paths.get(declared[j]).toAbsolutePath().normalize());
+                } catch (InvalidPathException ipe) {
+                    // a path that cannot be a file cannot get in anybody's way
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * This method determines if two sets of paths touch, which is when a path of one is the same
+     * as, or inside, or around a path of the other.
+     * @param first the first paths.
+     * @param second the second paths.
+     * @return true if they overlap.
+     */
+
+    private static boolean overlap(ArrayList<Path> first, ArrayList<Path> second) {
+        for (Path a : first) {
+            for (Path b : second) {
+                if (a.startsWith(b) || b.startsWith(a)) return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * This method puts a target whose dependencies are all done on the ready queue and hands the
+     * pool a task to run one ready target.  The task takes whichever ready target has the highest
+     * rank when it gets a thread, not necessarily this one.  It must be called while holding the
+     * lock of this object.
+     * @param target the target that is ready.
+     */
+
+    private void start(Target target) {
+        running++;
+        ready.add(target);
+        pool.execute(new RecursiveAction() {
+            private static final long serialVersionUID = 1L;
+
+            protected void compute() {
+                Target target = next();
+                Throwable error = null;
+                boolean ran = true;
+                output.begin();
+                try {
+                    ran = Bee.execute(target, pools, state, debug);
+                } catch (Throwable t) {
+                    error = t;
+                    System.out.println("[ " + target.targetName() + " failed: " + t.getMessage() + " ]");
+                } finally {
+                    output.end();
+                }
+                finish(target, error, ran);
+            }
+        });
+    }
+
+    /**
+     * This method takes the ready target with the highest rank off the queue.
+     * @return the target to run.
+     */
+
+    private synchronized Target next() {
+        Target target = ready.poll();
+        started.put(target, System.nanoTime());
+        return target;
+    }
+
+    /**
+     * This method records that a target is done and starts every target that was only waiting
+     * on it.  The first failure stops any more targets from being started.
+     * @param target the target that finished.
+     * @param error what the target failed with, or null if it worked.
+     * @param ran false if the target was up to date and skipped.
+     */
+
+    private synchronized void finish(Target target, Throwable error, boolean ran) {
+        running--;
+        remaining--;
+        if (error == null) finished.put(target, System.nanoTime());
+        if (!ran) skipped.add(target);
+        if (error != null && failure == null) failure = error;
+        if (failure == null) {
+            for (Target dependent : dependents.get(target)) {
+                int count = waitingOn.get(dependent) - 1;
+                waitingOn.put(dependent, count);
+                if (count == 0) start(dependent);
+            }
+        }
+        notifyAll();
+    }
+}
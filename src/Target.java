@@ -14,6 +14,9 @@ public class Target  {
     private String name;
     private String[] depends;
     private ArrayList<command.Command> siblings;
+    private ArrayList<command.CommandNode> nodes;
+    private ArrayList<command.CommandNode> pending;
+    private command.PropertyScope scope;
 
     /**
      * The constructor uses and XML node and sets up the Target for use by the
@@ -35,26 +38,39 @@ public class Target  {
      */
 
     public Target(Node currentNode, boolean debug) {
-        this.name = currentNode.getAttributes().getNamedItem("name").getNodeValue();
+        this(currentNode.getAttributes().getNamedItem("name").getNodeValue(),
+            ((Element)currentNode).hasAttribute("depends") ? ((Element)currentNode).getAttribute("depends") : null,
+            debug);
+    }
+
+    /**
+     * The constructor uses the attributes read by the streaming parser and sets up the
+     * Target for use by the build tool.
+     * @param name the name attribute of the target tag.
+     * @param dependents the comma separated depends attribute of the target tag, or null
+     * if the target has no dependencies.
+     * @param debug the boolean flag used to determine if debugging is turned on.
+     */
+
+    public Target(String name, String dependents, boolean debug) {
+        this.name = name;
         if (debug) System.out.println("target name: " + name);
         siblings = new ArrayList<command.Command>();
-        boolean hasDependents = ((Element)currentNode).hasAttribute("depends");
-        if (hasDependents) {
-            String dependents = currentNode.getAttributes().getNamedItem("depends").getNodeValue();
-            if (dependents != null) {
-                if (dependents.indexOf(",") == NOT_FOUND) {
-                    depends = new String[]{dependents};
-                    if (debug) {
-                        for (String temp : depends) {
-                            System.out.println("dependent: " + temp);
-                        }
+        nodes = new ArrayList<command.CommandNode>();
+        pending = new ArrayList<command.CommandNode>();
+        if (dependents != null) {
+            if (dependents.indexOf(",") == NOT_FOUND) {
+                depends = new String[]{dependents.trim()};
+                if (debug) {
+                    for (String temp : depends) {
+                        System.out.println("dependent: " + temp);
                     }
-                } else {
-                    depends = dependents.split(",");
-                     if (debug) {
-                        for (String temp : depends) {
-                            System.out.println("dependent: " + temp);
-                        }
+                }
+            } else {
+                depends = dependents.trim().split("\\s*,\\s*");
+                 if (debug) {
+                    for (String temp : depends) {
+                        System.out.println("dependent: " + temp);
                     }
                 }
             }
@@ -77,7 +93,67 @@ public class Target  {
      */
 
     public void appendCommand(command.Command child) {
+        appendCommand(child, null);
+    }
+
+    /**
+     * This function adds command to the target stack along with the parsed node it was made
+     * from.  The node is kept so the target can be written to the build plan cache.
+     * @param child  The command to be added to the stack.
+     * @param node  The parsed node the command was made from, or null if it is unknown.
+     */
+
+    public void appendCommand(command.Command child, command.CommandNode node) {
         siblings.add(child); 
+        nodes.add(node);
+    }
+
+    /**
+     * This function adds a tag that has been read but not turned into a command yet.  Targets
+     * stay as these lightweight stubs until they are needed for the build, see parseCommands().
+     * @param node  The parsed node to keep for later.
+     */
+
+    public void appendNode(command.CommandNode node) {
+        pending.add(node);
+    }
+
+    /**
+     * This method determines if the commands of this target have been made.
+     * @return true if there are no tags left waiting to be turned into commands.
+     */
+
+    public boolean isParsed() {
+        return pending.isEmpty();
+    }
+
+    /**
+     * This method turns the tags that were kept by appendNode() into commands.  Tags that are
+     * not commands, such as description, are dropped.  Calling it again does nothing.
+     * @param debug the boolean flag used to determine if debugging is turned on.
+     */
+
+    public void parseCommands(boolean debug) {
+        for (int i = 0; i < pending.size(); i++) {
+            command.CommandNode node = pending.get(i);
+            if (debug) System.out.println("converting " + node.getName().toLowerCase());
+            command.Command cmd = command.CommandFactory.getCommandForNode(node, debug);
+            if (cmd != null) {
+                if (debug) System.out.println(name + " -> " + cmd.commandName());
+                appendCommand(cmd, node);
+            }
+        }
+        pending.clear();
+    }
+
+    /**
+     * This method returns the parsed node that the command at the specified index was made from.
+     * @param index The index value of a 0 based array.
+     * @return the node for the command, or null if it was not kept.
+     */
+
+    public command.CommandNode getNode(int index) {
+        return nodes.get(index);
     }
 
     /**
@@ -146,4 +222,24 @@ public class Target  {
     public String[] getDependencies() {
         return depends;
     }
+
+    /**
+     * This method returns the build properties this target sees.  That is the project
+     * properties with the properties defined by this target and the targets it depends on
+     * on top.
+     * @return the scope, or null if the properties have not been gathered yet.
+     */
+
+    public command.PropertyScope getScope() {
+        return scope;
+    }
+
+    /**
+     * This method keeps the build properties this target sees.
+     * @param scope the scope of the target.
+     */
+
+    public void setScope(command.PropertyScope scope) {
+        this.scope = scope;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,226 @@
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * This class decides if a target can be skipped because nothing it reads or writes has changed
+ * since the last time it worked.  Every command says what its inputs and outputs are, see
+ * Command.getInputs() and Command.getOutputs(), and the target is fingerprinted from those files
+ * together with the commands themselves.  The files are fingerprinted by their contents, which
+ * come from the shared command.FileFingerprints so a file is only read again when its stat data
+ * changed.  Inputs where only the ABI matters, like the classpath of javac, are fingerprinted by
+ * their ABI instead, see command.Abi, so a change to the code of a method in a library does not
+ * make everything compiled against it run again.  The fingerprint of each target is kept in a small text file next to the plan cache,
+ * so a build where nothing changed does almost no work.
+ */
+
+public class TargetState {
+
+    private static final String STATE_DIR = ".bee";
+    private static final String STATE_FILE = "state";
+
+    private final File file;
+    private final ConcurrentHashMap<String, String> fingerprints = new ConcurrentHashMap<>();
+
+    /**
+     * The constructor reads the fingerprints that belong to a build file.  A missing or
+     * unreadable file just means every target runs.
+     * @param filename the build file.
+     */
+
+    public TargetState(String filename) {
+        File parent = new File(filename).getAbsoluteFile().getParentFile();
+        file = new File(new File(parent, STATE_DIR), STATE_FILE);
+        if (!file.exists()) return;
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (tab != -1) fingerprints.put(line.substring(tab + 1), line.substring(0, tab));
+            }
+        } catch (IOException ioe) {
+            fingerprints.clear();
+        }
+    }
+
+    /**
+     * This method determines if a target can be skipped.  That is when every command in it
+     * declares its inputs and outputs and none of them, nor the commands, changed since the
+     * target last worked.  A target without any outputs, like one that only echoes, is never
+     * skipped, since what it does is not left anywhere to be up to date, and neither is one that
+     * deletes, since its outputs looking the same as last time is what it has to change.
+     * @param target the target to check.
+     * @return true if the target does not need to run.
+     */
+
+    public boolean isUpToDate(Target target) {
+        if (!producesOutputs(target)) return false;
+        String known = fingerprints.get(target.targetName());
+        if (known == null) return false;
+        String current = fingerprint(target);
+        return current != null && current.equals(known);
+    }
+
+    /**
+     * This method records that a target worked, with the fingerprint its files have now.  A
+     * target that cannot be fingerprinted is forgotten so it runs next time.
+     * @param target the target that worked.
+     */
+
+    public void record(Target target) {
+        String current = fingerprint(target);
+        if (current == null) {
+            fingerprints.remove(target.targetName());
+        } else {
+            fingerprints.put(target.targetName(), current);
+        }
+    }
+
+    /**
+     * This method determines if a target leaves something behind that can be up to date, which
+     * is when a command declares an output and no command deletes one.
+     * @param target the target.
+     * @return true if the target produces outputs.
+     */
+
+    private static boolean producesOutputs(Target target) {
+        boolean result = false;
+        for (int i = 0; i < target.size(); i++) {
+            if (target.get(i) instanceof command.DeleteCommand) return false;
+            String[] outputs = target.get(i).getOutputs();
+            if (outputs != null && outputs.length > 0) result = true;
+        }
+        return result;
+    }
+
+    /**
+     * This method forgets a target, so that it runs on the next build.  It is used when a
+     * target fails part way through.
+     * @param target the target to forget.
+     */
+
+    public void forget(Target target) {
+        fingerprints.remove(target.targetName());
+    }
+
+    /**
+     * This method writes the fingerprints back to their file.  Failing to write them is only
+     * reported, the next build just runs more than it has to.
+     */
+
+    public void save() {
+        file.getParentFile().mkdirs();
+        try (PrintWriter writer = new PrintWriter(new FileWriter(file))) {
+            for (Map.Entry<String, String> entry : fingerprints.entrySet()) {
+                writer.println(entry.getValue() + "\t" + entry.getKey());
+            }
+        } catch (IOException ioe) {
+            System.out.println("unable to save target state: " + ioe.getMessage());
+        }
+    }
+
+    /**
+     * This method fingerprints a target from its commands and from the contents of every file
+     * under its inputs and outputs.
+     * @param target the target to fingerprint.
+     * @return the fingerprint as a hex String, or null if a command does not declare its
+     * inputs and outputs.
+     */
+
+    private String fingerprint(Target target) {
+        MessageDigest digest = null;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException nsae) {
+            return null;
+        }
+        for (int i = 0; i < target.size(); i++) {
+            command.Command cmd = target.get(i);
+            String[] inputs = cmd.getInputs();
+            String[] outputs = cmd.getOutputs();
+            if (inputs == null || outputs == null) return null;
+            List<String> abiInputs = Arrays.asList(cmd.getAbiInputs());
+            update(digest, "command " + cmd.commandName() + " " + cmd.toString());
+            try {
+                for (String input : inputs) {
+                    if (abiInputs.contains(input)) {
+                        update(digest, "abi " + input + " " + command.Abi.fingerprint(input));
+                        continue;
+                    }
+                    update(digest, "input " + input);
+                    fingerprint(digest, input);
+                }
+                for (String output : outputs) {
+                    update(digest, "output " + output);
+                    fingerprint(digest, output);
+                }
+            } catch (IOException ioe) {
+                return null;
+            }
+        }
+        StringBuilder buffer = new StringBuilder();
+        for (byte b : digest.digest()) {
+            buffer.append(String.format("%02x", b));
+        }
+        return buffer.toString();
+    }
+
+    /**
+     * This method adds every file under a path to the fingerprint, in sorted order, with the
+     * hash of its contents.  The files are looked up all at once so the ones that changed can be
+     * hashed in parallel.  A path that does not exist is recorded as missing.
+     * @param digest the fingerprint being built.
+     * @param path the file or directory.
+     * @throws IOException if the directory cannot be walked or a file cannot be read.
+     */
+
+    private static void fingerprint(final MessageDigest digest, String path) throws IOException {
+        final Path root = Paths.get(path);
+        if (!Files.exists(root)) {
+            update(digest, "missing");
+            return;
+        }
+        final TreeMap<String, Path> entries = new TreeMap<>();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                entries.put(root.relativize(file).toString(), file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                entries.put(root.relativize(dir).toString() + "/", null);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        ArrayList<Path> files = new ArrayList<>();
+        for (Path file : entries.values()) {
+            if (file != null) files.add(file);
+        }
+        Map<Path, command.FileFingerprints.Fingerprint> known = command.FileFingerprints.getInstance().fingerprintAll(files);
+        for (Map.Entry<String, Path> entry : entries.entrySet()) {
+            if (entry.getValue() == null) {
+                update(digest, entry.getKey() + " dir");
+            } else {
+                command.FileFingerprints.Fingerprint fingerprint = known.get(entry.getValue());
+                update(digest, entry.getKey() + " " + (fingerprint == null ? "missing" : fingerprint.hashString()));
+            }
+        }
+    }
+
+    /**
+     * This method adds a line of text to the fingerprint.
+     * @param digest the fingerprint being built.
+     * @param text the text to add.
+     */
+
+    private static void update(MessageDigest digest, String text) {
+        try {
+            digest.update((text + "\n").getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException uee) {
+            digest.update((text + "\n").getBytes());
+        }
+    }
+}
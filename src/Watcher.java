@@ -0,0 +1,313 @@
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * This class builds a target over and over, each time something it reads changes, so nobody has
+ * to run bee by hand after every save.  It watches the inputs of every command the target needs,
+ * see Command.getInputs(), together with the build file.  A burst of changes, like an editor
+ * saving several files, is collected into one rebuild.  Only the targets that read a changed file
+ * and the targets that depend on them are run again, and the project stays in memory between
+ * rebuilds, so a rebuild costs about as much as the commands it runs.
+ */
+
+public class Watcher {
+
+    private static final long DEBOUNCE = 200;
+    private static final String STATE_DIR = ".bee";
+
+    private final String filename;
+    private final String requested;
+    private final command.Dictionary overrides;
+    private final int threads;
+    private final boolean debug;
+    private final Path buildFile;
+    private final HashMap<WatchKey, Path> keys = new HashMap<>();
+    private Project project;
+    private ArrayList<Target> order;
+    private boolean overflow;
+
+    /**
+     * The constructor sets up a watch on a target of a build file.  Nothing is read until run
+     * is called.
+     * @param filename the build file.
+     * @param requested the target given on the command line, or null for the default target.
+     * @param overrides the build properties given on the command line with -D.
+     * @param threads the most targets that are run at the same time.
+     * @param debug the boolean that determines if debugging is to be used.
+     */
+
+    public Watcher(String filename, String requested, command.Dictionary overrides, int threads, boolean debug) {
+        this.filename = filename;
+        this.requested = requested;
+        this.overrides = overrides;
+        this.threads = threads;
+        this.debug = debug;
+        buildFile = Paths.get(filename).toAbsolutePath().normalize();
+    }
+
+    /**
+     * This method builds the target once and then waits for changes and builds again, until the
+     * process is stopped.  A build that fails is reported and the watch carries on.
+     */
+
+    public void run() {
+        if (!load()) return;
+        BuildHistory history = new BuildHistory(filename);
+        TargetState state = new TargetState(filename);
+        build(order, history, state);
+        try (WatchService service = FileSystems.getDefault().newWatchService()) {
+            register(service);
+            System.out.println("watching " + keys.size() + " directories, press ctrl-c to stop");
+            HashSet<Path> pending = new HashSet<>();
+            while (true) {
+                HashSet<Path> changed = pending;
+                if (changed.isEmpty() && !overflow) collect(service.take(), changed, service);
+                WatchKey key;
+                while ((key = service.poll(DEBOUNCE, TimeUnit.MILLISECONDS)) != null) {
+                    collect(key, changed, service);
+                }
+                ArrayList<Target> affected;
+                if (changed.contains(buildFile)) {
+                    System.out.println("build file changed, reading it again");
+                    if (!load()) continue;
+                    register(service);
+                    affected = order;
+                } else if (overflow) {
+                    affected = order;
+                } else {
+                    affected = affected(changed);
+                }
+                overflow = false;
+                pending = new HashSet<>();
+                if (affected.isEmpty()) continue;
+                if (debug) System.out.println("changed: " + changed);
+                build(affected, history, state);
+                pending = drain(service, affected);
+                register(service);
+            }
+        } catch (IOException ioe) {
+            System.out.println("unable to watch for changes: " + ioe.getMessage());
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * This method reads the plan and works out the order of the targets.
+     * @return true if the target can be built.
+     */
+
+    private boolean load() {
+        Project loaded = Bee.loadPlan(filename, requested, overrides);
+        String target = Bee.targetToBuild(loaded, requested);
+        try {
+            ArrayList<Target> loadedOrder = BuildGraph.order(loaded, target);
+            if (loadedOrder.isEmpty()) {
+                System.out.println("No target " + target + " to build");
+                return false;
+            }
+            project = loaded;
+            order = loadedOrder;
+            return true;
+        } catch (command.FailExecException fee) {
+            System.out.println(fee.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * This method runs some of the targets and reports how it went.
+     * @param targets the targets to run, in build order.
+     * @param history the timings of earlier builds.
+     * @param state the fingerprints used to skip targets that are up to date.
+     */
+
+    private void build(ArrayList<Target> targets, BuildHistory history, TargetState state) {
+        StringBuilder names = new StringBuilder();
+        for (Target target : targets) {
+            if (names.length() > 0) names.append(", ");
+            names.append(target.targetName());
+        }
+        System.out.println("building " + names);
+        try {
+            Bee.build(project, targets, threads, history, state);
+            System.out.println("Build complete, waiting for changes");
+        } catch (RuntimeException re) {
+            System.out.println("Build failed: " + re.getMessage() + ", waiting for changes");
+        }
+    }
+
+    /**
+     * This method works out which targets have to run again.  That is every target with an input
+     * at or above a changed file, and every target that depends on one of those.
+     * @param changed the files that changed.
+     * @return the targets to run, in build order.
+     */
+
+    private ArrayList<Target> affected(Set<Path> changed) {
+        HashSet<String> dirty = new HashSet<>();
+        for (Target target : order) {
+            boolean reads = false;
+            for (Path input : inputs(target)) {
+                for (Path path : changed) {
+                    if (path.startsWith(input)) reads = true;
+                }
+            }
+            String[] depends = target.getDependencies();
+            for (int i = 0; !reads && depends != null && i < depends.length; i++) {
+                if (dirty.contains(depends[i])) reads = true;
+            }
+            if (reads) dirty.add(target.targetName());
+        }
+        ArrayList<Target> result = new ArrayList<>();
+        for (Target target : order) {
+            if (dirty.contains(target.targetName())) result.add(target);
+        }
+        return result;
+    }
+
+    /**
+     * This method returns the inputs of every command in a target.
+     * @param target the target.
+     * @return the absolute paths of the inputs.
+     */
+
+    private static ArrayList<Path> inputs(Target target) {
+        ArrayList<Path> result = new ArrayList<>();
+        for (int i = 0; i < target.size(); i++) {
+            String[] inputs = target.get(i).getInputs();
+            for (int j = 0; inputs != null && j < inputs.length; j++) {
+                if (inputs[j] != null && inputs[j].length() > 0) {
+                    result.add(Paths.get(inputs[j]).toAbsolutePath().normalize());
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * This method watches the directory of the build file and every input of the targets.  An
+     * input directory is watched with everything under it, an input file through the directory
+     * it is in.  Directories that are already watched are left alone.
+     * @param service the watch service.
+     * @throws IOException if a directory cannot be watched.
+     */
+
+    private void register(WatchService service) throws IOException {
+        watch(service, buildFile.getParent());
+        for (Target target : order) {
+            for (Path input : inputs(target)) {
+                if (Files.isDirectory(input)) {
+                    watchTree(service, input);
+                } else if (input.getParent() != null && Files.isDirectory(input.getParent())) {
+                    watch(service, input.getParent());
+                }
+            }
+        }
+    }
+
+    /**
+     * This method watches a directory and every directory under it, except the state of bee.
+     * @param service the watch service.
+     * @param root the directory.
+     * @throws IOException if a directory cannot be watched.
+     */
+
+    private void watchTree(final WatchService service, Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if (dir.getFileName() != null && dir.getFileName().toString().equals(STATE_DIR)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                watch(service, dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * This method watches a single directory if it is not watched yet.
+     * @param service the watch service.
+     * @param dir the directory.
+     * @throws IOException if the directory cannot be watched.
+     */
+
+    private void watch(WatchService service, Path dir) throws IOException {
+        if (keys.containsValue(dir)) return;
+        WatchKey key = dir.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+        keys.put(key, dir);
+    }
+
+    /**
+     * This method adds the files a watch key saw change to a set and gets the key ready for
+     * more changes.  A new directory under a watched tree is watched as well.
+     * @param key the key that has events.
+     * @param changed the set of files that changed.
+     * @param service the watch service.
+     * @throws IOException if a new directory cannot be watched.
+     */
+
+    private void collect(WatchKey key, Set<Path> changed, WatchService service) throws IOException {
+        Path dir = keys.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                overflow = true;
+                continue;
+            }
+            if (dir == null) continue;
+            Path path = dir.resolve((Path) event.context()).normalize();
+            if (path.getFileName().toString().equals(STATE_DIR)) continue;
+            changed.add(path);
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+                watchTree(service, path);
+            }
+        }
+        if (!key.reset()) keys.remove(key);
+    }
+
+    /**
+     * This method throws away the changes the build made itself, so writing its outputs does not
+     * set off another build.  Only changes under the outputs of the targets that ran, and the
+     * temporary files they are written through, are thrown away.  Anything else, like a source
+     * saved while the build was running, is kept for the next build.
+     * @param service the watch service.
+     * @param built the targets that ran.
+     * @return the changes that were not made by the build.
+     * @throws IOException if a new directory cannot be watched.
+     * @throws InterruptedException if the watch is stopped.
+     */
+
+    private HashSet<Path> drain(WatchService service, ArrayList<Target> built) throws IOException, InterruptedException {
+        HashSet<Path> changed = new HashSet<>();
+        WatchKey key;
+        while ((key = service.poll(DEBOUNCE, TimeUnit.MILLISECONDS)) != null) {
+            collect(key, changed, service);
+        }
+        ArrayList<Path> outputs = new ArrayList<>();
+        for (Target target : built) {
+            for (int i = 0; i < target.size(); i++) {
+                String[] paths = target.get(i).getOutputs();
+                for (int j = 0; paths != null && j < paths.length; j++) {
+                    if (paths[j] != null && paths[j].length() > 0) {
+                        outputs.add(Paths.get(paths[j]).toAbsolutePath().normalize());
+                    }
+                }
+            }
+        }
+        Iterator<Path> paths = changed.iterator();
+        while (paths.hasNext()) {
+            Path path = paths.next();
+            for (Path output : outputs) {
+                if (path.startsWith(output) || path.equals(output.resolveSibling("." + output.getFileName() + ".tmp"))) {
+                    paths.remove();
+                    break;
+                }
+            }
+        }
+        return changed;
+    }
+}
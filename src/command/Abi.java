@@ -0,0 +1,173 @@
+package command;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+/**
+ * This class fingerprints what can be compiled against in a directory of classes or a jar,
+ * which is the ABI of every class in it, see ClassFile.getAbi(), together with the contents of
+ * everything that is not a class, like resources.  A change to the code of a method leaves the
+ * fingerprint as it was, so a javac tag whose classpath only changed that way has nothing to
+ * compile and its target can be skipped.  The ABI of each class file and each jar is
+ * remembered by the hash of its contents, see FileFingerprints, so only files that changed are
+ * read again.
+ */
+
+public class Abi {
+
+	private static final ConcurrentHashMap<String, String> known = new ConcurrentHashMap<>();
+
+	/**
+	 * The constructor is not used, everything here is static.
+	 */
+
+	private Abi() { }
+
+	/**
+	 * This method fingerprints a classpath entry by its ABI.
+	 * @param path the directory of classes or the jar.
+	 * @return the fingerprint as a hex String, which is the same for a missing entry each time.
+	 * @throws IOException if the entry cannot be read.
+	 */
+
+	public static String fingerprint(String path) throws IOException {
+		final Path root = Paths.get(path).toAbsolutePath().normalize();
+		if (!Files.exists(root)) return hash("missing");
+		if (!Files.isDirectory(root)) {
+			FileFingerprints.Fingerprint fingerprint = FileFingerprints.getInstance().fingerprint(root);
+			if (fingerprint == null) return hash("missing");
+			if (!isArchive(root)) return fingerprint.hashString();
+			return lookup("jar " + fingerprint.hashString(), root);
+		}
+		final TreeMap<String, Path> found = new TreeMap<>();
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				found.put(root.relativize(file).toString().replace(File.separatorChar, '/'), file);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		Map<Path, FileFingerprints.Fingerprint> fingerprints = FileFingerprints.getInstance().fingerprintAll(found.values());
+		StringBuilder buffer = new StringBuilder();
+		for (Map.Entry<String, Path> entry : found.entrySet()) {
+			FileFingerprints.Fingerprint fingerprint = fingerprints.get(entry.getValue());
+			if (fingerprint == null) continue;
+			if (entry.getKey().endsWith(".class")) {
+				buffer.append(lookup("class " + fingerprint.hashString(), entry.getValue())).append('\n');
+			} else {
+				buffer.append(entry.getKey()).append(' ').append(fingerprint.hashString()).append('\n');
+			}
+		}
+		return hash(buffer.toString());
+	}
+
+	/**
+	 * This method returns the ABI of a class as a hex String.
+	 * @param classFile the class.
+	 * @return the hash of its ABI.
+	 */
+
+	public static String of(ClassFile classFile) {
+		return hash(classFile.getAbi());
+	}
+
+	/**
+	 * This method returns the ABI fingerprint of a class file or jar, working it out only if the
+	 * contents have not been seen before.
+	 * @param key what the file is with the hash of its contents.
+	 * @param path the file.
+	 * @return the fingerprint.
+	 * @throws IOException if the file cannot be read.
+	 */
+
+	private static String lookup(String key, Path path) throws IOException {
+		String result = known.get(key);
+		if (result == null) {
+			result = key.startsWith("jar ") ? jar(path) : of(ClassFile.read(path.toFile()));
+			known.put(key, result);
+		}
+		return result;
+	}
+
+	/**
+	 * This method fingerprints a jar by the ABI of its classes and the CRC of everything else.
+	 * @param path the jar.
+	 * @return the fingerprint.
+	 * @throws IOException if the jar cannot be read.
+	 */
+
+	private static String jar(Path path) throws IOException {
+		TreeMap<String, String> entries = new TreeMap<>();
+		try (ZipFile zip = new ZipFile(path.toFile())) {
+			Enumeration<? extends ZipEntry> all = zip.entries();
+			while (all.hasMoreElements()) {
+				ZipEntry entry = all.nextElement();
+				if (entry.isDirectory()) continue;
+				if (entry.getName().endsWith(".class")) {
+					try (InputStream in = zip.getInputStream(entry)) {
+						entries.put(entry.getName(), of(ClassFile.read(readAll(in))));
+					}
+				} else {
+					entries.put(entry.getName(), Long.toHexString(entry.getCrc()));
+				}
+			}
+		}
+		StringBuilder buffer = new StringBuilder();
+		for (Map.Entry<String, String> entry : entries.entrySet()) {
+			buffer.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+		}
+		return hash(buffer.toString());
+	}
+
+	/**
+	 * This method determines if a file is an archive of classes.
+	 * @param path the file.
+	 * @return true for a jar or zip.
+	 */
+
+	private static boolean isArchive(Path path) {
+		String name = path.getFileName().toString().toLowerCase();
+		return name.endsWith(".jar") || name.endsWith(".zip");
+	}
+
+	/**
+	 * This method reads the rest of a stream.
+	 * @param in the stream.
+	 * @return the bytes.
+	 * @throws IOException if the stream cannot be read.
+	 */
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int len;
+		while ((len = in.read(buffer)) > 0) {
+			out.write(buffer, 0, len);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * This method hashes some text.
+	 * @param text the text.
+	 * @return the SHA-256 as a hex String.
+	 */
+
+	private static String hash(String text) {
+		try {
+			StringBuilder buffer = new StringBuilder();
+			for (byte b : MessageDigest.getInstance("SHA-256").digest(text.getBytes("UTF-8"))) {
+				buffer.append(String.format("%02x", b));
+			}
+			return buffer.toString();
+		} catch (GeneralSecurityException gse) {
+			return Integer.toHexString(text.hashCode());
+		} catch (UnsupportedEncodingException uee) {
+			return Integer.toHexString(text.hashCode());
+		}
+	}
+}
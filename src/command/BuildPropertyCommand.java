@@ -1,14 +1,19 @@
 package command;
 
 import org.w3c.dom.*;
+import java.io.*;
 
 /**
  * This class is used for the build properties XML tags that are found in the build file.
+ * A property tag either has a name with a value or a location, or it has a file of key=value
+ * pairs to load, see PropertyFile.
  */
 
 public class BuildPropertyCommand implements Command, Property {
     
 	private Tuple tuple;
+	private String file;
+	private boolean location;
 
 	/**
 	 * This constructor parses the XML node that is passed to it and creates
@@ -29,14 +34,27 @@ public class BuildPropertyCommand implements Command, Property {
 	 */
 
 	public BuildPropertyCommand(Node currentNode, boolean debug) { 
-		String name = null;
-		String value = null;
-		try {
-			name = currentNode.getAttributes().getNamedItem("name").getNodeValue();			
-			value = currentNode.getAttributes().getNamedItem("value").getNodeValue();
-		} catch (NullPointerException npe) {
+		this(CommandNode.fromNode(currentNode), debug);
+	}
+
+	/**
+	 * This constructor uses the node from the streaming parser and creates
+	 * what this tool needs to perform the command.
+	 * @param currentNode is the parsed node that is used for this command
+	 * @param debug the boolean flag for debugging purposes.
+	 */
+
+	public BuildPropertyCommand(CommandNode currentNode, boolean debug) { 
+		String name = currentNode.getAttribute("name");
+		String value = currentNode.getAttribute("value");
+		if (name != null && value == null && currentNode.getAttribute("location") != null) {
+			value = currentNode.getAttribute("location");
+			location = true;
+		}
+		if (name == null || value == null) {
+			file = currentNode.getAttribute("file");
 			name = "file";
-			value = currentNode.getAttributes().getNamedItem("file").getNodeValue();
+			value = file;
 		}
 		tuple = new Tuple(name, value);
 		if (debug) System.out.println("build property command: " + this.toString());
@@ -46,10 +64,10 @@ public class BuildPropertyCommand implements Command, Property {
 	 * This method is not used because this command is only a command for parsing ease. 
 	 * Its really a tuple but hasnt been converted yet.  However, it is part of the
 	 * command interface so it must be included.
-	 * @param dict is not used.
+	 * @param scope is not used.
  	 */
 
-	public void update(Dictionary dict) {
+	public void update(PropertyScope scope) {
 		// not implemented 
 	}
 
@@ -85,6 +103,30 @@ public class BuildPropertyCommand implements Command, Property {
 		return tuple;
 	}
 
+	/**
+	 * This method returns every key /value pair this property tag defines.  That is the one
+	 * pair for a name with a value, the name with the absolute path for a location, and
+	 * everything in the file for a property file.  The file and the location can use the build
+	 * properties that were defined before this tag.
+	 * @param scope the build properties defined so far.
+	 * @return the key /value pairs, empty if the property file does not exist.
+	 * @throws FailExecException if the property file cannot be read.
+	 */
+
+	public Tuple[] getTuples(PropertyScope scope) throws FailExecException {
+		if (location) {
+			return new Tuple[]{new Tuple(tuple.key, new File(Template.render(tuple.value, scope)).getAbsolutePath())};
+		}
+		if (file == null) return new Tuple[]{tuple};
+		String filename = Template.render(file, scope);
+		Tuple[] tuples = PropertyFile.load(filename);
+		if (tuples == null) {
+			System.out.println("property file " + filename + " not found");
+			return new Tuple[0];
+		}
+		return tuples;
+	}
+
 	/**
      * This function provides a way to get the name of the command token that is created.
 	 * This is used in the parsing function for the build tool to differentiate between a
@@ -96,6 +138,44 @@ public class BuildPropertyCommand implements Command, Property {
 		return COMMAND_TYPE.PROPERTY;
 	}
 
+	/**
+	 * This function returns the resource pools this command needs a permit from before it
+	 * can run.  This command does no work of its own, so it needs no pools.
+	 * @return the names of the pools.  See Command interface.
+	 */
+
+	public String[] getPools() {
+		return new String[0];
+	}
+
+	/**
+	 * This function returns the files and directories this command reads, which is nothing,
+	 * since the properties are read before the build starts.
+	 * @return the paths of the inputs.  See Command interface.
+	 */
+
+	public String[] getInputs() {
+		return new String[0];
+	}
+
+	/**
+	 * This function returns the files and directories this command writes.
+	 * @return the paths of the outputs.  See Command interface.
+	 */
+
+	public String[] getOutputs() {
+		return new String[0];
+	}
+
+	/**
+	 * This function returns the inputs of which only the ABI matters.
+	 * @return an empty array, since there are none.  See Command interface.
+	 */
+
+	public String[] getAbiInputs() {
+		return new String[0];
+	}
+
 	public String getValueForKey(String key) {
 		return tuple.value;
 	}
@@ -0,0 +1,517 @@
+package command;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * This class reads the parts of a compiled class file that the build cares about.  That is the
+ * name of the class, every other class it refers to, which comes from the constant pool and the
+ * type descriptors, and its fields and methods.  It does not load the class, the bytes are read
+ * directly, so it works for any class file javac writes.
+ * <p>
+ * It also gives the ABI of the class, see getAbi(), which is everything another class can be
+ * compiled against: the signatures of the members that are not private, the values of the
+ * constants, the generic signatures, the exceptions that are thrown and the annotations, but
+ * not the code of the methods.
+ */
+
+public class ClassFile {
+
+	private static final int MAGIC = 0xCAFEBABE;
+	private static final int ACC_PRIVATE = 0x0002;
+	private static final int ACC_SUPER = 0x0020;
+	private static final int ACC_SYNTHETIC = 0x1000;
+
+	private String name;
+	private String superName;
+	private int access;
+	private final LinkedHashSet<String> references = new LinkedHashSet<>();
+	private final ArrayList<String> interfaces = new ArrayList<>();
+	private final ArrayList<Member> fields = new ArrayList<>();
+	private final ArrayList<Member> methods = new ArrayList<>();
+	private final ArrayList<String> attributes = new ArrayList<>();
+	private boolean local;
+
+	/**
+	 * This class is a field or a method of a class.
+	 */
+
+	public static class Member {
+
+		public final int access;
+		public final String name;
+		public final String descriptor;
+		public final Object constant;
+		public final List<String> attributes;
+
+		/**
+		 * The constructor sets all of the values of the member.
+		 * @param access the access flags.
+		 * @param name the name.
+		 * @param descriptor the type descriptor.
+		 * @param constant the compile time constant of a field, or null if there is none.
+		 * @param attributes the generic signature, exceptions and annotations, as text.
+		 */
+
+		public Member(int access, String name, String descriptor, Object constant, List<String> attributes) {
+			this.access = access;
+			this.name = name;
+			this.descriptor = descriptor;
+			this.constant = constant;
+			this.attributes = attributes;
+		}
+
+		/**
+		 * This method returns the member as a line of the ABI of its class.
+		 * @return the line.
+		 */
+
+		private String abi() {
+			StringBuilder buffer = new StringBuilder();
+			buffer.append(access).append(' ').append(name).append(' ').append(descriptor);
+			if (constant != null) buffer.append(" = ").append(constant);
+			for (String attribute : attributes) {
+				buffer.append(' ').append(attribute);
+			}
+			return buffer.toString();
+		}
+	}
+
+	/**
+	 * The constructor is only used by read.
+	 */
+
+	private ClassFile() { }
+
+	/**
+	 * This method reads a class file.
+	 * @param file the class file.
+	 * @return what was read.
+	 * @throws IOException if the file cannot be read or is not a class file.
+	 */
+
+	public static ClassFile read(File file) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			return read(in);
+		}
+	}
+
+	/**
+	 * This method reads the bytes of a class file.
+	 * @param bytes the class file.
+	 * @return what was read.
+	 * @throws IOException if the bytes are not a class file.
+	 */
+
+	public static ClassFile read(byte[] bytes) throws IOException {
+		return read(new DataInputStream(new ByteArrayInputStream(bytes)));
+	}
+
+	/**
+	 * This method reads a class file from a stream.
+	 * @param in the stream, positioned at the start of the class file.
+	 * @return what was read.
+	 * @throws IOException if the stream cannot be read or is not a class file.
+	 */
+
+	private static ClassFile read(DataInputStream in) throws IOException {
+		if (in.readInt() != MAGIC) throw new IOException("not a class file");
+		in.readUnsignedShort();
+		in.readUnsignedShort();
+		int count = in.readUnsignedShort();
+		Object[] pool = new Object[count];
+		int[] tags = new int[count];
+		ArrayList<Integer> classes = new ArrayList<>();
+		for (int i = 1; i < count; i++) {
+			int tag = in.readUnsignedByte();
+			tags[i] = tag;
+			switch (tag) {
+				case 1:
+					pool[i] = in.readUTF();
+					break;
+				case 3:
+					pool[i] = in.readInt();
+					break;
+				case 4:
+					pool[i] = in.readFloat();
+					break;
+				case 5:
+					pool[i] = in.readLong();
+					i++;
+					break;
+				case 6:
+					pool[i] = in.readDouble();
+					i++;
+					break;
+				case 7:
+					classes.add(i);
+					pool[i] = in.readUnsignedShort();
+					break;
+				case 8:
+				case 16:
+				case 19:
+				case 20:
+					pool[i] = in.readUnsignedShort();
+					break;
+				case 9:
+				case 10:
+				case 11:
+				case 12:
+				case 17:
+				case 18:
+					in.readInt();
+					break;
+				case 15:
+					in.readUnsignedByte();
+					in.readUnsignedShort();
+					break;
+				default:
+					throw new IOException("unknown constant pool tag " + tag);
+			}
+		}
+		ClassFile result = new ClassFile();
+		for (int index : classes) {
+			result.addType((String) pool[(Integer) pool[index]]);
+		}
+		for (int i = 1; i < count; i++) {
+			// descriptors and signatures name classes too, a few extra names do no harm
+			if (tags[i] == 1) result.addDescriptor((String) pool[i]);
+		}
+		result.access = in.readUnsignedShort();
+		result.name = className(pool, in.readUnsignedShort());
+		result.superName = className(pool, in.readUnsignedShort());
+		int interfaceCount = in.readUnsignedShort();
+		for (int i = 0; i < interfaceCount; i++) {
+			result.interfaces.add(className(pool, in.readUnsignedShort()));
+		}
+		readMembers(in, pool, tags, result.fields);
+		readMembers(in, pool, tags, result.methods);
+		int attributes = in.readUnsignedShort();
+		for (int i = 0; i < attributes; i++) {
+			String attribute = (String) pool[in.readUnsignedShort()];
+			int length = in.readInt();
+			if (attribute.equals("InnerClasses")) {
+				int classCount = in.readUnsignedShort();
+				for (int j = 0; j < classCount; j++) {
+					String inner = className(pool, in.readUnsignedShort());
+					int outer = in.readUnsignedShort();
+					in.readUnsignedShort();
+					in.readUnsignedShort();
+					// a class with no outer class is a local or anonymous class
+					if (result.name.equals(inner) && outer == 0) result.local = true;
+				}
+			} else {
+				readAttribute(in, pool, tags, attribute, length, result.attributes);
+			}
+		}
+		result.references.remove(result.name);
+		return result;
+	}
+
+	/**
+	 * This method reads the fields or the methods of a class.
+	 * @param in the stream.
+	 * @param pool the constant pool.
+	 * @param tags the tags of the constant pool.
+	 * @param members filled in with what was read.
+	 * @throws IOException if the stream cannot be read.
+	 */
+
+	private static void readMembers(DataInputStream in, Object[] pool, int[] tags, ArrayList<Member> members) throws IOException {
+		int count = in.readUnsignedShort();
+		for (int i = 0; i < count; i++) {
+			int access = in.readUnsignedShort();
+			String name = (String) pool[in.readUnsignedShort()];
+			String descriptor = (String) pool[in.readUnsignedShort()];
+			Object constant = null;
+			ArrayList<String> found = new ArrayList<>();
+			int attributes = in.readUnsignedShort();
+			for (int j = 0; j < attributes; j++) {
+				String attribute = (String) pool[in.readUnsignedShort()];
+				int length = in.readInt();
+				if (attribute.equals("ConstantValue") && length == 2) {
+					constant = constant(pool, tags, in.readUnsignedShort());
+				} else {
+					readAttribute(in, pool, tags, attribute, length, found);
+				}
+			}
+			members.add(new Member(access, name, descriptor, constant, found));
+		}
+	}
+
+	/**
+	 * This method reads an attribute, keeping it as text when it is part of the ABI and
+	 * skipping it when it is not, like the code of a method.
+	 * @param in the stream, positioned after the length of the attribute.
+	 * @param pool the constant pool.
+	 * @param tags the tags of the constant pool.
+	 * @param name the name of the attribute.
+	 * @param length the length of the attribute.
+	 * @param found filled in with the attribute as text.
+	 * @throws IOException if the stream cannot be read.
+	 */
+
+	private static void readAttribute(DataInputStream in, Object[] pool, int[] tags, String name, int length, List<String> found) throws IOException {
+		if (name.equals("Signature")) {
+			found.add("signature " + pool[in.readUnsignedShort()]);
+		} else if (name.equals("Exceptions")) {
+			StringBuilder buffer = new StringBuilder("throws");
+			int count = in.readUnsignedShort();
+			for (int i = 0; i < count; i++) {
+				buffer.append(' ').append(className(pool, in.readUnsignedShort()));
+			}
+			found.add(buffer.toString());
+		} else if (name.equals("RuntimeVisibleAnnotations") || name.equals("RuntimeInvisibleAnnotations")) {
+			int count = in.readUnsignedShort();
+			for (int i = 0; i < count; i++) {
+				StringBuilder buffer = new StringBuilder();
+				readAnnotation(in, pool, tags, buffer);
+				found.add(buffer.toString());
+			}
+		} else {
+			in.readFully(new byte[length]);
+		}
+	}
+
+	/**
+	 * This method reads an annotation as text, like @Lpkg/Thing;(value=1).
+	 * @param in the stream, positioned at the annotation.
+	 * @param pool the constant pool.
+	 * @param tags the tags of the constant pool.
+	 * @param buffer where the text goes.
+	 * @throws IOException if the stream cannot be read.
+	 */
+
+	private static void readAnnotation(DataInputStream in, Object[] pool, int[] tags, StringBuilder buffer) throws IOException {
+		buffer.append('@').append(pool[in.readUnsignedShort()]).append('(');
+		int count = in.readUnsignedShort();
+		for (int i = 0; i < count; i++) {
+			if (i > 0) buffer.append(',');
+			buffer.append(pool[in.readUnsignedShort()]).append('=');
+			readElement(in, pool, tags, buffer);
+		}
+		buffer.append(')');
+	}
+
+	/**
+	 * This method reads a value of an annotation as text.
+	 * @param in the stream, positioned at the value.
+	 * @param pool the constant pool.
+	 * @param tags the tags of the constant pool.
+	 * @param buffer where the text goes.
+	 * @throws IOException if the stream cannot be read.
+	 */
+
+	private static void readElement(DataInputStream in, Object[] pool, int[] tags, StringBuilder buffer) throws IOException {
+		int tag = in.readUnsignedByte();
+		switch (tag) {
+			case 'e':
+				buffer.append(pool[in.readUnsignedShort()]).append('.').append(pool[in.readUnsignedShort()]);
+				break;
+			case 'c':
+				buffer.append(pool[in.readUnsignedShort()]);
+				break;
+			case '@':
+				readAnnotation(in, pool, tags, buffer);
+				break;
+			case '[':
+				int count = in.readUnsignedShort();
+				buffer.append('{');
+				for (int i = 0; i < count; i++) {
+					if (i > 0) buffer.append(',');
+					readElement(in, pool, tags, buffer);
+				}
+				buffer.append('}');
+				break;
+			default:
+				buffer.append((char) tag).append(constant(pool, tags, in.readUnsignedShort()));
+		}
+	}
+
+	/**
+	 * This method returns the value of a constant, the text itself for a String.
+	 * @param pool the constant pool.
+	 * @param tags the tags of the constant pool.
+	 * @param index the entry.
+	 * @return the value.
+	 */
+
+	private static Object constant(Object[] pool, int[] tags, int index) {
+		return tags[index] == 8 ? pool[(Integer) pool[index]] : pool[index];
+	}
+
+	/**
+	 * This method returns the name of the class a constant pool entry points at.
+	 * @param pool the constant pool.
+	 * @param index the entry, or 0 for none.
+	 * @return the internal name of the class, or null for none.
+	 */
+
+	private static String className(Object[] pool, int index) {
+		return index == 0 ? null : (String) pool[(Integer) pool[index]];
+	}
+
+	/**
+	 * This method adds the class a class entry names, which for an array is its element type.
+	 * @param type the internal name or array descriptor.
+	 */
+
+	private void addType(String type) {
+		if (type.startsWith("[")) {
+			addDescriptor(type);
+		} else {
+			references.add(type);
+		}
+	}
+
+	/**
+	 * This method adds every class named in a type descriptor or signature, like
+	 * (Ljava/lang/String;I)Ljava/util/List&lt;Lpkg/Thing;&gt;;.
+	 * @param descriptor the descriptor.
+	 */
+
+	private void addDescriptor(String descriptor) {
+		int start = descriptor.indexOf('L');
+		while (start != -1) {
+			int end = start + 1;
+			while (end < descriptor.length() && isNameChar(descriptor.charAt(end))) end++;
+			if (end < descriptor.length() && end > start + 1 && (descriptor.charAt(end) == ';' || descriptor.charAt(end) == '<')) {
+				references.add(descriptor.substring(start + 1, end));
+			}
+			start = descriptor.indexOf('L', end);
+		}
+	}
+
+	/**
+	 * This method determines if a character can be part of an internal class name.
+	 * @param c the character.
+	 * @return true if it can.
+	 */
+
+	private static boolean isNameChar(char c) {
+		return c == '/' || c == '$' || c == '_' || Character.isLetterOrDigit(c);
+	}
+
+	/**
+	 * @return the internal name of the class, like pkg/Outer$Inner.
+	 */
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the internal name of the super class, or null for java/lang/Object itself.
+	 */
+
+	public String getSuperName() {
+		return superName;
+	}
+
+	/**
+	 * @return the access flags of the class.
+	 */
+
+	public int getAccess() {
+		return access;
+	}
+
+	/**
+	 * @return the internal names of the interfaces the class implements.
+	 */
+
+	public ArrayList<String> getInterfaces() {
+		return interfaces;
+	}
+
+	/**
+	 * @return the internal names of every other class this class refers to.
+	 */
+
+	public Set<String> getReferences() {
+		return references;
+	}
+
+	/**
+	 * @return the fields of the class.
+	 */
+
+	public ArrayList<Member> getFields() {
+		return fields;
+	}
+
+	/**
+	 * @return the methods of the class.
+	 */
+
+	public ArrayList<Member> getMethods() {
+		return methods;
+	}
+
+	/**
+	 * This method determines if the class is a local or anonymous class, which nothing outside
+	 * the class it is in can use.
+	 * @return true if it is.
+	 */
+
+	public boolean isLocal() {
+		return local;
+	}
+
+	/**
+	 * This method returns what other classes can be compiled against, as text.  That is the
+	 * class itself, its super class and interfaces, and every field and method that is not
+	 * private or made up by the compiler, in a stable order, with their constants, generic
+	 * signatures, exceptions and annotations.  Package private members are in it as well, for
+	 * the classes in the same package.  Changing only the code of a method, or anything that
+	 * is private, leaves the ABI as it was.  A local or anonymous class has no ABI at all.
+	 * @return the ABI, which is empty for a local or anonymous class.
+	 */
+
+	public String getAbi() {
+		if (local) return "";
+		StringBuilder buffer = new StringBuilder();
+		buffer.append("class ").append(access & ~ACC_SUPER).append(' ').append(name).append(" extends ").append(superName);
+		for (String type : interfaces) {
+			buffer.append(' ').append(type);
+		}
+		for (String attribute : attributes) {
+			buffer.append(' ').append(attribute);
+		}
+		buffer.append('\n');
+		addAbi(buffer, "field ", fields);
+		addAbi(buffer, "method ", methods);
+		return buffer.toString();
+	}
+
+	/**
+	 * This method adds the members that are part of the ABI to it, sorted.
+	 * @param buffer the ABI.
+	 * @param kind field or method.
+	 * @param members the members.
+	 */
+
+	private static void addAbi(StringBuilder buffer, String kind, ArrayList<Member> members) {
+		TreeSet<String> lines = new TreeSet<>();
+		for (Member member : members) {
+			if ((member.access & (ACC_PRIVATE | ACC_SYNTHETIC)) != 0) continue;
+			lines.add(member.abi());
+		}
+		for (String line : lines) {
+			buffer.append(kind).append(line).append('\n');
+		}
+	}
+
+	/**
+	 * This method determines if the class has a compile time constant, which javac copies into
+	 * the classes that use it, so they have no reference back to this one.
+	 * @return true if a field has a constant value.
+	 */
+
+	public boolean hasConstants() {
+		for (Member field : fields) {
+			if (field.constant != null) return true;
+		}
+		return false;
+	}
+}
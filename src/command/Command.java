@@ -18,15 +18,25 @@ public interface Command {
         PROJECT
     };
 
+    /**
+     * The names of the resource pools that commands can draw from.  The sizes of the pools are
+     * set with pool tags in the project, see ResourcePools.  A pool that is not declared in the
+     * build file has no limit.
+     */
+
+    public static final String POOL_FORKS = "forks";
+    public static final String POOL_CPU = "cpu";
+    public static final String POOL_IO = "io";
+
     /**
      * This method provides a means of updating the environmental variables
      * of various commands that use this interface.  It's a basic search and
      * replace function for the particular command.
-     * @param dict is the Dictionary of key / value pairs to use for searching
+     * @param scope is the build properties to use for searching
      * through the command variables.
      */
 
-    public void update(Dictionary dict);
+    public void update(PropertyScope scope);
 
     /**
      * This function provides a way to get the name of the command token that is created.
@@ -39,6 +49,43 @@ public interface Command {
 
     public COMMAND_TYPE commandName();
 
+    /**
+     * This function returns the resource pools that this command draws from, such as forks for
+     * commands that start another JVM or io for commands that are limited by the disk.  When
+     * targets run in parallel, a command only starts once it has a permit from each of them.
+     * @return the names of the pools, or an empty array if the command needs none.
+     */
+
+    public String[] getPools();
+
+    /**
+     * This function returns the files and directories that this command reads, such as the
+     * srcdir of javac.  Together with the outputs they decide if the target can be skipped
+     * because nothing changed since it last worked.
+     * @return the paths of the inputs, an empty array if there are none, or null if the
+     * command cannot say and must always run.
+     */
+
+    public String[] getInputs();
+
+    /**
+     * This function returns the files and directories that this command writes, such as the
+     * destfile of jar.
+     * @return the paths of the outputs, an empty array if there are none, or null if the
+     * command cannot say and must always run.
+     */
+
+    public String[] getOutputs();
+
+    /**
+     * This function returns the inputs of which only the ABI matters, such as the classpath of
+     * javac.  They are in getInputs() as well, but a change to one of them only counts when it
+     * changes what can be compiled against it, see Abi.
+     * @return the paths of the inputs, or an empty array if there are none.
+     */
+
+    public String[] getAbiInputs();
+
     /**
      * This function executes the command according to the XML node that was provided
      * for the constructor.  This version allows a debug flag to enable debugging.
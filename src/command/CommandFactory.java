@@ -55,9 +55,22 @@ public class CommandFactory {
 	 */
 
     public static Command getCommandForNode(Node currentNode, boolean debug) {
+        return getCommandForNode(CommandNode.fromNode(currentNode), debug);
+    }
+
+    /**
+	 * This factory function makes a command based on the node that the streaming parser
+	 * produced for it.
+	 * @param currentNode the parsed node that is the target, to be used as the base for 
+	 * retrieving the command.
+	 * @param debug the boolean flag for enabling debugging during this function.
+	 * @return the command node that is result of the parsing or null if the tag is not
+	 * a command that this tool knows about.
+	 */
+
+    public static Command getCommandForNode(CommandNode currentNode, boolean debug) {
         if (debug) System.out.println("Starting getCommandForNode()");
-		Element elem = (Element) currentNode;
-		String check = elem.getTagName().toLowerCase();
+		String check = currentNode.getName().toLowerCase();
 		if (debug) System.out.println("check is " + check);
 		boolean same = false;
 		Command result = null;
@@ -101,7 +114,11 @@ public class CommandFactory {
 			result = new EchoCommand(currentNode, debug);
 			same = !same;
 		}
-		System.out.println("command ->" + result.commandName());
+		if (result == null) {
+			System.out.println("skipping unknown tag <" + check + ">");
+		} else {
+			System.out.println("command ->" + result.commandName());
+		}
 		return result;
     }
 }
\ No newline at end of file
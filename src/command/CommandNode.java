@@ -0,0 +1,163 @@
+package command;
+
+import org.w3c.dom.*;
+import java.util.*;
+
+/**
+ * This class is a lightweight stand in for an XML element of the build file.  It only keeps
+ * the tag name, the attributes and any nested elements, which is all the commands need to set
+ * themselves up.  The streaming parser fills these in as it reads, so there is no need to hold
+ * an entire DOM of the build file in memory just to create a handful of commands.
+ */
+
+public class CommandNode {
+
+	private String name;
+	private LinkedHashMap<String, String> attributes;
+	private ArrayList<CommandNode> children;
+
+	/**
+	 * The constructor creates an empty node for the tag name that is provided.  Attributes and
+	 * nested nodes are added as the parser finds them.
+	 * @param name the tag name of the XML element, such as javac or mkdir.
+	 */
+
+	public CommandNode(String name) {
+		this.name = name;
+		attributes = new LinkedHashMap<>();
+		children = new ArrayList<>();
+	}
+
+	/**
+	 * This factory method converts a DOM node, and everything nested in it, to a CommandNode.
+	 * It allows the older DOM based constructors of the commands to keep working.
+	 * @param currentNode the XML node to convert.
+	 * @return the CommandNode with the same tag name, attributes and nested elements.
+	 */
+
+	public static CommandNode fromNode(Node currentNode) {
+		CommandNode result = new CommandNode(((Element) currentNode).getTagName());
+		NamedNodeMap attribs = currentNode.getAttributes();
+		for (int i = 0; attribs != null && i < attribs.getLength(); i++) {
+			Node attrib = attribs.item(i);
+			result.setAttribute(attrib.getNodeName(), attrib.getNodeValue());
+		}
+		NodeList nested = currentNode.getChildNodes();
+		for (int i = 0; i < nested.getLength(); i++) {
+			if (nested.item(i).getNodeType() == Node.ELEMENT_NODE) {
+				result.appendChild(fromNode(nested.item(i)));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * This method returns the tag name of the XML element this node was made from.
+	 * @return the tag name as a String.
+	 */
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * This method returns the value of an attribute.
+	 * @param key the name of the attribute.
+	 * @return the value of the attribute or null if the element did not have it.
+	 */
+
+	public String getAttribute(String key) {
+		return attributes.get(key);
+	}
+
+	/**
+	 * This method determines if the attribute was provided for this element.
+	 * @param key the name of the attribute.
+	 * @return true if the attribute is present, otherwise false.
+	 */
+
+	public boolean hasAttribute(String key) {
+		return attributes.containsKey(key);
+	}
+
+	/**
+	 * This method sets the value of an attribute.  It is used while parsing the build file.
+	 * @param key the name of the attribute.
+	 * @param value the value of the attribute.
+	 */
+
+	public void setAttribute(String key, String value) {
+		attributes.put(key, value);
+	}
+
+	/**
+	 * This method returns the names of all the attributes in the order they were found.
+	 * @return an array of the attribute names.
+	 */
+
+	public String[] getAttributeNames() {
+		return attributes.keySet().toArray(new String[attributes.size()]);
+	}
+
+	/**
+	 * This method adds a nested element to this node, such as the manifest of a jar tag.
+	 * @param child the nested node to add.
+	 */
+
+	public void appendChild(CommandNode child) {
+		children.add(child);
+	}
+
+	/**
+	 * This method returns the number of nested elements this node has.
+	 * @return the count of nested nodes.
+	 */
+
+	public int size() {
+		return children.size();
+	}
+
+	/**
+	 * This method returns the nested element at the index that is provided.
+	 * @param index the 0 based index of the nested node.
+	 * @return the nested node at that index.
+	 */
+
+	public CommandNode get(int index) {
+		return children.get(index);
+	}
+
+	/**
+	 * This method makes a copy of this node, and everything nested in it, with the build
+	 * properties substituted into the attributes the same way the commands do it in update().
+	 * @param scope the build properties to substitute.
+	 * @return the resolved copy of this node.
+	 */
+
+	public CommandNode resolve(PropertyScope scope) {
+		CommandNode result = new CommandNode(name);
+		for (Map.Entry<String, String> entry : attributes.entrySet()) {
+			result.setAttribute(entry.getKey(), Template.render(entry.getValue(), scope));
+		}
+		for (int i = 0; i < children.size(); i++) {
+			result.appendChild(children.get(i).resolve(scope));
+		}
+		return result;
+	}
+
+	/**
+	 * This function returns a String that represents the node in the same form it had in the
+	 * build file, without any nested nodes.
+	 * @return A String value representing the tag and its attributes.
+	 */
+
+	public String toString() {
+		StringBuilder buffer = new StringBuilder();
+		buffer.append("<" + name);
+		for (Map.Entry<String, String> entry : attributes.entrySet()) {
+			buffer.append(" " + entry.getKey() + "=\"" + entry.getValue() + "\"");
+		}
+		buffer.append(">");
+		return buffer.toString();
+	}
+}
@@ -2,18 +2,55 @@ package command;
 
 import org.w3c.dom.*;
 import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
 import java.util.*;
+import java.util.concurrent.*;
+import javax.tools.*;
 
 /**
- * This class is used for the javac XML tag that is found in the build file.
+ * This class is used for the javac XML tag that is found in the build file.  The sources are
+ * compiled inside the build with the compiler of the JDK the build runs on, so there is no
+ * JVM to start for every javac tag.  The compiler comes from the CompilerPool, whose workers
+ * keep their file managers, and the jars they have already read, between compiles.  When the executable
+ * attribute names another javac, that one is run as a separate process instead, and the
+ * build waits for it and reads what it printed.
+ * <p>
+ * Compiling inside the build is incremental when there is a destdir.  What each source
+ * produced and what each class refers to is kept in a CompileState, so the next compile only
+ * compiles the sources whose contents changed, and the ones that use a class whose ABI changed,
+ * see ClassFile.getAbi(), and deletes the classes of sources that are gone.  A change to the
+ * ABI of the classpath, or of a class with a compile time constant, which the classes that use
+ * it copy without a reference back, compiles everything.  The forked javac always compiles
+ * everything.
+ * <p>
+ * With partition="packages", or nested partition tags each naming a srcdir of their own, a
+ * compile of many sources is split into partitions that do not use each other in a cycle, see
+ * CompileState.partitions(), and the partitions are compiled at the same time, each one once
+ * the ones it uses are done.  What the sources use is only known after they were compiled
+ * once, so the first compile is always done in one go.
+ * <p>
+ * With a jar attribute the classes go straight from the compiler into the jar, see JarWriter,
+ * without being written out and read back in, and are compressed while the compile goes on.
+ * A class that a later round compiles again replaces the one already in the jar.  When there
+ * is a destdir as well, the classes are still written there, but on a thread of their own, and the classes that were not
+ * compiled again are taken from there.  The partitions of a compile into a jar are not
+ * compiled at the same time, since they find each other's classes in the destdir.
  */
 
 public class CompileCommand implements Command {
 
+	private static final int MAX_ROUNDS = 8;
+
 	private String srcdir;
 	private String destdir;
 	private String classpath;
 	private String executable;
+	private String partition;
+	private String jar;
+	private ClassSink sink;
+	private ArrayList<String> partitions = new ArrayList<>();
 
 	/**
 	 * This constructor parses the XML node that is passed to it and creates
@@ -30,17 +67,19 @@ public class CompileCommand implements Command {
 	 * This method goes through all the variables for this command and substitutes
 	 * the sections where the keys are used, with the actual values found int the 
 	 * dictionary.
-	 * @param dict the dictionary of build properties that are to be parsed and 
+	 * @param scope the build properties that are to be parsed and 
 	 * used for command variables.
 	 */
 
-	public void update(Dictionary dict) {
-		String[] keys = dict.getKeys();
-		for (int i = 0; i < keys.length; i++) {
-			srcdir = CommandFactory.adjust(srcdir, "${" + keys[i] + "}", dict.getValueForKey(keys[i]));
-			destdir = CommandFactory.adjust(destdir, "${" + keys[i] + "}", dict.getValueForKey(keys[i]));
-			classpath = CommandFactory.adjust(classpath, "${" + keys[i] + "}", dict.getValueForKey(keys[i]));
-			executable = CommandFactory.adjust(executable, "${" + keys[i] + "}", dict.getValueForKey(keys[i]));
+	public void update(PropertyScope scope) {
+		srcdir = Template.render(srcdir, scope);
+		destdir = Template.render(destdir, scope);
+		classpath = Template.render(classpath, scope);
+		executable = Template.render(executable, scope);
+		partition = Template.render(partition, scope);
+		jar = Template.render(jar, scope);
+		for (int i = 0; i < partitions.size(); i++) {
+			partitions.set(i, Template.render(partitions.get(i), scope));
 		}
 	}
 
@@ -52,40 +91,58 @@ public class CompileCommand implements Command {
 	 */
 	
 	public CompileCommand(Node currentNode, boolean debug) { 
-		NamedNodeMap attribs = currentNode.getAttributes();
-		if (attribs.getNamedItem("srcdir") != null) {
-				srcdir = attribs.getNamedItem("srcdir").getNodeValue();
-				srcdir =" " + srcdir;
+		this(CommandNode.fromNode(currentNode), debug);
+	}
+
+	/**
+	 * This constructor uses the node from the streaming parser and creates
+	 * what this tool needs to perform the command.
+	 * @param currentNode is the parsed node that is used for this command
+	 * @param debug the boolean flag for debugging purposes.
+	 */
+
+	public CompileCommand(CommandNode currentNode, boolean debug) { 
+		if (currentNode.getAttribute("srcdir") != null) {
+			srcdir = currentNode.getAttribute("srcdir");
 		}
-		if (attribs.getNamedItem("destdir") != null) {
-			destdir = attribs.getNamedItem("destdir").getNodeValue();
-			destdir = " -d " + destdir;
+		if (currentNode.getAttribute("destdir") != null) {
+			destdir = currentNode.getAttribute("destdir");
 		}
-		if (attribs.getNamedItem("classpath") != null) {
-			classpath = attribs.getNamedItem("classpath").getNodeValue();
-			classpath = " -cp " + classpath;
+		if (currentNode.getAttribute("classpath") != null) {
+			classpath = currentNode.getAttribute("classpath");
 		}
-		if (attribs.getNamedItem("executable") != null) {
-			executable = attribs.getNamedItem("executable").getNodeValue();
+		if (currentNode.getAttribute("executable") != null) {
+			executable = currentNode.getAttribute("executable");
+		}
+		if (currentNode.getAttribute("partition") != null) {
+			partition = currentNode.getAttribute("partition");
+		}
+		if (currentNode.getAttribute("jar") != null) {
+			jar = currentNode.getAttribute("jar");
+		}
+		for (int i = 0; i < currentNode.size(); i++) {
+			CommandNode child = currentNode.get(i);
+			if (child.getName().equals("partition") && child.getAttribute("srcdir") != null) {
+				partitions.add(child.getAttribute("srcdir"));
+			}
 		}
 		if (debug) System.out.println("compile command: " + buildCmdString());
 	}
 
 	/**
-	 * This method takes the parameters of this command and builds the needed
-	 * command to use by the ProcessBuilder.
-	 * @return a String comprised of all parameters, if provided, for use in the
-	 * execution of this command.
+	 * This method takes the parameters of this command and builds the command line
+	 * it stands for, which is what is shown in the output of the build.
+	 * @return a String comprised of all parameters, if provided.
 	 */
 
 	private String buildCmdString() {
 		StringBuilder buffer = new StringBuilder();
-		buffer.append("cmd.exe");
-		if (executable != null) buffer.append(" " + executable);
-		else buffer.append(" javac");
-		buffer.append(srcdir);
-		if (destdir != null) buffer.append(destdir);
-		if (classpath != null) buffer.append(classpath);
+		if (executable != null) buffer.append(executable);
+		else buffer.append("javac");
+		if (srcdir != null) buffer.append(" " + srcdir);
+		if (destdir != null) buffer.append(" -d " + destdir);
+		if (classpath != null) buffer.append(" -cp " + classpath);
+		if (jar != null) buffer.append(" into " + jar);
 		return buffer.toString();
 	}
 
@@ -97,35 +154,567 @@ public class CompileCommand implements Command {
      */
 
 	public void execute(boolean debug) {
+		if (srcdir == null) throw new FailExecException("Unable to compile, no srcdir.  See parameters\n" + this.toString());
+		System.out.println("[ javac ] " + buildCmdString());
+		ArrayList<File> sources = findSources();
+		if (sources.isEmpty()) {
+			System.out.println("[ javac ] no sources in " + srcdir);
+			return;
+		}
+		if (destdir != null) new File(destdir).mkdirs();
+		boolean inProcess = executable == null && getCompiler() != null;
+		if (jar != null && destdir == null && !inProcess) {
+			throw new FailExecException("Unable to compile into a jar without a destdir when javac is forked.  See parameters\n" + this.toString());
+		}
 		try {
-			ArrayList<String> commandArgs = new ArrayList<>();
-			commandArgs.add("javac ");
-			srcdir ="" + srcdir;
-			commandArgs.add(srcdir);
-			destdir = "-d " + destdir;
-			commandArgs.add(destdir);
-			classpath = "-cp " + classpath;
-			commandArgs.add(classpath);
-			StringBuilder buffer = new StringBuilder();
-			for (int i = 0; i < commandArgs.size(); i++) {
-				buffer.append(commandArgs.get(i));
-			}
-			String filteredArgs = buffer.toString();
-			Runtime.getRuntime().exec(filteredArgs);
-			System.out.println("[ javac ] " + buildCmdString());
-			Runtime.getRuntime().exec(buildCmdString());
+			if (jar != null && inProcess) sink = new ClassSink(new JarWriter(new File(jar), null), destdir);
+			if (!inProcess) {
+				fork(executable == null ? "javac" : executable, sources, debug);
+				System.out.println("[ javac ] compiled " + sources.size() + " source files");
+			} else if (destdir == null) {
+				compile(sources, null, debug);
+				System.out.println("[ javac ] compiled " + sources.size() + " source files");
+			} else {
+				compileChanged(sources, debug);
+			}
+			if (jar != null) finishJar();
 		} catch (IOException ioe) {
-			if (srcdir != null || destdir != null || classpath != null) {
-				if (debug) {
-					throw new FailExecException("Unable to compile.  See parameters\n" + this.toString());
-				} else {
-					System.out.println("Unable to compile.  See parameters\n" + this.toString());
-					System.exit(0);
+			if (sink != null) sink.abort();
+			throw new FailExecException("Unable to write " + jar + ".  See parameters\n" + this.toString(), ioe);
+		} catch (RuntimeException re) {
+			if (sink != null) sink.abort();
+			throw re;
+		} finally {
+			sink = null;
+		}
+	}
+
+	/**
+	 * This method finishes the jar of a compile.  Every class in the destdir that the compile
+	 * did not hand over itself, because it was not compiled again or because javac was forked,
+	 * is added from there.
+	 * @throws IOException if the jar cannot be written.
+	 */
+
+	private void finishJar() throws IOException {
+		JarWriter writer = sink == null ? new JarWriter(new File(jar), null) : sink.jar;
+		try {
+			if (sink != null) {
+				sink.drain();
+				sink.prune();
+			}
+			if (destdir != null) {
+				final Path root = new File(destdir).toPath();
+				final TreeMap<String, Path> found = new TreeMap<>();
+				Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+					public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+						String name = root.relativize(file).toString().replace(File.separatorChar, '/');
+						if (name.endsWith(".class")) found.put(name, file);
+						return FileVisitResult.CONTINUE;
+					}
+				});
+				for (Map.Entry<String, Path> entry : found.entrySet()) {
+					if (!writer.contains(entry.getKey())) writer.add(entry.getKey(), entry.getValue().toFile());
+				}
+			}
+			writer.close();
+		} catch (IOException ioe) {
+			writer.abort();
+			throw ioe;
+		}
+		if (sink != null) sink.close();
+		System.out.println("[ javac ] wrote " + jar);
+	}
+
+	/**
+	 * This method works out which sources have to be compiled since the last compile into the
+	 * same destdir, compiles them and records what came out.  The sources whose contents changed
+	 * are compiled first.  Then the sources that use a class whose ABI changed, or that went
+	 * away, are compiled, and then the ones that use what changed in those, until the ABI stops
+	 * changing.  So a change to the code of a method only compiles the one source, however many
+	 * sources use it.
+	 * @param sources every source file under srcdir.
+	 * @param debug the flag for turning debugging statements on during method.
+	 * @throws FailExecException if the sources do not compile.
+	 */
+
+	private void compileChanged(ArrayList<File> sources, boolean debug) throws FailExecException {
+		CompileState state = CompileState.load(destdir);
+		TreeMap<String, File> files = new TreeMap<>();
+		HashMap<String, String> hashes = new HashMap<>();
+		String signature = null;
+		try {
+			ArrayList<Path> paths = new ArrayList<>();
+			for (File source : sources) {
+				files.put(key(source), source);
+				paths.add(Paths.get(key(source)));
+			}
+			for (Map.Entry<Path, FileFingerprints.Fingerprint> entry : FileFingerprints.getInstance().fingerprintAll(paths).entrySet()) {
+				hashes.put(entry.getKey().toString(), entry.getValue().hashString());
+			}
+			signature = classpathSignature();
+		} catch (IOException ioe) {
+			throw new FailExecException("Unable to read the sources.  See parameters\n" + this.toString(), ioe);
+		}
+		TreeSet<String> dirty = new TreeSet<>();
+		TreeSet<String> removed = new TreeSet<>(state.getSources());
+		removed.removeAll(files.keySet());
+		boolean full = !signature.equals(state.getClasspath());
+		if (full) {
+			if (debug && state.getClasspath() != null) System.out.println("[ javac ] the classpath changed");
+		} else {
+			for (String path : files.keySet()) {
+				if (!hashes.get(path).equals(state.getHash(path)) || !hasClasses(state.getClasses(path))) dirty.add(path);
+			}
+			if (dirty.isEmpty() && removed.isEmpty()) {
+				System.out.println("[ javac ] all " + sources.size() + " source files are up to date");
+				return;
+			}
+		}
+		HashSet<String> done = new HashSet<>();
+		int rounds = 0;
+		try {
+			while (full || !dirty.isEmpty() || !removed.isEmpty()) {
+				if (full || ++rounds > MAX_ROUNDS) {
+					full = true;
+					dirty = new TreeSet<>(files.keySet());
+					removed = new TreeSet<>(state.getSources());
+				}
+				// the partitions come from what the sources used, which is forgotten below
+				List<CompileState.Partition> plan = isPartitioned() ? state.partitions(dirty, partitionDirs(), "packages".equals(partition)) : null;
+				HashMap<String, String> before = new HashMap<>();
+				HashSet<String> constants = new HashSet<>();
+				TreeSet<String> gone = new TreeSet<>(removed);
+				gone.addAll(dirty);
+				for (String path : gone) {
+					for (String name : state.getClasses(path)) {
+						before.put(name, state.getAbi(name));
+						if (state.hasConstants(name)) constants.add(name);
+						new File(destdir, name + ".class").delete();
+					}
+					state.removeSource(path);
+				}
+				ArrayList<File> batch = new ArrayList<>();
+				for (String path : dirty) {
+					batch.add(files.get(path));
+				}
+				Map<String, Set<String>> outputs = null;
+				if (plan != null && plan.size() > 1 && sink == null) outputs = compilePartitions(plan, files, debug);
+				if (outputs == null) outputs = compile(batch, state, debug);
+				if (sink != null) sink.drain();
+				record(state, outputs, hashes);
+				done.addAll(dirty);
+				if (full) break;
+				// a constant is copied into the classes that use it, which then have no reference to it
+				ArrayList<String> changed = new ArrayList<>();
+				boolean constant = false;
+				for (Map.Entry<String, String> entry : before.entrySet()) {
+					String abi = state.getAbi(entry.getKey());
+					if (abi != null && abi.equals(entry.getValue())) continue;
+					changed.add(entry.getKey());
+					constant |= constants.contains(entry.getKey()) || state.hasConstants(entry.getKey());
+				}
+				if (debug && !changed.isEmpty()) System.out.println("[ javac ] the ABI of " + changed + " changed");
+				removed.clear();
+				if (constant) {
+					if (debug) System.out.println("[ javac ] a class with constants changed");
+					full = true;
+					continue;
+				}
+				dirty = new TreeSet<>(state.users(changed));
+			}
+		} catch (FailExecException fee) {
+			state.delete();
+			throw fee;
+		}
+		state.setClasspath(signature);
+		state.save();
+		System.out.println("[ javac ] compiled " + done.size() + " of " + sources.size() + " source files");
+	}
+
+	/**
+	 * This method determines if the sources are split into partitions that are compiled at the
+	 * same time, which is when the partition attribute is packages or there are partition tags.
+	 * @return true if they are.
+	 */
+
+	private boolean isPartitioned() {
+		return "packages".equals(partition) || !partitions.isEmpty();
+	}
+
+	/**
+	 * This method returns the directories of the partition tags.
+	 * @return their absolute paths.
+	 */
+
+	private List<String> partitionDirs() {
+		ArrayList<String> result = new ArrayList<>();
+		for (String dir : partitions) {
+			result.add(key(new File(dir)));
+		}
+		return result;
+	}
+
+	/**
+	 * This method records what a compile produced in the state, the classes of each source with
+	 * their ABI and what they refer to.
+	 * @param state the state of the destdir.
+	 * @param outputs the internal names of the classes each source produced, by absolute path.
+	 * @param hashes the hash of every source, by absolute path.
+	 */
+
+	private void record(CompileState state, Map<String, Set<String>> outputs, Map<String, String> hashes) {
+		for (Map.Entry<String, Set<String>> entry : outputs.entrySet()) {
+			String hash = hashes.get(entry.getKey());
+			if (hash == null) continue;
+			state.putSource(entry.getKey(), hash);
+			for (String name : entry.getValue()) {
+				try {
+					ClassFile classFile = ClassFile.read(new File(destdir, name + ".class"));
+					state.addClass(entry.getKey(), name, classFile.hasConstants(), Abi.of(classFile), classFile.getReferences());
+				} catch (IOException ioe) {
+					// without its references the source has to be compiled again next time
+					state.removeSource(entry.getKey());
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * This method returns the path a source is known by in the compile state.
+	 * @param source the source file.
+	 * @return the absolute, normalized path.
+	 */
+
+	private static String key(File source) {
+		return source.toPath().toAbsolutePath().normalize().toString();
+	}
+
+	/**
+	 * This method determines if every class a source produced is still in the destdir.
+	 * @param names the internal names of the classes.
+	 * @return true if they are all there.
+	 */
+
+	private boolean hasClasses(List<String> names) {
+		if (names.isEmpty()) return false;
+		for (String name : names) {
+			if (!new File(destdir, name + ".class").isFile()) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * This method fingerprints the ABI of everything on the classpath, see Abi, so that a change
+	 * to the code of a method in a library compiles nothing.
+	 * @return the fingerprint.
+	 * @throws IOException if an entry cannot be read.
+	 */
+
+	private String classpathSignature() throws IOException {
+		StringBuilder buffer = new StringBuilder();
+		for (String entry : paths(classpath)) {
+			buffer.append(entry).append('=').append(Abi.fingerprint(entry)).append(';');
+		}
+		return buffer.toString();
+	}
+
+	/**
+	 * This method returns the compiler of the JDK the build runs on.
+	 * @return the compiler, or null if the build runs on a JRE that has none.
+	 */
+
+	private static JavaCompiler getCompiler() {
+		CompilerPool pool = CompilerPool.getInstance();
+		return pool == null ? null : pool.getCompiler();
+	}
+
+	/**
+	 * This method compiles the sources inside the build, with a worker from the CompilerPool.
+	 * Every error the compiler reports ends up in the exception, warnings are only printed.
+	 * When there is a state the destdir is on the classpath, for the classes that are not
+	 * compiled again, and every class the compiler writes is noted with the source it came
+	 * from.
+	 * @param sources the source files to compile.
+	 * @param state what the last compile into the destdir left, or null if it is not kept.
+	 * @param debug the flag for turning debugging statements on during method.
+	 * @return the internal names of the classes each source produced, by absolute path.
+	 * @throws FailExecException if the sources do not compile.
+	 */
+
+	private Map<String, Set<String>> compile(ArrayList<File> sources, CompileState state, boolean debug) throws FailExecException {
+		Map<String, Set<String>> outputs = new TreeMap<>();
+		if (sources.isEmpty()) return outputs;
+		StringBuilder messages = new StringBuilder();
+		StringBuilder errors = new StringBuilder();
+		boolean worked = false;
+		ArrayList<File> path = classpath == null ? new ArrayList<File>() : files(classpath);
+		if (state != null) path.add(0, new File(destdir));
+		CompilerPool pool = CompilerPool.getInstance();
+		CompilerPool.Worker worker = pool.acquire();
+		try {
+			worked = compileTask(worker, sources, path, files(srcdir), outputs, messages, errors, debug);
+		} catch (IOException ioe) {
+			throw new FailExecException("Unable to compile.  See parameters\n" + this.toString(), ioe);
+		} finally {
+			pool.release(worker);
+		}
+		System.out.print(messages);
+		if (!worked) {
+			throw new FailExecException("Unable to compile " + srcdir + "\n" + errors);
+		}
+		return outputs;
+	}
+
+	/**
+	 * This method compiles the partitions of a compile at the same time, each one with a worker
+	 * of its own from the CompilerPool, on a thread of its own as soon as the partitions it uses are done.  A
+	 * partition only sees the classes of the others through the destdir, not their sources,
+	 * so nothing is compiled twice.  What the sources used the last time may not be what they
+	 * use now, so when a partition fails the whole compile is left to the caller to do in one
+	 * go, which also gives the errors as they really are.
+	 * @param plan the partitions, each one after the ones it uses.
+	 * @param files the source files, by absolute path.
+	 * @param debug the flag for turning debugging statements on during method.
+	 * @return the internal names of the classes each source produced, by absolute path, or
+	 * null if a partition did not compile.
+	 */
+
+	private Map<String, Set<String>> compilePartitions(List<CompileState.Partition> plan,
+			final Map<String, File> files, final boolean debug) {
+		final Map<String, Set<String>> outputs = new TreeMap<>();
+		final StringBuilder messages = new StringBuilder();
+		final ArrayList<File> path = classpath == null ? new ArrayList<File>() : files(classpath);
+		path.add(0, new File(destdir));
+		final CompilerPool compilers = CompilerPool.getInstance();
+		int threads = Math.min(plan.size(), Runtime.getRuntime().availableProcessors());
+		System.out.println("[ javac ] compiling " + plan.size() + " partitions on " + threads + " threads");
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		ArrayList<CompletableFuture<Boolean>> done = new ArrayList<>();
+		try {
+			for (final CompileState.Partition partition : plan) {
+				final ArrayList<CompletableFuture<Boolean>> uses = new ArrayList<>();
+				for (int index : partition.uses) {
+					uses.add(done.get(index));
+				}
+				done.add(CompletableFuture.allOf(uses.toArray(new CompletableFuture<?>[0])).thenApplyAsync(new java.util.function.Function<Void, Boolean>() {
+					public Boolean apply(Void ignored) {
+						for (CompletableFuture<Boolean> use : uses) {
+							if (!use.join()) return false;
+						}
+						ArrayList<File> sources = new ArrayList<>();
+						for (String source : partition.sources) {
+							sources.add(files.get(source));
+						}
+						StringBuilder errors = new StringBuilder();
+						StringBuilder output = new StringBuilder();
+						CompilerPool.Worker worker = compilers.acquire();
+						try {
+							boolean worked = compileTask(worker, sources, path, new ArrayList<File>(), outputs, output, errors, debug);
+							synchronized (messages) {
+								messages.append(output);
+							}
+							return worked;
+						} catch (IOException ioe) {
+							return false;
+						} finally {
+							compilers.release(worker);
+						}
+					}
+				}, pool));
+			}
+			for (CompletableFuture<Boolean> partition : done) {
+				boolean worked = false;
+				try {
+					worked = partition.join();
+				} catch (CompletionException ce) {
+					if (debug) System.out.println("[ javac ] " + ce.getCause());
+				}
+				if (!worked) {
+					System.out.println("[ javac ] a partition did not compile, compiling everything in one go");
+					return null;
 				}
-			} else {
-				ioe.printStackTrace();
 			}
+		} finally {
+			pool.shutdown();
 		}
+		System.out.print(messages);
+		return outputs;
+	}
+
+	/**
+	 * This method runs the compiler once.  Every class it writes is noted with the source it came
+	 * from.  The errors and the rest of what the compiler says are collected rather than
+	 * printed, since this may not run on the thread of the target.
+	 * @param worker the compiler to use.
+	 * @param sources the source files to compile.
+	 * @param path the classpath.
+	 * @param sourcepath where sources the compile needs are looked up, or empty if the compiler
+	 * must not compile anything it is not given.
+	 * @param outputs filled in with the internal names of the classes each source produced.
+	 * @param messages filled in with the warnings and what the compiler printed.
+	 * @param errors filled in with the errors.
+	 * @param debug the flag for turning debugging statements on during method.
+	 * @return true if the sources compiled.
+	 * @throws IOException if a location cannot be set.
+	 */
+
+	private boolean compileTask(CompilerPool.Worker worker, List<File> sources, List<File> path,
+			List<File> sourcepath, final Map<String, Set<String>> outputs, StringBuilder messages, StringBuilder errors, boolean debug) throws IOException {
+		StandardJavaFileManager manager = worker.getFileManager(path);
+		manager.setLocation(StandardLocation.CLASS_OUTPUT, destdir == null ? null : Arrays.asList(new File(destdir)));
+		manager.setLocation(StandardLocation.CLASS_PATH, path.isEmpty() ? null : path);
+		manager.setLocation(StandardLocation.SOURCE_PATH, sourcepath);
+		Iterable<? extends JavaFileObject> units = manager.getJavaFileObjectsFromFiles(sources);
+		JavaFileManager tracking = new ForwardingJavaFileManager<StandardJavaFileManager>(manager) {
+			public JavaFileObject getJavaFileForOutput(Location location, String className, JavaFileObject.Kind kind,
+					FileObject sibling) throws IOException {
+				if (kind == JavaFileObject.Kind.CLASS && sibling != null && sibling.toUri().getScheme().equals("file")) {
+					String source = key(new File(sibling.toUri()));
+					synchronized (outputs) {
+						Set<String> names = outputs.get(source);
+						if (names == null) {
+							names = new TreeSet<>();
+							outputs.put(source, names);
+						}
+						names.add(className.replace('.', '/'));
+					}
+				}
+				if (sink != null && kind == JavaFileObject.Kind.CLASS) return sink.file(className.replace('.', '/'));
+				return super.getJavaFileForOutput(location, className, kind, sibling);
+			}
+		};
+		DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+		StringWriter output = new StringWriter();
+		List<String> options = sourcepath.isEmpty() ? Arrays.asList("-implicit:none") : null;
+		boolean worked = worker.getCompiler().getTask(output, tracking, diagnostics, options, null, units).call();
+		for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+			String message = format(diagnostic);
+			if (diagnostic.getKind() == Diagnostic.Kind.ERROR) {
+				errors.append(message).append("\n");
+			} else if (diagnostic.getKind() != Diagnostic.Kind.NOTE || debug) {
+				messages.append("[ javac ] ").append(message).append("\n");
+			}
+		}
+		messages.append(output.getBuffer());
+		return worked;
+	}
+
+	/**
+	 * This method runs another javac as a separate process, waits for it and fails if it does.
+	 * The source files are handed over in an argument file so a big source tree does not go
+	 * over the limit on the length of a command line.
+	 * @param javac the javac to run.
+	 * @param sources the source files to compile.
+	 * @param debug the flag for turning debugging statements on during method.
+	 * @throws FailExecException if the compiler cannot be run or the sources do not compile.
+	 */
+
+	private void fork(String javac, ArrayList<File> sources, boolean debug) throws FailExecException {
+		File arguments = null;
+		try {
+			arguments = File.createTempFile("bee-javac", ".args");
+			try (PrintWriter writer = new PrintWriter(new FileWriter(arguments))) {
+				for (File source : sources) {
+					writer.println("\"" + source.getPath().replace("\\", "\\\\") + "\"");
+				}
+			}
+			ArrayList<String> command = new ArrayList<>();
+			command.add(javac);
+			command.add("-sourcepath");
+			command.add(srcdir);
+			if (destdir != null) {
+				command.add("-d");
+				command.add(destdir);
+			}
+			if (classpath != null) {
+				command.add("-cp");
+				command.add(classpath);
+			}
+			command.add("@" + arguments.getPath());
+			if (debug) System.out.println("forking " + command);
+			ProcessBuilder builder = new ProcessBuilder(command);
+			builder.redirectErrorStream(true);
+			Process process = builder.start();
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			try (InputStream in = process.getInputStream()) {
+				byte[] buffer = new byte[8192];
+				int len;
+				while ((len = in.read(buffer)) > 0) {
+					output.write(buffer, 0, len);
+				}
+			}
+			int code = process.waitFor();
+			if (output.size() > 0) System.out.print(output.toString());
+			if (code != 0) throw new FailExecException("Unable to compile " + srcdir + ", " + javac + " exited with " + code);
+		} catch (IOException ioe) {
+			throw new FailExecException("Unable to run " + javac + ".  See parameters\n" + this.toString(), ioe);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new FailExecException("interrupted waiting for " + javac, ie);
+		} finally {
+			if (arguments != null) arguments.delete();
+		}
+	}
+
+	/**
+	 * This method finds every java file under the source directories.
+	 * @return the source files, in a stable order.
+	 * @throws FailExecException if a source directory cannot be read.
+	 */
+
+	private ArrayList<File> findSources() throws FailExecException {
+		final ArrayList<File> result = new ArrayList<>();
+		for (File root : files(srcdir)) {
+			if (!root.isDirectory()) {
+				throw new FailExecException("Unable to compile since srcdir \'" + root + "\' doesnt exist");
+			}
+			try {
+				Files.walkFileTree(root.toPath(), new SimpleFileVisitor<Path>() {
+					public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+						if (file.getFileName().toString().endsWith(".java")) result.add(file.toFile());
+						return FileVisitResult.CONTINUE;
+					}
+				});
+			} catch (IOException ioe) {
+				throw new FailExecException("Unable to read srcdir \'" + root + "\'", ioe);
+			}
+		}
+		Collections.sort(result);
+		return result;
+	}
+
+	/**
+	 * This method splits a path like a classpath into its entries.
+	 * @param path the path.
+	 * @return the entries as files.
+	 */
+
+	private static ArrayList<File> files(String path) {
+		ArrayList<File> result = new ArrayList<>();
+		for (String entry : paths(path)) {
+			result.add(new File(entry));
+		}
+		return result;
+	}
+
+	/**
+	 * This method formats a message from the compiler the way javac prints it.
+	 * @param diagnostic the message.
+	 * @return the formatted message.
+	 */
+
+	private static String format(Diagnostic<? extends JavaFileObject> diagnostic) {
+		StringBuilder buffer = new StringBuilder();
+		if (diagnostic.getSource() != null) {
+			buffer.append(diagnostic.getSource().getName());
+			if (diagnostic.getLineNumber() != Diagnostic.NOPOS) buffer.append(":").append(diagnostic.getLineNumber());
+			buffer.append(": ");
+		}
+		buffer.append(diagnostic.getKind().toString().toLowerCase()).append(": ");
+		buffer.append(diagnostic.getMessage(null));
+		return buffer.toString();
 	}
 
 	/**
@@ -150,6 +739,65 @@ public class CompileCommand implements Command {
 		return COMMAND_TYPE.JAVAC;
 	}
 
+	/**
+	 * This function returns the resource pools this command needs a permit from before it
+	 * can run.  The compiler keeps a core busy, and it is a separate process when another
+	 * javac is named.
+	 * @return the names of the pools.  See Command interface.
+	 */
+
+	public String[] getPools() {
+		if (executable == null && getCompiler() != null) return new String[]{POOL_CPU};
+		return new String[]{POOL_CPU, POOL_FORKS};
+	}
+
+	/**
+	 * This function returns the files and directories this command reads, which are the source
+	 * directory and every entry of the classpath.
+	 * @return the paths of the inputs.  See Command interface.
+	 */
+
+	public String[] getInputs() {
+		return paths(srcdir, classpath);
+	}
+
+	/**
+	 * This function returns the files and directories this command writes.
+	 * @return the paths of the outputs.  See Command interface.
+	 */
+
+	public String[] getOutputs() {
+		return paths(destdir, jar);
+	}
+
+	/**
+	 * This function returns the classpath, since a change to a class on it that leaves its ABI
+	 * alone gives the same class files.
+	 * @return the entries of the classpath.  See Command interface.
+	 */
+
+	public String[] getAbiInputs() {
+		return paths(classpath);
+	}
+
+	/**
+	 * This method splits variables of this command that are paths, like the classpath, into
+	 * their entries.
+	 * @param values the variables, which may be null.
+	 * @return the paths that were set.
+	 */
+
+	private static String[] paths(String... values) {
+		ArrayList<String> result = new ArrayList<>();
+		for (String value : values) {
+			if (value == null) continue;
+			for (String entry : value.trim().split(File.pathSeparator)) {
+				if (entry.trim().length() > 0) result.add(entry.trim());
+			}
+		}
+		return result.toArray(new String[result.size()]);
+	}
+
 	/**
      * This function returns a String that represents the CompilerCommand and the directory
 	 * that the object has.
@@ -159,4 +807,151 @@ public class CompileCommand implements Command {
 	public String toString() {
 		return buildCmdString();
 	}
-}
\ No newline at end of file
+
+	/**
+	 * This class takes the classes the compiler writes when there is a jar attribute.  Each class
+	 * goes into the jar, to be compressed, as soon as the compiler is done with it.  A class that
+	 * a later round of the compile compiles again replaces the one from before, see
+	 * JarWriter.replace(), and one whose source went away is taken out again at the end, see
+	 * prune(), so only the names of the classes are kept.  When there is a destdir each class is
+	 * written there as well, by a thread of its own so the compiler does not wait for the disk.
+	 */
+
+	private static class ClassSink {
+
+		private final JarWriter jar;
+		private final File destdir;
+		private final ExecutorService writer;
+		private final ArrayList<Future<?>> pending = new ArrayList<>();
+		private final HashSet<String> added = new HashSet<>();
+
+		/**
+		 * The constructor sets up where the classes go.
+		 * @param jar the jar.
+		 * @param destdir the directory the classes are written to as well, or null.
+		 */
+
+		private ClassSink(JarWriter jar, String destdir) {
+			this.jar = jar;
+			this.destdir = destdir == null ? null : new File(destdir);
+			writer = destdir == null ? null : Executors.newSingleThreadExecutor();
+		}
+
+		/**
+		 * This method makes the file the compiler writes a class to, which is only kept in
+		 * memory until the compiler closes it.
+		 * @param name the internal name of the class.
+		 * @return the file.
+		 */
+
+		private JavaFileObject file(final String name) {
+			URI uri = null;
+			try {
+				uri = new URI("bee", null, "/" + name + ".class", null);
+			} catch (URISyntaxException use) {
+				throw new IllegalArgumentException("bad class name " + name, use);
+			}
+			return new SimpleJavaFileObject(uri, JavaFileObject.Kind.CLASS) {
+				public OutputStream openOutputStream() {
+					return new ByteArrayOutputStream() {
+						private boolean closed;
+
+						public void close() throws IOException {
+							if (closed) return;
+							closed = true;
+							accept(name + ".class", toByteArray());
+						}
+					};
+				}
+			};
+		}
+
+		/**
+		 * This method adds a class to the jar, in place of the one a round before compiled, and
+		 * starts writing it to the destdir.
+		 * @param entry the name of the class file, with / between the directories.
+		 * @param bytes the class file.
+		 * @throws IOException if the class cannot be added to the jar.
+		 */
+
+		private void accept(final String entry, final byte[] bytes) throws IOException {
+			synchronized (added) {
+				added.add(entry);
+			}
+			jar.replace(entry, bytes);
+			if (writer == null) return;
+			Future<?> write = writer.submit(new Callable<Void>() {
+				public Void call() throws IOException {
+					File file = new File(destdir, entry);
+					file.getParentFile().mkdirs();
+					Files.write(file.toPath(), bytes);
+					return null;
+				}
+			});
+			synchronized (pending) {
+				pending.add(write);
+			}
+		}
+
+		/**
+		 * This method waits for every class handed over so far to be written to the destdir.
+		 * @throws FailExecException if a class could not be written.
+		 */
+
+		private void drain() throws FailExecException {
+			ArrayList<Future<?>> writes = null;
+			synchronized (pending) {
+				writes = new ArrayList<>(pending);
+				pending.clear();
+			}
+			for (Future<?> write : writes) {
+				try {
+					write.get();
+				} catch (ExecutionException ee) {
+					throw new FailExecException("Unable to write a class to " + destdir, ee.getCause());
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw new FailExecException("interrupted writing classes to " + destdir, ie);
+				}
+			}
+		}
+
+		/**
+		 * This method takes the classes out of the jar that a later round of the compile deleted
+		 * from the destdir, because their source is gone, once the compile is done.
+		 * @throws IOException if the jar cannot be written.
+		 */
+
+		private void prune() throws IOException {
+			if (destdir == null) return;
+			synchronized (added) {
+				for (String entry : added) {
+					if (!new File(destdir, entry).isFile()) jar.remove(entry);
+				}
+				added.clear();
+			}
+		}
+
+		/**
+		 * This method stops the thread that writes to the destdir.
+		 */
+
+		private void close() {
+			if (writer != null) writer.shutdown();
+		}
+
+		/**
+		 * This method gives up on the jar, once the classes that are being written are done.
+		 */
+
+		private void abort() {
+			try {
+				drain();
+			} catch (FailExecException fee) {
+				// the compile failed already
+			}
+			close();
+			jar.abort();
+		}
+	}
+}
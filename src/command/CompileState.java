@@ -0,0 +1,395 @@
+package command;
+
+import java.io.*;
+import java.security.*;
+import java.util.*;
+
+/**
+ * This class is what a javac tag remembers about its last compile, so the next one only has to
+ * compile what changed.  For every source it keeps the hash of its contents and the classes it
+ * produced, and for every class its ABI and the other classes of the same compile it refers to,
+ * which come from the constant pool of the class file, see ClassFile.  It also keeps a fingerprint of the
+ * classpath, since when that changes anything may have to be compiled again.  The state of each
+ * destination directory is a small text file under .bee/javac in the working directory, rather
+ * than in the destination directory where it would end up in the jar.
+ */
+
+public class CompileState {
+
+	private static final String STATE_DIR = ".bee";
+	private static final String JAVAC_DIR = "javac";
+
+	private final File file;
+	private String classpath;
+	private final TreeMap<String, String> hashes = new TreeMap<>();
+	private final HashMap<String, ArrayList<String>> classes = new HashMap<>();
+	private final HashMap<String, String> sources = new HashMap<>();
+	private final HashMap<String, Set<String>> references = new HashMap<>();
+	private final HashSet<String> constants = new HashSet<>();
+	private final HashMap<String, String> abis = new HashMap<>();
+
+	/**
+	 * This class is a set of sources that can be compiled on its own, once the partitions it
+	 * uses have been compiled.
+	 */
+
+	public static class Partition {
+
+		public final ArrayList<String> sources = new ArrayList<>();
+		public final TreeSet<Integer> uses = new TreeSet<>();
+	}
+
+	/**
+	 * The constructor is only used by load.
+	 * @param file the file the state is kept in.
+	 */
+
+	private CompileState(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * This method reads the state of a destination directory.  A missing or unreadable file
+	 * gives an empty state, which means everything is compiled.
+	 * @param destdir the destination directory of the javac tag.
+	 * @return the state.
+	 */
+
+	public static CompileState load(String destdir) {
+		File dir = new File(new File(System.getProperty("user.dir"), STATE_DIR), JAVAC_DIR);
+		CompileState result = new CompileState(new File(dir, name(new File(destdir).getAbsolutePath())));
+		if (!result.file.exists()) return result;
+		try (BufferedReader reader = new BufferedReader(new FileReader(result.file))) {
+			String line;
+			String source = null;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split("\t", -1);
+				if (fields[0].equals("classpath") && fields.length == 2) {
+					result.classpath = fields[1];
+				} else if (fields[0].equals("source") && fields.length == 3) {
+					source = fields[2];
+					result.hashes.put(source, fields[1]);
+					result.classes.put(source, new ArrayList<String>());
+				} else if (fields[0].equals("class") && fields.length == 5 && source != null) {
+					Set<String> refs = new HashSet<>();
+					if (fields[4].length() > 0) refs.addAll(Arrays.asList(fields[4].split(" ")));
+					result.addClass(source, fields[1], fields[2].equals("1"), fields[3], refs);
+				}
+			}
+		} catch (IOException ioe) {
+			return new CompileState(result.file);
+		}
+		return result;
+	}
+
+	/**
+	 * This method writes the state back to its file.  Only the references to classes of the
+	 * same compile are kept, the ones to the JDK and the classpath are covered by the
+	 * fingerprint of the classpath.  Failing to write it is only reported, the next compile
+	 * just does more than it has to.
+	 */
+
+	public void save() {
+		file.getParentFile().mkdirs();
+		try (PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(file)))) {
+			writer.println("classpath\t" + (classpath == null ? "" : classpath));
+			for (Map.Entry<String, String> entry : hashes.entrySet()) {
+				writer.println("source\t" + entry.getValue() + "\t" + entry.getKey());
+				for (String name : classes.get(entry.getKey())) {
+					StringBuilder refs = new StringBuilder();
+					for (String ref : references.get(name)) {
+						if (!sources.containsKey(ref)) continue;
+						if (refs.length() > 0) refs.append(' ');
+						refs.append(ref);
+					}
+					writer.println("class\t" + name + "\t" + (constants.contains(name) ? "1" : "0") + "\t" + abis.get(name) + "\t" + refs);
+				}
+			}
+		} catch (IOException ioe) {
+			System.out.println("unable to save compile state: " + ioe.getMessage());
+		}
+	}
+
+	/**
+	 * This method forgets everything, so the next compile compiles every source.  It is used
+	 * when a compile fails part way through, since by then class files may have been deleted.
+	 */
+
+	public void delete() {
+		file.delete();
+		classpath = null;
+		hashes.clear();
+		classes.clear();
+		sources.clear();
+		references.clear();
+		constants.clear();
+		abis.clear();
+	}
+
+	/**
+	 * @return the fingerprint of the classpath of the last compile, or null if there was none.
+	 */
+
+	public String getClasspath() {
+		return classpath;
+	}
+
+	/**
+	 * @param classpath the fingerprint of the classpath of this compile.
+	 */
+
+	public void setClasspath(String classpath) {
+		this.classpath = classpath;
+	}
+
+	/**
+	 * @return the sources of the last compile, by absolute path.
+	 */
+
+	public Set<String> getSources() {
+		return hashes.keySet();
+	}
+
+	/**
+	 * This method returns the hash a source had when it was last compiled.
+	 * @param source the absolute path of the source.
+	 * @return the hash, or null if the source was not compiled.
+	 */
+
+	public String getHash(String source) {
+		return hashes.get(source);
+	}
+
+	/**
+	 * This method returns the classes a source produced.
+	 * @param source the absolute path of the source.
+	 * @return the internal names of the classes, which is empty if the source is not known.
+	 */
+
+	public List<String> getClasses(String source) {
+		ArrayList<String> result = classes.get(source);
+		return result == null ? Collections.<String>emptyList() : result;
+	}
+
+	/**
+	 * This method determines if a class has a compile time constant, which the classes that
+	 * use it copy instead of referring to.
+	 * @param name the internal name of the class.
+	 * @return true if it has one.
+	 */
+
+	public boolean hasConstants(String name) {
+		return constants.contains(name);
+	}
+
+	/**
+	 * This method returns the ABI a class had when it was compiled, see Abi.of().
+	 * @param name the internal name of the class.
+	 * @return the hash of the ABI, or null if the class is not known.
+	 */
+
+	public String getAbi(String name) {
+		return abis.get(name);
+	}
+
+	/**
+	 * This method records a source that was just compiled, replacing what was known about it.
+	 * The classes are added with addClass.
+	 * @param source the absolute path of the source.
+	 * @param hash the hash of its contents.
+	 */
+
+	public void putSource(String source, String hash) {
+		removeSource(source);
+		hashes.put(source, hash);
+		classes.put(source, new ArrayList<String>());
+	}
+
+	/**
+	 * This method records a class a source produced.
+	 * @param source the absolute path of the source, which must have been put first.
+	 * @param name the internal name of the class.
+	 * @param hasConstants true if the class has a compile time constant.
+	 * @param abi the hash of the ABI of the class.
+	 * @param refs the internal names of the classes it refers to.
+	 */
+
+	public void addClass(String source, String name, boolean hasConstants, String abi, Set<String> refs) {
+		classes.get(source).add(name);
+		sources.put(name, source);
+		references.put(name, refs);
+		abis.put(name, abi);
+		if (hasConstants) constants.add(name);
+	}
+
+	/**
+	 * This method forgets a source and the classes it produced.
+	 * @param source the absolute path of the source.
+	 */
+
+	public void removeSource(String source) {
+		hashes.remove(source);
+		ArrayList<String> names = classes.remove(source);
+		if (names == null) return;
+		for (String name : names) {
+			sources.remove(name);
+			references.remove(name);
+			constants.remove(name);
+			abis.remove(name);
+		}
+	}
+
+	/**
+	 * This method finds every source that refers to one of the given classes, and so has to be
+	 * compiled again when their ABI changes.
+	 * @param changed the internal names of the classes whose ABI changed or that went away.
+	 * @return the absolute paths of the sources that use them.
+	 */
+
+	public Set<String> users(Collection<String> changed) {
+		HashSet<String> wanted = new HashSet<>(changed);
+		TreeSet<String> result = new TreeSet<>();
+		for (Map.Entry<String, Set<String>> entry : references.entrySet()) {
+			for (String ref : entry.getValue()) {
+				if (!wanted.contains(ref)) continue;
+				String source = sources.get(entry.getKey());
+				if (source != null) result.add(source);
+				break;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * This method splits the sources to be compiled into partitions, from what their classes
+	 * referred to the last time they were compiled.  The sources are put in groups, the ones
+	 * under a declared directory together and the rest by package, or all in one group if they
+	 * are not split by package.  Groups that use each other, directly or not, are merged into
+	 * one partition, these are the strongly connected components of the graph of the groups,
+	 * found with Tarjan's algorithm, so the partitions that are left never use each other in a
+	 * cycle.
+	 * @param batch the absolute paths of the sources to compile.
+	 * @param dirs the absolute paths of the declared directories.
+	 * @param byPackage true if the sources outside the directories are grouped by package.
+	 * @return the partitions, each one after every partition it uses, or null if a source was
+	 * never compiled, so what it uses is not known.
+	 */
+
+	public List<Partition> partitions(Collection<String> batch, List<String> dirs, boolean byPackage) {
+		HashMap<String, String> groupOf = new HashMap<>();
+		TreeMap<String, TreeSet<String>> edges = new TreeMap<>();
+		for (String source : batch) {
+			List<String> names = classes.get(source);
+			if (names == null || names.isEmpty()) return null;
+			String group = null;
+			for (String dir : dirs) {
+				if (source.startsWith(dir + File.separator)) {
+					group = dir;
+					break;
+				}
+			}
+			if (group == null) {
+				int slash = names.get(0).lastIndexOf('/');
+				group = byPackage && slash != -1 ? names.get(0).substring(0, slash) : "";
+			}
+			groupOf.put(source, group);
+			edges.put(group, new TreeSet<String>());
+		}
+		for (String source : batch) {
+			String group = groupOf.get(source);
+			for (String name : classes.get(source)) {
+				for (String ref : references.get(name)) {
+					String other = groupOf.get(sources.get(ref));
+					if (other != null && !other.equals(group)) edges.get(group).add(other);
+				}
+			}
+		}
+		// the components come out of Tarjan's algorithm with the ones a component uses before it
+		ArrayList<ArrayList<String>> components = new ArrayList<>();
+		HashMap<String, Integer> index = new HashMap<>();
+		HashMap<String, Integer> low = new HashMap<>();
+		ArrayDeque<String> stack = new ArrayDeque<>();
+		HashSet<String> onStack = new HashSet<>();
+		for (String group : edges.keySet()) {
+			if (!index.containsKey(group)) connect(group, edges, index, low, stack, onStack, components);
+		}
+		HashMap<String, Integer> componentOf = new HashMap<>();
+		ArrayList<Partition> result = new ArrayList<>();
+		for (int i = 0; i < components.size(); i++) {
+			for (String group : components.get(i)) {
+				componentOf.put(group, i);
+			}
+			result.add(new Partition());
+		}
+		for (String source : batch) {
+			result.get(componentOf.get(groupOf.get(source))).sources.add(source);
+		}
+		for (Map.Entry<String, TreeSet<String>> entry : edges.entrySet()) {
+			int from = componentOf.get(entry.getKey());
+			for (String group : entry.getValue()) {
+				int to = componentOf.get(group);
+				if (to != from) result.get(from).uses.add(to);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * This method is one step of Tarjan's algorithm, it visits a group and everything it uses
+	 * and adds the component of the group once everything in it has been visited.
+	 * @param group the group to visit.
+	 * @param edges the groups each group uses.
+	 * @param index the order the groups were visited in.
+	 * @param low the lowest index each group can reach.
+	 * @param stack the groups that are not in a component yet.
+	 * @param onStack the groups on the stack.
+	 * @param components filled in with the components.
+	 */
+
+	private static void connect(String group, Map<String, TreeSet<String>> edges, HashMap<String, Integer> index,
+			HashMap<String, Integer> low, ArrayDeque<String> stack, HashSet<String> onStack, ArrayList<ArrayList<String>> components) {
+		index.put(group, index.size());
+		low.put(group, index.get(group));
+		stack.push(group);
+		onStack.add(group);
+		for (String other : edges.get(group)) {
+			if (!index.containsKey(other)) {
+				connect(other, edges, index, low, stack, onStack, components);
+				low.put(group, Math.min(low.get(group), low.get(other)));
+			} else if (onStack.contains(other)) {
+				low.put(group, Math.min(low.get(group), index.get(other)));
+			}
+		}
+		if (!low.get(group).equals(index.get(group))) return;
+		ArrayList<String> component = new ArrayList<>();
+		String member;
+		do {
+			member = stack.pop();
+			onStack.remove(member);
+			component.add(member);
+		} while (!member.equals(group));
+		components.add(component);
+	}
+
+	/**
+	 * This method makes the name of the state file of a destination directory, or of anything
+	 * else that keeps its state under .bee, see JarIndex.
+	 * @param destdir the absolute path of the destination directory.
+	 * @return the name of the file.
+	 */
+
+	static String name(String destdir) {
+		try {
+			StringBuilder buffer = new StringBuilder();
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(destdir.getBytes("UTF-8"));
+			for (int i = 0; i < 8; i++) {
+				buffer.append(String.format("%02x", digest[i]));
+			}
+			return buffer.toString();
+		} catch (GeneralSecurityException gse) {
+			return Integer.toHexString(destdir.hashCode());
+		} catch (UnsupportedEncodingException uee) {
+			return Integer.toHexString(destdir.hashCode());
+		}
+	}
+}
@@ -0,0 +1,162 @@
+package command;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.tools.*;
+
+/**
+ * This class keeps compilers warm between the javac tags of a build, and between builds when
+ * the build runs in the daemon.  Each worker is the compiler of the JDK with a file manager of
+ * its own that stays open, so the jars of the classpath and of the platform are only opened and
+ * indexed once by each worker instead of once for every compile.  A worker only lets go of
+ * what it has open when a jar on the classpath it is asked to use has changed since it opened
+ * it, see FileFingerprints.  Every compile takes a worker of its own, so javac tags in targets
+ * that run at the same time, and the partitions of a compile, no longer wait for each other.
+ * There are as many workers as cores unless -Dbee.compilers says otherwise, and they are only
+ * made when they are first needed.
+ */
+
+public class CompilerPool {
+
+	private static CompilerPool instance;
+
+	private final JavaCompiler compiler;
+	private final int size;
+	private final LinkedBlockingQueue<Worker> idle = new LinkedBlockingQueue<>();
+	private int created;
+
+	/**
+	 * This class is one warm compiler.  A worker is used by one compile at a time.
+	 */
+
+	public static class Worker {
+
+		private final JavaCompiler compiler;
+		private final StandardJavaFileManager fileManager;
+		private final HashMap<String, FileFingerprints.Fingerprint> archives = new HashMap<>();
+		private int tasks;
+
+		/**
+		 * The constructor makes the file manager of the worker.
+		 * @param compiler the compiler.
+		 */
+
+		private Worker(JavaCompiler compiler) {
+			this.compiler = compiler;
+			fileManager = compiler.getStandardFileManager(null, null, null);
+		}
+
+		/**
+		 * @return the compiler.
+		 */
+
+		public JavaCompiler getCompiler() {
+			return compiler;
+		}
+
+		/**
+		 * This method returns the file manager of the worker, ready for a compile with a
+		 * classpath.  When a jar on the classpath changed since the worker last opened it, the
+		 * file manager is closed first so it opens every jar again.
+		 * @param classpath the classpath of the compile.
+		 * @return the file manager.
+		 * @throws IOException if the file manager cannot be closed.
+		 */
+
+		public StandardJavaFileManager getFileManager(List<File> classpath) throws IOException {
+			boolean changed = false;
+			for (File entry : classpath) {
+				if (!entry.isFile()) continue;
+				Path path = entry.toPath().toAbsolutePath();
+				FileFingerprints.Fingerprint now = FileFingerprints.getInstance().stat(path);
+				FileFingerprints.Fingerprint before = archives.put(path.toString(), now);
+				if (before != null && !before.sameStat(now)) changed = true;
+			}
+			if (changed) fileManager.close();
+			tasks++;
+			return fileManager;
+		}
+
+		/**
+		 * @return how many compiles the worker has done.
+		 */
+
+		public int getTasks() {
+			return tasks;
+		}
+	}
+
+	/**
+	 * The constructor sets up an empty pool.
+	 * @param compiler the compiler of the JDK.
+	 * @param size the most workers there can be.
+	 */
+
+	public CompilerPool(JavaCompiler compiler, int size) {
+		this.compiler = compiler;
+		this.size = Math.max(size, 1);
+	}
+
+	/**
+	 * This method returns the pool shared by the whole build.
+	 * @return the pool, or null if the build runs on a JRE that has no compiler.
+	 */
+
+	public static synchronized CompilerPool getInstance() {
+		if (instance == null) {
+			JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+			if (compiler == null) return null;
+			int size = Runtime.getRuntime().availableProcessors();
+			try {
+				size = Integer.parseInt(System.getProperty("bee.compilers", String.valueOf(size)));
+			} catch (NumberFormatException nfe) {
+				System.out.println("bee.compilers is not a number, using " + size);
+			}
+			instance = new CompilerPool(compiler, size);
+		}
+		return instance;
+	}
+
+	/**
+	 * This method takes a worker out of the pool, making one if there are fewer than the size
+	 * of the pool and waiting for one to be given back if there are not.
+	 * @return the worker, which must be given back with release.
+	 * @throws FailExecException if the wait is interrupted.
+	 */
+
+	public Worker acquire() throws FailExecException {
+		Worker worker = idle.poll();
+		if (worker != null) return worker;
+		synchronized (this) {
+			if (created < size) {
+				created++;
+				return new Worker(compiler);
+			}
+		}
+		try {
+			return idle.take();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new FailExecException("interrupted waiting for a compiler", ie);
+		}
+	}
+
+	/**
+	 * This method gives a worker back to the pool.
+	 * @param worker the worker.
+	 */
+
+	public void release(Worker worker) {
+		if (worker != null) idle.add(worker);
+	}
+
+	/**
+	 * @return the compiler of the JDK.
+	 */
+
+	public JavaCompiler getCompiler() {
+		return compiler;
+	}
+}
@@ -31,21 +31,29 @@ public class CopyCommand implements Command {
 	 */
 	
 	public CopyCommand(Node currentNode, boolean debug) { 
-		NamedNodeMap attribs = currentNode.getAttributes();
-		if (attribs.getNamedItem("file") != null) {
-			file = attribs.getNamedItem("file").getNodeValue();
+		this(CommandNode.fromNode(currentNode), debug);
+	}
+
+	/**
+	 * This is the constructor used for creating the command node for the 
+	 * copy tag from the streaming parser.
+	 * @param currentNode the parsed node to be used for this command.
+	 * @param debug the boolean flag that determines if debugging is turned on.
+	 */
+	
+	public CopyCommand(CommandNode currentNode, boolean debug) { 
+		if (currentNode.getAttribute("file") != null) {
+			file = currentNode.getAttribute("file");
 		} else {
-			System.out.println("Copy task does not have file attribute defined.");
-			System.exit(0);
+			throw new FailExecException("Copy task does not have file attribute defined.");
 		}
-		if (attribs.getNamedItem("tofile") != null) {
-			toFile = attribs.getNamedItem("tofile").getNodeValue();
+		if (currentNode.getAttribute("tofile") != null) {
+			toFile = currentNode.getAttribute("tofile");
 		} else{
-			if (attribs.getNamedItem("todir") != null) {
-				toDir = currentNode.getAttributes().getNamedItem("todir").getNodeValue();
+			if (currentNode.getAttribute("todir") != null) {
+				toDir = currentNode.getAttribute("todir");
 			} else {
-				System.out.println("Copy task does not have tofile or todir attribute defined.");
-				System.exit(0);
+				throw new FailExecException("Copy task does not have tofile or todir attribute defined.");
 			}
 		}
 		if (debug) System.out.println("copy command: " + buildCmdString());
@@ -68,17 +76,14 @@ public class CopyCommand implements Command {
 	 * This method is used to update all environmental variables associated with the copy command
 	 * appropriatedly based on what was passed to the dictionary of key /value pairs that represent
 	 * the build properties for this particular build.
-	 * @param dict the dictionary of build properties that will be used to modify the variables in
+	 * @param scope the build properties that will be used to modify the variables in
 	 * the copy command.
 	 */
 
-	public void update(Dictionary dict) {
-		String[] keys = dict.getKeys();
-		for (int i = 0; i < keys.length; i++) {
-			toDir = CommandFactory.adjust(toDir, "${" + keys[i] + "}", dict.getValueForKey(keys[i]));
-			toFile = CommandFactory.adjust(toFile, "${" + keys[i] + "}", dict.getValueForKey(keys[i]));
-			file = CommandFactory.adjust(file, "${" + keys[i] + "}", dict.getValueForKey(keys[i]));
-		}
+	public void update(PropertyScope scope) {
+		toDir = Template.render(toDir, scope);
+		toFile = Template.render(toFile, scope);
+		file = Template.render(file, scope);
 	}
 
 	/**
@@ -115,6 +120,43 @@ public class CopyCommand implements Command {
 		return COMMAND_TYPE.COPY;
 	}
 
+	/**
+	 * This function returns the resource pools this command needs a permit from before it
+	 * can run.  Copying is limited by the disk.
+	 * @return the names of the pools.  See Command interface.
+	 */
+
+	public String[] getPools() {
+		return new String[]{POOL_IO};
+	}
+
+	/**
+	 * This function returns the files and directories this command reads.  The file being copied is the input and the copy is the output.
+	 * @return the paths of the inputs.  See Command interface.
+	 */
+
+	public String[] getInputs() {
+		return new String[]{file};
+	}
+
+	/**
+	 * This function returns the files and directories this command writes.
+	 * @return the paths of the outputs.  See Command interface.
+	 */
+
+	public String[] getOutputs() {
+		return new String[]{toFile != null ? toFile : new File(toDir, new File(file).getName()).getPath()};
+	}
+
+	/**
+	 * This function returns the inputs of which only the ABI matters.
+	 * @return an empty array, since there are none.  See Command interface.
+	 */
+
+	public String[] getAbiInputs() {
+		return new String[0];
+	}
+
 	/**
      * This function returns a String that represents the Command and its parameters
      * @return A String value representing the parameters of the particular Command
@@ -141,6 +183,14 @@ public class CopyCommand implements Command {
 			throw new FailExecException("unable from copy \'" + origin + "\' since it doesnt exist");
 		}
 		if (debug) System.out.println(origin + " is a file");
+		try {
+			if (FileFingerprints.getInstance().sameContents(orig.toPath(), new File(destination).toPath())) {
+				if (debug) System.out.println(destination + " is already the same as " + origin);
+				return;
+			}
+		} catch (IOException ioe) {
+			if (debug) System.out.println("unable to fingerprint " + origin + ", copying anyway");
+		}
 		copySingleFile(origin, destination, debug);
 	}
 
@@ -171,8 +221,7 @@ public class CopyCommand implements Command {
 			in.close();
 			out.close();
 		} catch (IOException ioe) {
-			System.out.println("unable to perform copy function");
-			System.exit(-1);
+			throw new FailExecException("unable to perform copy function", ioe);
 		}
 		if (debug) System.out.println("done with copy \'" + orig + "\' to \'" 
 			+ dest + "\'");
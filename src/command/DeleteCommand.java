@@ -31,15 +31,24 @@ public class DeleteCommand implements Command {
 	 */
 	
 	public DeleteCommand(Node currentNode, boolean debug) {
-		NamedNodeMap attribs = currentNode.getAttributes();
-		if (attribs.getNamedItem("file") != null) {
-			file = attribs.getNamedItem("file").getNodeValue();
+		this(CommandNode.fromNode(currentNode), debug);
+	}
+
+	/**
+	 * This constructor uses the node from the streaming parser and creates
+	 * what this tool needs to perform the command.
+	 * @param currentNode the parsed node that is to be used for this command.
+	 * @param debug the boolean flag to determine if debugging is to be turned on.
+	 */
+	
+	public DeleteCommand(CommandNode currentNode, boolean debug) {
+		if (currentNode.getAttribute("file") != null) {
+			file = currentNode.getAttribute("file");
 		} else {
-			if (attribs.getNamedItem("dir") != null) {
-				dir = currentNode.getAttributes().getNamedItem("dir").getNodeValue();
+			if (currentNode.getAttribute("dir") != null) {
+				dir = currentNode.getAttribute("dir");
 			} else {
-				System.out.println("Delete task does not have dir or file attribute defined.");
-				System.exit(0);
+				throw new FailExecException("Delete task does not have dir or file attribute defined.");
 			}
 		}
 		if (debug) System.out.println("delete command: " + buildCmdString());
@@ -64,15 +73,12 @@ public class DeleteCommand implements Command {
 	/**
       * This method allows a dictionary of build properties to be used to update the environmental
       * variables for this command.
-      * @param dict is the dictionary of build properties to be used for updating the command.
+      * @param scope is the build properties to be used for updating the command.
       */
 
-	public void update(Dictionary dict) {
-		String[] keys = dict.getKeys();
-		for (int i = 0; i < keys.length; i++) {
-			file = CommandFactory.adjust(file, "${" + keys[i] + "}", dict.getValueForKey(keys[i]));
-			dir = CommandFactory.adjust(dir, "${" + keys[i] + "}", dict.getValueForKey(keys[i]));
-		}	
+	public void update(PropertyScope scope) {
+		file = Template.render(file, scope);
+		dir = Template.render(dir, scope);
 	}
 
 	/**
@@ -115,6 +121,44 @@ public class DeleteCommand implements Command {
 		return COMMAND_TYPE.DELETE;
 	}
 
+	/**
+	 * This function returns the resource pools this command needs a permit from before it
+	 * can run.  Deleting is limited by the disk.
+	 * @return the names of the pools.  See Command interface.
+	 */
+
+	public String[] getPools() {
+		return new String[]{POOL_IO};
+	}
+
+	/**
+	 * This function returns the files and directories this command reads, which is nothing,
+	 * since deleting does not depend on what is there.
+	 * @return the paths of the inputs.  See Command interface.
+	 */
+
+	public String[] getInputs() {
+		return new String[0];
+	}
+
+	/**
+	 * This function returns the files and directories this command writes.
+	 * @return the paths of the outputs.  See Command interface.
+	 */
+
+	public String[] getOutputs() {
+		return new String[]{file != null ? file : dir};
+	}
+
+	/**
+	 * This function returns the inputs of which only the ABI matters.
+	 * @return an empty array, since there are none.  See Command interface.
+	 */
+
+	public String[] getAbiInputs() {
+		return new String[0];
+	}
+
 	/**
      * This function returns a String that represents the DeleteCommand and the directory
 	 * that the object has.
@@ -2,13 +2,21 @@ package command;
 
 /**
  * This class is an abbreviated version of a Dictionary, used constantly in Objective-C.
- * It is essentially a forward facing linked list of tuples ( key /value pairs).  It 
- * only has the methods needed for this application and nothing further.
+ * It used to be a forward facing linked list of tuples ( key /value pairs), but generated
+ * builds carry thousands of properties, so now it is a small open addressing hash table.
+ * The keys and values are kept in arrays in the order they were added, and the table only
+ * holds the position of each key in those arrays.  It only has the methods needed for this
+ * application and nothing further.  It is only used while properties are gathered, the build
+ * reads them through a PropertyScope.
  */
 
 public class Dictionary {
-    
-    public Tuple root;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private String[] keys = new String[INITIAL_CAPACITY];
+    private String[] values = new String[INITIAL_CAPACITY];
+    private int[] table = new int[INITIAL_CAPACITY * 2];
     private int count;
 
     /**
@@ -20,29 +28,24 @@ public class Dictionary {
 
     /**
      * This method is what is used to populate the dictionary.  You add the tuple, which is
-     * also a simplified structure.  It is attached to the end of the dictionary.
+     * also a simplified structure.  Like build properties in ant, the first value added for a
+     * key is the one that is kept, adding the same key again changes nothing.
      * @param tuple a basic data structure used by this structure.  It is added to the end of
      * the list and the count is increased.
      */
 
-    public void add(Tuple tuple) {
-        if (root == null) {
-            root = tuple;
-            count++;
-        } else {
-            Tuple current = root;
-            Tuple previous = root;
-            while (current != null) {
-                if (current == previous) {
-                    current = current.next;
-                } else {
-                    previous = current;
-                    current = current.next;
-                }
-            }
-            previous.next = tuple;
-            count++;
+    public synchronized void add(Tuple tuple) {
+        if (tuple == null || tuple.key == null) return;
+        int slot = find(tuple.key);
+        if (table[slot] != 0) return;
+        if (count == keys.length) {
+            grow();
+            slot = find(tuple.key);
         }
+        keys[count] = tuple.key;
+        values[count] = tuple.value;
+        count++;
+        table[slot] = count;
     }
 
     /**
@@ -51,40 +54,80 @@ public class Dictionary {
      * the for loops in the application.
      */
 
-    public int size() {
+    public synchronized int size() {
         return count;
     }
 
     /**
      * This method returns an array of String for all of the keys in this dictionary.
-     * @return an array of Strings that represent all the keys stored in this dictionary.
+     * @return an array of Strings that represent all the keys stored in this dictionary, in
+     * the order they were added.
      */
 
-    public String[] getKeys() {
-        Tuple current = root;
+    public synchronized String[] getKeys() {
         String[] results = new String[count];
-        for (int i = 0; i < count; i++) {
-            results[i] = current.key;
-            current = current.next;
-        }
+        System.arraycopy(keys, 0, results, 0, count);
         return results;
     }
 
     /**
-     * This method goes through the dictionary at O(n) to find they pair which matches the
-     * key that was provided, and then the value paired with the key is returned.
+     * This method determines if the dictionary has a value for a key.
+     * @param key the key to look for.
+     * @return true if the key was added, even with a null value.
+     */
+
+    public synchronized boolean containsKey(String key) {
+        return key != null && table[find(key)] != 0;
+    }
+
+    /**
+     * This method finds the pair whose key is exactly the key that was provided, and then
+     * the value paired with the key is returned.
      * @param key the String which represents the key in the dictionary in which to look
      * for its representative value.
-     * @return The String value as part of the key /value pair in the dictionary.
+     * @return The String value as part of the key /value pair in the dictionary, or null if
+     * there is no such key.
+     */
+
+    public synchronized String getValueForKey(String key) {
+        if (key == null) return null;
+        int index = table[find(key)];
+        return index == 0 ? null : values[index - 1];
+    }
+
+
+    /**
+     * This method finds the slot of the table that holds a key, or the empty slot where it
+     * would go.  The table is never more than half full so there is always an empty slot.
+     * @param key the key to look for.
+     * @return the slot.
      */
-     
-    public String getValueForKey(String key) {
-        Tuple current = root;
-        while (current != null) {
-            if (current.key.matches(key)) return current.value;
-            current = current.next;
+
+    private int find(String key) {
+        int mask = table.length - 1;
+        int hash = key.hashCode();
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        while (table[slot] != 0 && !keys[table[slot] - 1].equals(key)) {
+            slot = (slot + 1) & mask;
         }
-        return null;
+        return slot;
     }
 
-}
\ No newline at end of file
+    /**
+     * This method doubles the room for keys and values and puts every key in a new table
+     * that is twice as big.
+     */
+
+    private void grow() {
+        String[] oldKeys = keys;
+        keys = new String[oldKeys.length * 2];
+        System.arraycopy(oldKeys, 0, keys, 0, count);
+        String[] oldValues = values;
+        values = new String[oldValues.length * 2];
+        System.arraycopy(oldValues, 0, values, 0, count);
+        table = new int[keys.length * 2];
+        for (int i = 0; i < count; i++) {
+            table[find(keys[i])] = i + 1;
+        }
+    }
+}
@@ -30,8 +30,20 @@ public class EchoCommand implements Command {
       */
 
 	public EchoCommand(Node currentNode, boolean debug) {
-          if (currentNode.getAttributes().getNamedItem("message") != null) {
-               message = currentNode.getAttributes().getNamedItem("message").getNodeValue();
+          this(CommandNode.fromNode(currentNode), debug);
+	}
+
+	/**
+      * The constructor uses a node from the streaming parser and sets up the EchoCommand
+      * for use by the build tool.
+      * @param currentNode - The parsed node that will be used to create the EchoCommand
+      * @param debug the boolean flag that determines if debugging is to be turned on.
+      * object.
+      */
+
+	public EchoCommand(CommandNode currentNode, boolean debug) {
+          if (currentNode.getAttribute("message") != null) {
+               message = currentNode.getAttribute("message");
           } else {
                System.out.println("Echo task does not have message attribute defined.");
           }
@@ -50,14 +62,11 @@ public class EchoCommand implements Command {
      /**
       * This method allows a dictionary of build properties to be used to update the environmental
       * variables for this command.
-      * @param dict is the dictionary of build properties to be used for updating the command.
+      * @param scope is the build properties to be used for updating the command.
       */
 
-	public void update(Dictionary dict) {
-          String[] keys = dict.getKeys();
-		for (int i = 0; i < dict.size(); i++) {
-			message = CommandFactory.adjust(message, "${" + keys[i] + "}", dict.getValueForKey(keys[i]));
-		}
+	public void update(PropertyScope scope) {
+		message = Template.render(message, scope);
 	}
 
      /**
@@ -93,6 +102,43 @@ public class EchoCommand implements Command {
 		return COMMAND_TYPE.ECHO;
 	}
 
+	/**
+	 * This function returns the resource pools this command needs a permit from before it
+	 * can run.  Echo only prints, so it needs no pools.
+	 * @return the names of the pools.  See Command interface.
+	 */
+
+	public String[] getPools() {
+		return new String[0];
+	}
+
+	/**
+	 * This function returns the files and directories this command reads.  Echo only prints, so it has no inputs or outputs and does not keep its target from being skipped.
+	 * @return the paths of the inputs.  See Command interface.
+	 */
+
+	public String[] getInputs() {
+		return new String[0];
+	}
+
+	/**
+	 * This function returns the files and directories this command writes.
+	 * @return the paths of the outputs.  See Command interface.
+	 */
+
+	public String[] getOutputs() {
+		return new String[0];
+	}
+
+	/**
+	 * This function returns the inputs of which only the ABI matters.
+	 * @return an empty array, since there are none.  See Command interface.
+	 */
+
+	public String[] getAbiInputs() {
+		return new String[0];
+	}
+
      /**
       * This function returns a String that represents the EchoCommand and its parameter
       * @return A String value representing the parameter of the EchoCommand object.
@@ -0,0 +1,602 @@
+package command;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * This class answers "has this file changed" for the whole build.  For every file it has seen it
+ * keeps the size, the modification time, the inode and a hash of the contents.  The contents are
+ * only read again when the stat data changed, and when many files changed they are hashed in
+ * parallel.  The fingerprints are kept in a file next to the plan cache, which is a hash table of
+ * where the newest record of each path is, followed by the records.  The file is memory mapped
+ * and a question about a file only probes the table and reads that one record out of the
+ * mapping, so a build reads no more of it than the files it asks about.  New records are
+ * appended and their slots in the table pointed at them, and the whole file is only written
+ * again when the table gets full or most of the records are old.  The mapping is dropped before
+ * the file is written, see unmap(), since Windows does not let a file that is mapped be replaced
+ * or grown.  Every command should ask here instead of reading files on its own to see if they
+ * changed.
+ */
+
+public class FileFingerprints {
+
+	private static final String DB_DIR = ".bee";
+	private static final String DB_FILE = "fingerprints";
+	private static final int HASH_SIZE = 32;
+	private static final int FIXED_SIZE = 8 + 8 + 8 + HASH_SIZE;
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int PARALLEL_THRESHOLD = 4;
+	private static final int MAGIC = 0x42454632;
+	private static final int HEADER_SIZE = 16;
+	private static final int MIN_SLOTS = 1024;
+
+	private static FileFingerprints instance;
+
+	private final File file;
+	private MappedByteBuffer log;
+	private boolean mapped;
+	private int slots;
+	private int keys;
+	private int records;
+	private final ConcurrentHashMap<String, Fingerprint> fresh = new ConcurrentHashMap<>();
+	private boolean unixView = true;
+
+	/**
+	 * This class is the fingerprint of a single file.
+	 */
+
+	public static class Fingerprint {
+
+		public final long size;
+		public final long mtime;
+		public final long inode;
+		public final byte[] hash;
+
+		/**
+		 * The constructor sets all of the values of the fingerprint.
+		 * @param size the size of the file in bytes.
+		 * @param mtime the modification time in nanoseconds, as precise as the file system has it.
+		 * @param inode the inode, or 0 where the file system has none.
+		 * @param hash the SHA-256 of the contents, or null if it is not known yet.
+		 */
+
+		public Fingerprint(long size, long mtime, long inode, byte[] hash) {
+			this.size = size;
+			this.mtime = mtime;
+			this.inode = inode;
+			this.hash = hash;
+		}
+
+		/**
+		 * This method determines if the stat data of two fingerprints is the same, in which case
+		 * the contents are taken to be the same as well.
+		 * @param other the other fingerprint.
+		 * @return true if the size, modification time and inode match.
+		 */
+
+		public boolean sameStat(Fingerprint other) {
+			return other != null && size == other.size && mtime == other.mtime && inode == other.inode;
+		}
+
+		/**
+		 * This method returns the hash of the contents as a hex String.
+		 * @return the hash, or an empty String if it is not known.
+		 */
+
+		public String hashString() {
+			if (hash == null) return "";
+			StringBuilder buffer = new StringBuilder();
+			for (byte b : hash) {
+				buffer.append(String.format("%02x", b));
+			}
+			return buffer.toString();
+		}
+	}
+
+	/**
+	 * The constructor uses the log in the file that is provided.  Nothing is read until the
+	 * first question is asked.
+	 * @param file the log file, which does not have to exist yet.
+	 */
+
+	public FileFingerprints(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * This method returns the fingerprints shared by the whole build, which are kept in the
+	 * working directory.
+	 * @return the shared fingerprints.
+	 */
+
+	public static synchronized FileFingerprints getInstance() {
+		if (instance == null) {
+			instance = new FileFingerprints(new File(new File(System.getProperty("user.dir"), DB_DIR), DB_FILE));
+		}
+		return instance;
+	}
+
+	/**
+	 * This method returns the fingerprint of a file as it is now.  The contents are only hashed
+	 * if the stat data is different from the last time the file was seen.
+	 * @param path the file.
+	 * @return the fingerprint, or null if the file does not exist or is a directory.
+	 * @throws IOException if the file cannot be read.
+	 */
+
+	public Fingerprint fingerprint(Path path) throws IOException {
+		Fingerprint current = stat(path);
+		if (current == null) return null;
+		String key = key(path);
+		Fingerprint known = lookup(key);
+		if (current.sameStat(known)) return known;
+		Fingerprint result = new Fingerprint(current.size, current.mtime, current.inode, hash(path));
+		fresh.put(key, result);
+		return result;
+	}
+
+	/**
+	 * This method returns the fingerprints of many files at once.  All of the files are stat'ed
+	 * first and only the ones whose stat data changed are read, in parallel when there are a
+	 * few of them.
+	 * @param paths the files.
+	 * @return the fingerprint of each file that exists, by path.
+	 * @throws IOException if a file cannot be read.
+	 */
+
+	public Map<Path, Fingerprint> fingerprintAll(Collection<Path> paths) throws IOException {
+		final HashMap<Path, Fingerprint> result = new HashMap<>();
+		final ArrayList<Path> changed = new ArrayList<>();
+		final HashMap<Path, Fingerprint> stats = new HashMap<>();
+		for (Path path : paths) {
+			Fingerprint current = stat(path);
+			if (current == null) continue;
+			Fingerprint known = lookup(key(path));
+			if (current.sameStat(known)) {
+				result.put(path, known);
+			} else {
+				changed.add(path);
+				stats.put(path, current);
+			}
+		}
+		if (changed.size() < PARALLEL_THRESHOLD) {
+			for (Path path : changed) {
+				result.put(path, fingerprint(path));
+			}
+			return result;
+		}
+		ArrayList<Future<byte[]>> hashes = new ArrayList<>();
+		for (final Path path : changed) {
+			hashes.add(ForkJoinPool.commonPool().submit(new Callable<byte[]>() {
+				public byte[] call() throws IOException {
+					return hash(path);
+				}
+			}));
+		}
+		for (int i = 0; i < changed.size(); i++) {
+			Path path = changed.get(i);
+			Fingerprint current = stats.get(path);
+			try {
+				Fingerprint fingerprint = new Fingerprint(current.size, current.mtime, current.inode, hashes.get(i).get());
+				fresh.put(key(path), fingerprint);
+				result.put(path, fingerprint);
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new IOException("interrupted while hashing " + path, ie);
+			} catch (ExecutionException ee) {
+				throw new IOException("unable to hash " + path, ee.getCause());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * This method determines if a file is different from what was recorded the last time it was
+	 * fingerprinted.  A file that was never seen has changed.
+	 * @param path the file.
+	 * @return true if the file changed or does not exist.
+	 * @throws IOException if the file cannot be read.
+	 */
+
+	public boolean hasChanged(Path path) throws IOException {
+		Fingerprint known = lookup(key(path));
+		Fingerprint current = fingerprint(path);
+		return current == null || known == null || !Arrays.equals(known.hash, current.hash);
+	}
+
+	/**
+	 * This method determines if two files have the same contents, such as the source and the
+	 * destination of a copy.
+	 * @param a the first file.
+	 * @param b the second file.
+	 * @return true if both exist and have the same size and hash.
+	 * @throws IOException if a file cannot be read.
+	 */
+
+	public boolean sameContents(Path a, Path b) throws IOException {
+		Fingerprint first = fingerprint(a);
+		Fingerprint second = fingerprint(b);
+		return first != null && second != null && first.size == second.size && Arrays.equals(first.hash, second.hash);
+	}
+
+	/**
+	 * This method reads the stat data of a file without reading its contents.
+	 * @param path the file.
+	 * @return the fingerprint without a hash, or null if the file does not exist or is not a
+	 * regular file.
+	 * @throws IOException if the stat data cannot be read.
+	 */
+
+	public Fingerprint stat(Path path) throws IOException {
+		if (unixView) {
+			try {
+				Map<String, Object> attrs = Files.readAttributes(path, "unix:size,lastModifiedTime,ino,isRegularFile");
+				if (!((Boolean) attrs.get("isRegularFile"))) return null;
+				return new Fingerprint((Long) attrs.get("size"), ((FileTime) attrs.get("lastModifiedTime")).to(TimeUnit.NANOSECONDS),
+					(Long) attrs.get("ino"), null);
+			} catch (NoSuchFileException nsfe) {
+				return null;
+			} catch (UnsupportedOperationException uoe) {
+				unixView = false;
+			} catch (IllegalArgumentException iae) {
+				unixView = false;
+			}
+		}
+		try {
+			BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+			if (!attrs.isRegularFile()) return null;
+			Object fileKey = attrs.fileKey();
+			return new Fingerprint(attrs.size(), attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS), fileKey == null ? 0 : fileKey.hashCode(), null);
+		} catch (NoSuchFileException nsfe) {
+			return null;
+		}
+	}
+
+	/**
+	 * This method saves the fingerprints that were worked out during this build.  They are
+	 * appended to the file and the table is pointed at them.  When the table is more than half
+	 * full, or the file has grown to more than twice the number of files it knows about, it is
+	 * written again from scratch with only the newest record of each file and a table that
+	 * fits.
+	 */
+
+	public synchronized void save() {
+		if (fresh.isEmpty()) return;
+		ensureMapped();
+		file.getParentFile().mkdirs();
+		try {
+			HashMap<Integer, byte[]> claimed = new HashMap<>();
+			LinkedHashMap<Integer, byte[]> updates = new LinkedHashMap<>();
+			int added = 0;
+			if (log != null) {
+				for (String key : fresh.keySet()) {
+					byte[] path = key.getBytes(StandardCharsets.UTF_8);
+					int slot = findSlot(path, claimed);
+					if (log.getInt(HEADER_SIZE + 4 * slot) == 0 && !claimed.containsKey(slot)) added++;
+					claimed.put(slot, path);
+					updates.put(slot, path);
+				}
+			}
+			int live = keys + added;
+			long grown = log == null ? 0 : log.limit();
+			for (String key : fresh.keySet()) {
+				grown += 4 + key.getBytes(StandardCharsets.UTF_8).length + FIXED_SIZE;
+			}
+			if (log == null || 2 * live > slots || records + fresh.size() > 2 * live + MIN_SLOTS || grown > Integer.MAX_VALUE) {
+				rewrite();
+			} else {
+				unmap();
+				append(updates, live);
+			}
+			fresh.clear();
+		} catch (IOException ioe) {
+			System.out.println("unable to save file fingerprints: " + ioe.getMessage());
+		}
+		unmap();
+	}
+
+	/**
+	 * This method appends the fingerprints of this build to the file and points the table at
+	 * them.  The records are written before the table, so a build that is killed part way
+	 * through leaves slots that point at the old records or at nothing that matches.
+	 * @param updates the path of each fingerprint of this build by its slot in the table.
+	 * @param live how many files the file knows about afterwards.
+	 * @throws IOException if the file cannot be written.
+	 */
+
+	private void append(Map<Integer, byte[]> updates, int live) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+			long end = channel.size();
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			ByteBuffer table = ByteBuffer.allocate(4);
+			ArrayList<int[]> slotsToWrite = new ArrayList<>();
+			for (Map.Entry<Integer, byte[]> update : updates.entrySet()) {
+				String key = new String(update.getValue(), StandardCharsets.UTF_8);
+				slotsToWrite.add(new int[]{update.getKey(), (int) (end + out.size())});
+				write(out, key, fresh.get(key));
+			}
+			out.flush();
+			writeFully(channel, ByteBuffer.wrap(bytes.toByteArray()), end);
+			for (int[] slot : slotsToWrite) {
+				table.clear();
+				table.putInt(slot[1]).flip();
+				writeFully(channel, table, HEADER_SIZE + 4L * slot[0]);
+			}
+			ByteBuffer header = ByteBuffer.allocate(8);
+			header.putInt(live).putInt(records + updates.size()).flip();
+			writeFully(channel, header, 8);
+		}
+	}
+
+	/**
+	 * This method writes the file again from scratch, with the newest fingerprint of each file
+	 * and a table that is at most a quarter full.
+	 * @throws IOException if the file cannot be written.
+	 */
+
+	private void rewrite() throws IOException {
+		LinkedHashMap<String, Fingerprint> all = new LinkedHashMap<>();
+		for (int slot = 0; log != null && slot < slots; slot++) {
+			int offset = log.getInt(HEADER_SIZE + 4 * slot);
+			if (offset == 0 || !inside(offset)) continue;
+			int length = log.getInt(offset);
+			byte[] path = new byte[length];
+			log.get(offset + 4, path);
+			String key = new String(path, StandardCharsets.UTF_8);
+			if (!fresh.containsKey(key)) all.put(key, read(offset + 4 + length));
+		}
+		all.putAll(fresh);
+		int size = MIN_SLOTS;
+		while (size < 4L * all.size()) size <<= 1;
+		int[] table = new int[size];
+		int offset = HEADER_SIZE + 4 * size;
+		for (String key : all.keySet()) {
+			byte[] path = key.getBytes(StandardCharsets.UTF_8);
+			int slot = hash(path) & (size - 1);
+			while (table[slot] != 0) slot = (slot + 1) & (size - 1);
+			table[slot] = offset;
+			offset += 4 + path.length + FIXED_SIZE;
+		}
+		File temp = new File(file.getPath() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), BUFFER_SIZE))) {
+			out.writeInt(MAGIC);
+			out.writeInt(size);
+			out.writeInt(all.size());
+			out.writeInt(all.size());
+			for (int slot : table) {
+				out.writeInt(slot);
+			}
+			for (Map.Entry<String, Fingerprint> entry : all.entrySet()) {
+				write(out, entry.getKey(), entry.getValue());
+			}
+		}
+		unmap();
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * This method drops the mapping of the file, so it can be written.  Java only lets go of a
+	 * mapping when the garbage collector gets to it, and until then Windows refuses to replace
+	 * the file, so the mapping is released straight away through the cleaner of the JDK.  That
+	 * is only safe because nothing reads the mapping outside of the synchronized methods here.
+	 * Where the cleaner cannot be reached the mapping is just forgotten, as before.
+	 */
+
+	private void unmap() {
+		MappedByteBuffer old = log;
+		log = null;
+		mapped = false;
+		if (old == null) return;
+		try {
+			Class<?> type = Class.forName("sun.misc.Unsafe");
+			Field field = type.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			type.getMethod("invokeCleaner", ByteBuffer.class).invoke(field.get(null), old);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			// the garbage collector unmaps it later
+		}
+	}
+
+	/**
+	 * This method returns the newest fingerprint that is known for a file, either from this
+	 * build or from the file, where only its slot in the table and its record are read.
+	 * @param key the absolute path of the file.
+	 * @return the fingerprint, or null if the file was never seen.
+	 */
+
+	private synchronized Fingerprint lookup(String key) {
+		Fingerprint result = fresh.get(key);
+		if (result != null) return result;
+		ensureMapped();
+		if (log == null) return null;
+		byte[] path = key.getBytes(StandardCharsets.UTF_8);
+		int offset = log.getInt(HEADER_SIZE + 4 * findSlot(path, null));
+		if (offset == 0 || !matches(offset, path)) return null;
+		return read(offset + 4 + path.length);
+	}
+
+	/**
+	 * This method finds the slot of a path in the table, which is the one that points at its
+	 * record or else the first empty one it would go in.
+	 * @param path the path in UTF-8.
+	 * @param claimed the empty slots that are already taken by other paths, or null.
+	 * @return the slot.
+	 */
+
+	private int findSlot(byte[] path, Map<Integer, byte[]> claimed) {
+		int mask = slots - 1;
+		int slot = hash(path) & mask;
+		for (int probe = 0; probe < slots; probe++) {
+			int offset = log.getInt(HEADER_SIZE + 4 * slot);
+			byte[] taken = claimed == null ? null : claimed.get(slot);
+			if (taken != null) {
+				if (Arrays.equals(taken, path)) return slot;
+			} else if (offset == 0 || matches(offset, path)) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	/**
+	 * This method determines if the record at an offset is the one of a path.
+	 * @param offset where the record starts.
+	 * @param path the path in UTF-8.
+	 * @return true if the record is whole and has that path.
+	 */
+
+	private boolean matches(int offset, byte[] path) {
+		if (!inside(offset) || log.getInt(offset) != path.length) return false;
+		for (int i = 0; i < path.length; i++) {
+			if (log.get(offset + 4 + i) != path[i]) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * This method determines if a whole record starts at an offset, which it may not after a
+	 * build was killed while it was saving.
+	 * @param offset where the record starts.
+	 * @return true if the record is inside the file.
+	 */
+
+	private boolean inside(int offset) {
+		if (offset < HEADER_SIZE + 4 * slots || offset + 4 > log.limit()) return false;
+		int length = log.getInt(offset);
+		return length >= 0 && (long) offset + 4 + length + FIXED_SIZE <= log.limit();
+	}
+
+	/**
+	 * This method reads the fingerprint part of a record.
+	 * @param position where it starts, just after the path.
+	 * @return the fingerprint.
+	 */
+
+	private Fingerprint read(int position) {
+		byte[] hash = new byte[HASH_SIZE];
+		log.get(position + 24, hash);
+		return new Fingerprint(log.getLong(position), log.getLong(position + 8), log.getLong(position + 16), hash);
+	}
+
+	/**
+	 * This method maps the file and reads its header.  A file that is missing, or is not a
+	 * table of fingerprints, like the log older versions kept, is treated as empty and written
+	 * again on the next save.
+	 */
+
+	private synchronized void ensureMapped() {
+		if (mapped) return;
+		mapped = true;
+		log = null;
+		slots = 0;
+		keys = 0;
+		records = 0;
+		if (!file.exists() || file.length() < HEADER_SIZE) return;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			log = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} catch (IOException ioe) {
+			return;
+		}
+		int size = log.getInt(4);
+		if (log.getInt(0) != MAGIC || size < MIN_SLOTS || Integer.bitCount(size) != 1 || HEADER_SIZE + 4L * size > log.limit()) {
+			unmap();
+			mapped = true;
+			return;
+		}
+		slots = size;
+		keys = log.getInt(8);
+		records = log.getInt(12);
+	}
+
+	/**
+	 * This method hashes a path for its slot in the table.  It must never change, since the
+	 * slots are kept from one build to the next.
+	 * @param path the path in UTF-8.
+	 * @return the hash, FNV-1a.
+	 */
+
+	private static int hash(byte[] path) {
+		int result = 0x811c9dc5;
+		for (byte b : path) {
+			result = (result ^ (b & 0xff)) * 0x01000193;
+		}
+		return result ^ (result >>> 16);
+	}
+
+	/**
+	 * This method writes all of a buffer at a position of a file.
+	 * @param channel the file.
+	 * @param buffer the bytes.
+	 * @param position where they go.
+	 * @throws IOException if the write fails.
+	 */
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+
+	/**
+	 * This method writes a single record.
+	 * @param out the stream to write to.
+	 * @param key the absolute path of the file.
+	 * @param fingerprint the fingerprint of the file.
+	 * @throws IOException if the write fails.
+	 */
+
+	private static void write(DataOutputStream out, String key, Fingerprint fingerprint) throws IOException {
+		byte[] path = key.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(path.length);
+		out.write(path);
+		out.writeLong(fingerprint.size);
+		out.writeLong(fingerprint.mtime);
+		out.writeLong(fingerprint.inode);
+		out.write(fingerprint.hash, 0, HASH_SIZE);
+	}
+
+	/**
+	 * This method returns the key a file is kept under, its absolute path.
+	 * @param path the file.
+	 * @return the key.
+	 */
+
+	private static String key(Path path) {
+		return path.toAbsolutePath().normalize().toString();
+	}
+
+	/**
+	 * This method hashes the contents of a file with SHA-256.
+	 * @param path the file.
+	 * @return the hash.
+	 * @throws IOException if the file cannot be read.
+	 */
+
+	private static byte[] hash(Path path) throws IOException {
+		MessageDigest digest = null;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException nsae) {
+			throw new IOException("no SHA-256 available", nsae);
+		}
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+			while (channel.read(buffer) > 0) {
+				buffer.flip();
+				digest.update(buffer);
+				buffer.clear();
+			}
+		}
+		return digest.digest();
+	}
+}
@@ -2,9 +2,44 @@ package command;
 
 import org.w3c.dom.*;
 import java.io.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.time.*;
+import java.time.format.*;
+import java.util.*;
+import java.util.jar.*;
+import java.util.zip.*;
 
 /**
- * This class is used for the jar XML tag that is found in the build file.
+ * This class is used for the jar XML tag that is found in the build file.  The jar is written
+ * inside the build by a JarWriter instead of by starting the jar tool.  The manifest comes from
+ * the manifest file, with the attributes of a nested manifest tag on top, like
+ * <pre>
+ * &lt;jar destfile="bee.jar" basedir="classes"&gt;
+ *     &lt;manifest&gt;&lt;attribute name="Main-Class" value="Bee"/&gt;&lt;/manifest&gt;
+ * &lt;/jar&gt;
+ * </pre>
+ * The files under basedir go into the jar in sorted order, and with modificationtime, in
+ * milliseconds or as an ISO date like 2020-01-01T00:00:00Z, every entry gets that time, so the
+ * same files always make the same jar, byte for byte.  The entries are compressed on a pool of
+ * threads at the level from 0, which stores them, to 9, or at the default level without one.
+ * <p>
+ * The entries of other jars are merged in with nested zipgroupfileset tags, like
+ * <pre>
+ * &lt;zipgroupfileset dir="${lib.dir}" includes="*.jar" excludes="junit*.jar"/&gt;
+ * </pre>
+ * where includes and excludes are lists of patterns, with ** for any number of directories.
+ * The entries are copied the way they are compressed in those jars, see ZipReader, after the
+ * files of basedir and in the order of the jars by name.  The first entry with a name wins,
+ * and their manifests, signatures and indexes are left out since they are not right for the
+ * merged jar.
+ * <p>
+ * With incremental="true" only the files of basedir that changed since the last jar are
+ * compressed.  The entries of the others are copied out of the old jar as they are, using the
+ * index of where they are in it, see JarIndex.  When the manifest, the level or the time
+ * changed, or the old jar is not the one that was written last, every entry is compressed.
  */
 
 public class JarCommand implements Command {
@@ -12,6 +47,83 @@ public class JarCommand implements Command {
 	private String destFile;
 	private String basedir;
 	private String manifest;
+	private String modificationTime;
+	private String level;
+	private String incremental;
+	private ArrayList<Tuple> attributes = new ArrayList<>();
+	private ArrayList<ZipGroup> groups = new ArrayList<>();
+
+	/**
+	 * This class is a zipgroupfileset tag, the jars under a directory that match its patterns.
+	 */
+
+	private static class ZipGroup {
+
+		String dir;
+		String includes;
+		String excludes;
+
+		/**
+		 * This method finds the jars of the group.
+		 * @return the jars, sorted by the path under dir.
+		 * @throws IOException if the directory cannot be read.
+		 */
+
+		List<File> find() throws IOException {
+			final Path root = Paths.get(dir);
+			final List<PathMatcher> include = matchers(includes == null ? "**" : includes);
+			final List<PathMatcher> exclude = matchers(excludes == null ? "" : excludes);
+			final TreeMap<String, File> found = new TreeMap<>();
+			Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+					Path relative = root.relativize(file);
+					if (matches(include, relative) && !matches(exclude, relative)) found.put(name(root, file), file.toFile());
+					return FileVisitResult.CONTINUE;
+				}
+			});
+			return new ArrayList<>(found.values());
+		}
+
+		/**
+		 * This method turns a list of patterns into matchers.  Like ant, a pattern starting
+		 * with ** also matches at the top and one ending with / matches everything under it.
+		 * @param patterns the patterns, split by commas or spaces.
+		 * @return the matchers.
+		 */
+
+		private static List<PathMatcher> matchers(String patterns) {
+			ArrayList<PathMatcher> result = new ArrayList<>();
+			for (String pattern : patterns.trim().split("[,\\s]+")) {
+				if (pattern.isEmpty()) continue;
+				if (pattern.endsWith("/")) pattern += "**";
+				result.add(FileSystems.getDefault().getPathMatcher("glob:" + pattern));
+				if (pattern.startsWith("**/")) result.add(FileSystems.getDefault().getPathMatcher("glob:" + pattern.substring(3)));
+			}
+			return result;
+		}
+
+		/**
+		 * This method determines if a path matches any of the matchers.
+		 * @param matchers the matchers.
+		 * @param path the path under dir.
+		 * @return true if one matches.
+		 */
+
+		private static boolean matches(List<PathMatcher> matchers, Path path) {
+			for (PathMatcher matcher : matchers) {
+				if (matcher.matches(path)) return true;
+			}
+			return false;
+		}
+
+		/**
+		 * @return the group the way it is shown in the command.
+		 */
+
+		public String toString() {
+			return dir + "/" + (includes == null ? "**" : includes) + (excludes == null ? "" : " - " + excludes);
+		}
+	}
 
 	/**
 	 * This constructor parses the jar XML node that is passed to it and creates
@@ -31,27 +143,66 @@ public class JarCommand implements Command {
 	 */
 	
 	public JarCommand(Node currentNode, boolean debug) {
-		NamedNodeMap attribs = currentNode.getAttributes();
-		if (attribs.getNamedItem("manifest") != null) {
-			manifest = attribs.getNamedItem("manifest").getNodeValue();
+		this(CommandNode.fromNode(currentNode), debug);
+	}
+
+	/**
+	 * This constructor uses the jar node from the streaming parser and creates
+	 * what this tool needs to perform the command.
+	 * @param currentNode the parsed node that is used for this command.
+	 * @param debug the boolean flag that is used to determine if debugging is turned on.
+	 */
+	
+	public JarCommand(CommandNode currentNode, boolean debug) {
+		if (currentNode.getAttribute("manifest") != null) {
+			manifest = currentNode.getAttribute("manifest");
+		}
+		if (currentNode.getAttribute("destfile") == null) {
+			throw new FailExecException("Jar task does not have destfile attribute defined.");
 		}
-		if (attribs.getNamedItem("destfile") == null) {
-			System.out.println("Jar task does not have destfile attribute defined.");
-			System.exit(0);
+		destFile = currentNode.getAttribute("destfile");
+		if (currentNode.getAttribute("basedir") == null) {
+			throw new FailExecException("Jar task does not have basedir attribute defined.");
 		}
-		destFile = attribs.getNamedItem("destfile").getNodeValue();
-		if (attribs.getNamedItem("basedir") == null) {
-			System.out.println("Jar task does not have basedir attribute defined.");
-			System.exit(0);
+		basedir = currentNode.getAttribute("basedir");
+		if (currentNode.getAttribute("modificationtime") != null) {
+			modificationTime = currentNode.getAttribute("modificationtime");
+		}
+		if (currentNode.getAttribute("level") != null) {
+			level = currentNode.getAttribute("level");
+		}
+		if (currentNode.getAttribute("incremental") != null) {
+			incremental = currentNode.getAttribute("incremental");
+		}
+		for (int i = 0; i < currentNode.size(); i++) {
+			CommandNode child = currentNode.get(i);
+			if (child.getName().equals("zipgroupfileset")) {
+				if (child.getAttribute("dir") == null) {
+					throw new FailExecException("Jar task has a zipgroupfileset without a dir attribute.");
+				}
+				ZipGroup group = new ZipGroup();
+				group.dir = child.getAttribute("dir");
+				group.includes = child.getAttribute("includes");
+				group.excludes = child.getAttribute("excludes");
+				groups.add(group);
+				continue;
+			}
+			if (!child.getName().equals("manifest")) continue;
+			for (int j = 0; j < child.size(); j++) {
+				CommandNode attribute = child.get(j);
+				if (attribute.getName().equals("attribute") && attribute.getAttribute("name") != null) {
+					String value = attribute.getAttribute("value");
+					attributes.add(new Tuple(attribute.getAttribute("name"), value == null ? "" : value));
+				}
+			}
 		}
-		basedir = attribs.getNamedItem("basedir").getNodeValue();
 		if (debug) System.out.println("jar command: " + buildCmdString());
 	 }
 
 	 /**
-	 * This method builds the command line that will be used by the system outside of the virtual
-	 * system to run the specified application.
-	 * @return A String representation of the command that will be used.
+	 * This method builds the command line of the jar tool that would make the same jar, which
+	 * is what is shown in the output of the build.
+	 * @return A String representation of the command.
 	 */
 
 	private String buildCmdString() {
@@ -61,22 +212,40 @@ public class JarCommand implements Command {
 		args = manifest != null ? "-cfm " : "-cf ";
 		buffer.append(args + " " + destFile + " ");
 		if (manifest != null) buffer.append(manifest + " ");
+		if (modificationTime != null) buffer.append("--date=" + modificationTime + " ");
+		if (level != null) buffer.append("level=" + level + " ");
+		if (incremental != null) buffer.append("incremental=" + incremental + " ");
 		buffer.append(basedir);
+		for (Tuple attribute : attributes) {
+			buffer.append(" [" + attribute.key + ": " + attribute.value + "]");
+		}
+		for (ZipGroup group : groups) {
+			buffer.append(" + " + group);
+		}
 		return buffer.toString();
 	}
 
 	/**
 	 * This method takes the dictionary of build properties and passes those to this command to use the ones
 	 * applicable to it.
-	 * @param dict is the dictionary of key /value pairs with the build properties to use on this command.
+	 * @param scope is the build properties to use on this command.
 	 */
 
-	public void update(Dictionary dict) {
-		String[] keys = dict.getKeys();
-		for (int i = 0; i < keys.length; i++) {
-			basedir = CommandFactory.adjust(basedir, "${" + keys[i] + "}", dict.getValueForKey(keys[i]));
-			destFile = CommandFactory.adjust(destFile, "${" + keys[i] + "}", dict.getValueForKey(keys[i]));
-			manifest = CommandFactory.adjust(manifest, "${" + keys[i] + "}", dict.getValueForKey(keys[i]));
+	public void update(PropertyScope scope) {
+		basedir = Template.render(basedir, scope);
+		destFile = Template.render(destFile, scope);
+		manifest = Template.render(manifest, scope);
+		modificationTime = Template.render(modificationTime, scope);
+		level = Template.render(level, scope);
+		incremental = Template.render(incremental, scope);
+		for (int i = 0; i < attributes.size(); i++) {
+			Tuple attribute = attributes.get(i);
+			attributes.set(i, new Tuple(attribute.key, Template.render(attribute.value, scope)));
+		}
+		for (ZipGroup group : groups) {
+			group.dir = Template.render(group.dir, scope);
+			group.includes = Template.render(group.includes, scope);
+			group.excludes = Template.render(group.excludes, scope);
 		}
 	}
 
@@ -98,50 +267,267 @@ public class JarCommand implements Command {
      */
 
 	public void execute(boolean debug) {
-		ProcessBuilder pb = new ProcessBuilder(buildCmdString());
+		System.out.println("[ jar ] " + buildCmdString());
+		final Path root = Paths.get(basedir);
+		if (!Files.isDirectory(root)) {
+			throw new FailExecException("Unable to jar " + basedir + " since it is not a directory.  See parameters\n" + this.toString());
+		}
+		int compression = parseLevel();
+		final Path target = Paths.get(destFile).toAbsolutePath().normalize();
+		final TreeMap<String, File> entries = new TreeMap<>();
+		JarIndex index = Boolean.parseBoolean(incremental) ? JarIndex.load(destFile) : null;
+		JarWriter writer = null;
+		FileChannel old = null;
 		try {
-			Process process = pb.start();
-			InputStreamReader isr = new InputStreamReader(process.getInputStream());
-			BufferedReader reader = new BufferedReader(isr);
-			String line;
-			while ((line = reader.readLine()) != null) {
-				System.out.println(line);
+			Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+				public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+					if (!dir.equals(root)) entries.put(name(root, dir) + "/", dir.toFile());
+					return FileVisitResult.CONTINUE;
+				}
+
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+					// a jar that is written inside its own basedir does not go in itself
+					if (!file.toAbsolutePath().normalize().equals(target)) entries.put(name(root, file), file.toFile());
+					return FileVisitResult.CONTINUE;
+				}
+			});
+			Iterator<String> names = entries.keySet().iterator();
+			while (names.hasNext()) {
+				if (names.next().equalsIgnoreCase(JarFile.MANIFEST_NAME)) names.remove();
+			}
+			Manifest jarManifest = buildManifest();
+			long time = parseTime();
+			File jar = new File(destFile);
+			Map<String, String> fingerprints = null;
+			String options = null;
+			if (index != null) {
+				fingerprints = fingerprint(entries);
+				options = JarIndex.hash(options(jarManifest, compression, time));
+				if (index.matches(options, jar) && index.sameOrder(entries.keySet())) {
+					old = FileChannel.open(jar.toPath(), StandardOpenOption.READ);
+				} else if (debug) {
+					System.out.println("[ jar ] the old jar cannot be reused, compressing every entry");
+				}
+			}
+			writer = new JarWriter(jar, jarManifest, time, compression);
+			int reused = 0;
+			for (Map.Entry<String, File> entry : entries.entrySet()) {
+				ZipWriter.Entry kept = old == null ? null : reuse(old, index, entry.getKey(), fingerprints.get(entry.getKey()));
+				if (kept != null) {
+					writer.add(kept);
+					reused++;
+				} else {
+					writer.add(entry.getKey(), entry.getValue());
+				}
+			}
+			merge(writer, debug);
+			// the old jar has to be let go of before the new one replaces it
+			if (old != null) old.close();
+			writer.close();
+			if (index != null) {
+				index.reset(options);
+				for (ZipWriter.Entry entry : writer.getEntries()) {
+					String fingerprint = fingerprints.get(entry.name);
+					if (fingerprint != null) index.put(entry.name, new JarIndex.Item(fingerprint, entry.offset, entry.compressedSize));
+				}
+				index.save(jar);
+				System.out.println("[ jar ] compressed " + (fingerprints.size() - reused) + " files, reused " + reused);
 			}
 		} catch (IOException ioe) {
-			if (debug) {
-				throw new FailExecException("unable to jar file " + ioe.getMessage());
-			} else {
-				ioe.printStackTrace();
-				System.exit(0);
+			if (writer != null) writer.abort();
+			if (index != null) index.delete();
+			throw new FailExecException("unable to jar " + basedir + " into " + destFile, ioe);
+		} catch (FailExecException fee) {
+			if (writer != null) writer.abort();
+			if (index != null) index.delete();
+			throw fee;
+		} finally {
+			try {
+				if (old != null) old.close();
+			} catch (IOException ioe) {
+				// it was only read
 			}
 		}
-		
-		// boolean usualFailure = false;
-		// try {
-		// 	System.out.println("[ jar ] " + buildCmdString());
-		// 	Runtime.getRuntime().exec(buildCmdString());
-    	// } catch (IOException ioe) {
-		// 	if (basedir == null) {
-		// 		usualFailure = true;
-		// 		if (debug) throw new FailExecException("Unable to jar an unknown directory");
-		// 		else {
-		// 			System.out.println("Unable to jar an unknown directory");
-		// 			System.exit(0);
-		// 		}
-		// 	}
-		// 	if (destFile == null) {
-		// 		usualFailure = true;
-		// 		if (debug) {
-		// 			throw new FailExecException("unable to create jar file since no file was given");
-		// 		} else {
-		// 			System.out.println("Unable to create har file since no file was given");
-		// 			System.exit(0);
-		// 		}
-		// 	}
-		// 	if (!usualFailure) {
-        // 		ioe.printStackTrace();
-		// 	}
-		// }
+		if (debug) System.out.println("[ jar ] " + entries.size() + " entries");
+	}
+
+	/**
+	 * This method hashes the contents of the files that go in the jar, see FileFingerprints.
+	 * @param entries the entries of basedir.
+	 * @return the hash of each file by the name of its entry.
+	 * @throws IOException if a file cannot be read.
+	 */
+
+	private static Map<String, String> fingerprint(Map<String, File> entries) throws IOException {
+		HashMap<Path, String> names = new HashMap<>();
+		for (Map.Entry<String, File> entry : entries.entrySet()) {
+			if (!entry.getKey().endsWith("/")) names.put(entry.getValue().toPath(), entry.getKey());
+		}
+		HashMap<String, String> result = new HashMap<>();
+		for (Map.Entry<Path, FileFingerprints.Fingerprint> entry : FileFingerprints.getInstance().fingerprintAll(names.keySet()).entrySet()) {
+			if (entry.getValue() != null) result.put(names.get(entry.getKey()), entry.getValue().hashString());
+		}
+		return result;
+	}
+
+	/**
+	 * This method makes the text of what every entry of the jar depends on besides its file.
+	 * @param jarManifest the manifest.
+	 * @param compression the level.
+	 * @param time the fixed time, or -1.
+	 * @return the text.
+	 * @throws IOException if the manifest cannot be written out.
+	 */
+
+	private static String options(Manifest jarManifest, int compression, long time) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		jarManifest.write(bytes);
+		return "level " + compression + "\ntime " + time + "\nmanifest\n" + new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * This method reads the entry of a file out of the old jar, if the file has not changed.
+	 * @param old the old jar.
+	 * @param index the index of the old jar.
+	 * @param name the name of the entry.
+	 * @param fingerprint the hash of the file now, or null for a directory.
+	 * @return the entry, or null if it has to be compressed.
+	 * @throws IOException if the old jar cannot be read.
+	 */
+
+	private static ZipWriter.Entry reuse(FileChannel old, JarIndex index, String name, String fingerprint) throws IOException {
+		if (fingerprint == null) return null;
+		JarIndex.Item item = index.get(name);
+		if (item == null || !item.fingerprint.equals(fingerprint)) return null;
+		return JarIndex.read(old, name, item);
+	}
+
+	/**
+	 * This method copies the entries of the jars of the zipgroupfilesets into the jar.
+	 * @param writer the jar.
+	 * @param debug the boolean flag for enabling debugging.
+	 * @throws IOException if a jar cannot be read or the entries cannot be written.
+	 */
+
+	private void merge(JarWriter writer, boolean debug) throws IOException {
+		for (ZipGroup group : groups) {
+			if (!Files.isDirectory(Paths.get(group.dir))) {
+				throw new FailExecException("Unable to merge " + group + " since " + group.dir + " is not a directory.  See parameters\n" + this.toString());
+			}
+			for (File jar : group.find()) {
+				int copied = 0;
+				int skipped = 0;
+				for (ZipWriter.Entry entry : ZipReader.read(jar)) {
+					if (isJarMetadata(entry.name)) continue;
+					if (writer.contains(entry.name)) {
+						if (!entry.name.endsWith("/")) skipped++;
+						continue;
+					}
+					writer.add(entry);
+					copied++;
+				}
+				if (debug) System.out.println("[ jar ] merged " + copied + " entries of " + jar + ", " + skipped + " already in the jar");
+			}
+		}
+	}
+
+	/**
+	 * This method determines if an entry of a merged jar only makes sense in that jar, which is
+	 * its manifest, its index and the files that sign it.
+	 * @param name the name of the entry.
+	 * @return true if it is left out.
+	 */
+
+	private static boolean isJarMetadata(String name) {
+		String upper = name.toUpperCase(Locale.ROOT);
+		if (!upper.startsWith("META-INF/") || upper.indexOf('/', 9) != -1) return false;
+		String file = upper.substring(9);
+		return file.equals("MANIFEST.MF") || file.equals("INDEX.LIST") || file.startsWith("SIG-")
+			|| file.endsWith(".SF") || file.endsWith(".DSA") || file.endsWith(".RSA") || file.endsWith(".EC");
+	}
+
+	/**
+	 * This method makes the manifest of the jar, from the manifest file and the attributes of
+	 * the nested manifest tag, which win over the ones in the file.
+	 * @return the manifest.
+	 * @throws IOException if the manifest file cannot be read.
+	 */
+
+	private Manifest buildManifest() throws IOException {
+		Manifest result = new Manifest();
+		if (manifest != null) {
+			try (InputStream in = new BufferedInputStream(new FileInputStream(manifest))) {
+				result.read(in);
+			}
+		}
+		for (Tuple attribute : attributes) {
+			result.getMainAttributes().putValue(attribute.key, attribute.value);
+		}
+		// without a version Manifest.write leaves out every main attribute
+		if (result.getMainAttributes().getValue(Attributes.Name.MANIFEST_VERSION) == null) {
+			result.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		}
+		return result;
+	}
+
+	/**
+	 * This method reads the modificationtime attribute, which is milliseconds since 1970 or an
+	 * ISO date, with or without a time and an offset.  A time without an offset is UTC.
+	 * @return the time in milliseconds, or -1 if there is no modificationtime.
+	 * @throws FailExecException if the time cannot be read.
+	 */
+
+	private long parseTime() throws FailExecException {
+		if (modificationTime == null) return -1;
+		String text = modificationTime.trim();
+		try {
+			return Long.parseLong(text);
+		} catch (NumberFormatException nfe) {
+			// not milliseconds, try the dates
+		}
+		try {
+			return OffsetDateTime.parse(text).toInstant().toEpochMilli();
+		} catch (DateTimeParseException dtpe) {
+			// no offset
+		}
+		try {
+			return LocalDateTime.parse(text).toInstant(ZoneOffset.UTC).toEpochMilli();
+		} catch (DateTimeParseException dtpe) {
+			// no time
+		}
+		try {
+			return LocalDate.parse(text).atStartOfDay().toInstant(ZoneOffset.UTC).toEpochMilli();
+		} catch (DateTimeParseException dtpe) {
+			throw new FailExecException("Unable to read modificationtime \'" + modificationTime + "\'.  See parameters\n" + this.toString());
+		}
+	}
+
+	/**
+	 * This method reads the level attribute.
+	 * @return the compression level, 0 to 9, or the default level if there is no level.
+	 * @throws FailExecException if the level is not a number from 0 to 9.
+	 */
+
+	private int parseLevel() throws FailExecException {
+		if (level == null) return Deflater.DEFAULT_COMPRESSION;
+		try {
+			int result = Integer.parseInt(level.trim());
+			if (result >= 0 && result <= 9) return result;
+		} catch (NumberFormatException nfe) {
+			// the same message as out of range
+		}
+		throw new FailExecException("Jar level '" + level + "' is not a number from 0 to 9.  See parameters\n" + this.toString());
+	}
+
+	/**
+	 * This method returns the name of the entry for a file under the base directory.
+	 * @param root the base directory.
+	 * @param file the file.
+	 * @return the name, with / between the directories.
+	 */
+
+	private static String name(Path root, Path file) {
+		return root.relativize(file).toString().replace(File.separatorChar, '/');
 	}
 
 	/**
@@ -155,6 +541,50 @@ public class JarCommand implements Command {
 		return COMMAND_TYPE.JAR;
 	}
 
+	/**
+	 * This function returns the resource pools this command needs a permit from before it
+	 * can run.  Compressing the entries keeps a core busy and the whole base directory is read.
+	 * @return the names of the pools.  See Command interface.
+	 */
+
+	public String[] getPools() {
+		return new String[]{POOL_CPU, POOL_IO};
+	}
+
+	/**
+	 * This function returns the files and directories this command reads, which are the base
+	 * directory, the manifest if there is one and the directory of each zipgroupfileset.
+	 * @return the paths of the inputs.  See Command interface.
+	 */
+
+	public String[] getInputs() {
+		ArrayList<String> result = new ArrayList<>();
+		result.add(basedir);
+		if (manifest != null) result.add(manifest);
+		for (ZipGroup group : groups) {
+			result.add(group.dir);
+		}
+		return result.toArray(new String[0]);
+	}
+
+	/**
+	 * This function returns the files and directories this command writes.
+	 * @return the paths of the outputs.  See Command interface.
+	 */
+
+	public String[] getOutputs() {
+		return new String[]{destFile};
+	}
+
+	/**
+	 * This function returns the inputs of which only the ABI matters.
+	 * @return an empty array, since there are none.  See Command interface.
+	 */
+
+	public String[] getAbiInputs() {
+		return new String[0];
+	}
+
 	/**
      * This function returns a String that represents the JarCommand and the directory
 	 * that the object has.
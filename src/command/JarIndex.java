@@ -0,0 +1,252 @@
+package command;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+import java.util.*;
+
+/**
+ * This class is what an incremental jar tag remembers about the jar it wrote last, so the next
+ * one only has to compress the files that changed.  For every file of basedir it keeps the hash
+ * of its contents, see FileFingerprints, and where its compressed entry is in the jar and how
+ * big it is, so an entry whose file has not changed can be read back from the old jar as it is
+ * and copied into the new one, see ZipWriter.addRaw().  It also keeps a hash of the manifest and
+ * the options of the tag, and the size and time of the jar, since when any of those changed
+ * nothing in the old jar can be trusted.  Like CompileState, the index of each jar is a small
+ * text file under .bee/jar in the working directory rather than next to the jar, where it would
+ * end up in the distribution.
+ */
+
+public class JarIndex {
+
+	private static final String STATE_DIR = ".bee";
+	private static final String JAR_DIR = "jar";
+
+	private final File file;
+	private String options;
+	private long length = -1;
+	private long modified = -1;
+	private final LinkedHashMap<String, Item> items = new LinkedHashMap<>();
+
+	/**
+	 * This class is an entry of the old jar, with the hash of the file it was made from.
+	 */
+
+	public static class Item {
+
+		public final String fingerprint;
+		public final long offset;
+		public final long compressedSize;
+
+		/**
+		 * The constructor sets all of the values of the item.
+		 * @param fingerprint the hash of the file, see FileFingerprints.Fingerprint.hashString().
+		 * @param offset where the local header of the entry is in the jar.
+		 * @param compressedSize the size of the data of the entry.
+		 */
+
+		public Item(String fingerprint, long offset, long compressedSize) {
+			this.fingerprint = fingerprint;
+			this.offset = offset;
+			this.compressedSize = compressedSize;
+		}
+	}
+
+	/**
+	 * The constructor is only used by load.
+	 * @param file the file the index is kept in.
+	 */
+
+	private JarIndex(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * This method reads the index of a jar.  A missing or unreadable file gives an empty index,
+	 * which means everything is compressed.
+	 * @param destfile the jar.
+	 * @return the index.
+	 */
+
+	public static JarIndex load(String destfile) {
+		File dir = new File(new File(System.getProperty("user.dir"), STATE_DIR), JAR_DIR);
+		JarIndex result = new JarIndex(new File(dir, CompileState.name(new File(destfile).getAbsolutePath())));
+		if (!result.file.exists()) return result;
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(result.file), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split("\t", -1);
+				if (fields[0].equals("options") && fields.length == 2) {
+					result.options = fields[1];
+				} else if (fields[0].equals("jar") && fields.length == 3) {
+					result.length = Long.parseLong(fields[1]);
+					result.modified = Long.parseLong(fields[2]);
+				} else if (fields[0].equals("entry") && fields.length == 5) {
+					result.items.put(fields[4], new Item(fields[3], Long.parseLong(fields[1]), Long.parseLong(fields[2])));
+				}
+			}
+		} catch (IOException | NumberFormatException e) {
+			return new JarIndex(result.file);
+		}
+		return result;
+	}
+
+	/**
+	 * This method writes the index back to its file, with the size and time the jar has now.
+	 * Failing to write it is only reported, the next jar just compresses more than it has to.
+	 * @param jar the jar that was written.
+	 */
+
+	public void save(File jar) {
+		length = jar.length();
+		modified = jar.lastModified();
+		file.getParentFile().mkdirs();
+		try (PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)))) {
+			writer.println("options\t" + (options == null ? "" : options));
+			writer.println("jar\t" + length + "\t" + modified);
+			for (Map.Entry<String, Item> entry : items.entrySet()) {
+				Item item = entry.getValue();
+				writer.println("entry\t" + item.offset + "\t" + item.compressedSize + "\t" + item.fingerprint + "\t" + entry.getKey());
+			}
+		} catch (IOException ioe) {
+			System.out.println("unable to save jar index: " + ioe.getMessage());
+		}
+	}
+
+	/**
+	 * This method forgets everything, so the next jar compresses every file.  It is used when a
+	 * jar fails part way through.
+	 */
+
+	public void delete() {
+		file.delete();
+		options = null;
+		length = -1;
+		modified = -1;
+		items.clear();
+	}
+
+	/**
+	 * This method determines if the entries of the old jar can be used, which is when the jar
+	 * is the one the index was saved with and the options are the same.
+	 * @param options the hash of the options of this jar, see hash().
+	 * @param jar the jar.
+	 * @return true if the old entries can be copied.
+	 */
+
+	public boolean matches(String options, File jar) {
+		return options.equals(this.options) && jar.isFile() && jar.length() == length && jar.lastModified() == modified;
+	}
+
+	/**
+	 * This method determines if the entries that are kept are in the same order in the old jar
+	 * as they are going to be in the new one.
+	 * @param names the names of the entries of the new jar, in order.
+	 * @return true if the order is the same.
+	 */
+
+	public boolean sameOrder(Collection<String> names) {
+		long last = -1;
+		for (String name : names) {
+			Item item = items.get(name);
+			if (item == null) continue;
+			if (item.offset < last) return false;
+			last = item.offset;
+		}
+		return true;
+	}
+
+	/**
+	 * @param name the name of an entry.
+	 * @return what the old jar has for it, or null if it was not in the old jar.
+	 */
+
+	public Item get(String name) {
+		return items.get(name);
+	}
+
+	/**
+	 * This method starts the index of a new jar.
+	 * @param options the hash of the options of the jar, see hash().
+	 */
+
+	public void reset(String options) {
+		this.options = options;
+		items.clear();
+	}
+
+	/**
+	 * This method adds an entry of the new jar.
+	 * @param name the name of the entry.
+	 * @param item the hash of the file and where the entry is.
+	 */
+
+	public void put(String name, Item item) {
+		items.put(name, item);
+	}
+
+	/**
+	 * This method reads an entry of the old jar from the local header at the offset the index
+	 * has for it, with its data still compressed.
+	 * @param jar the old jar.
+	 * @param name the name of the entry.
+	 * @param item what the index has for it.
+	 * @return the entry, or null if the old jar does not have it there.
+	 * @throws IOException if the jar cannot be read.
+	 */
+
+	public static ZipWriter.Entry read(FileChannel jar, String name, Item item) throws IOException {
+		byte[] expected = name.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer header = ByteBuffer.allocate(30 + expected.length).order(ByteOrder.LITTLE_ENDIAN);
+		if (!readFully(jar, header, item.offset)) return null;
+		if (header.getInt(0) != ZipWriter.LOCAL_HEADER) return null;
+		if ((header.getShort(26) & 0xFFFF) != expected.length) return null;
+		byte[] actual = new byte[expected.length];
+		header.get(30, actual);
+		long compressedSize = header.getInt(18) & ZipWriter.LIMIT;
+		if (!Arrays.equals(expected, actual) || compressedSize != item.compressedSize || compressedSize > Integer.MAX_VALUE) return null;
+		ByteBuffer data = ByteBuffer.allocate((int) compressedSize);
+		if (!readFully(jar, data, item.offset + 30 + expected.length + (header.getShort(28) & 0xFFFF))) return null;
+		return new ZipWriter.Entry(name, header.getShort(8) & 0xFFFF, header.getInt(14) & ZipWriter.LIMIT,
+			compressedSize, header.getInt(22) & ZipWriter.LIMIT, header.getInt(10), data);
+	}
+
+	/**
+	 * This method hashes the options of a jar.
+	 * @param text the options.
+	 * @return the SHA-256 as a hex String.
+	 */
+
+	public static String hash(String text) {
+		try {
+			StringBuilder buffer = new StringBuilder();
+			for (byte b : MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8))) {
+				buffer.append(String.format("%02x", b));
+			}
+			return buffer.toString();
+		} catch (GeneralSecurityException gse) {
+			return Integer.toHexString(text.hashCode());
+		}
+	}
+
+	/**
+	 * This method fills a buffer from a position of a file.
+	 * @param channel the file.
+	 * @param buffer the buffer.
+	 * @param position where to start.
+	 * @return false if the file ends first.
+	 * @throws IOException if the file cannot be read.
+	 */
+
+	private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position);
+			if (read == -1) return false;
+			position += read;
+		}
+		buffer.flip();
+		return true;
+	}
+}
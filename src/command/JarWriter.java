@@ -0,0 +1,197 @@
+package command;
+
+import java.io.*;
+import java.util.*;
+import java.util.jar.*;
+import java.util.zip.*;
+
+/**
+ * This class writes a jar inside the build, without starting the jar tool.  Entries are
+ * compressed as they are added, from any thread, so a compile can hand its classes over while
+ * it is still running.  The jar is written to a temporary file next to the real one and only
+ * moved into place when it is closed, so a build that fails part way through leaves the last
+ * good jar alone.  The directories of the entries are added the first time they are needed,
+ * the way the jar tool does.  The zip itself is written by ZipWriter, which compresses the
+ * entries on a pool of threads at the level it is given.
+ * <p>
+ * Given a fixed time, every entry, the manifest included, gets that time, and it is stored as
+ * UTC so the time zone of the machine does not matter.  Together with adding the entries in a
+ * stable order that makes a jar of the same files the same bytes every time.
+ */
+
+public class JarWriter implements Closeable {
+
+	private final ZipWriter out;
+	private final boolean fixedTime;
+
+	/**
+	 * The constructor starts the jar, with the time the entries are added as their time.
+	 * @param destfile the jar to write.
+	 * @param manifest the manifest, or null for one with only the version in it.
+	 * @throws IOException if the jar cannot be written.
+	 */
+
+	public JarWriter(File destfile, Manifest manifest) throws IOException {
+		this(destfile, manifest, -1);
+	}
+
+	/**
+	 * The constructor starts the jar.
+	 * @param destfile the jar to write.
+	 * @param manifest the manifest, or null for one with only the version in it.
+	 * @param time the time of every entry in milliseconds, or -1 for the time it is added.
+	 * @throws IOException if the jar cannot be written.
+	 */
+
+	public JarWriter(File destfile, Manifest manifest, long time) throws IOException {
+		this(destfile, manifest, time, Deflater.DEFAULT_COMPRESSION);
+	}
+
+	/**
+	 * The constructor starts the jar.
+	 * @param destfile the jar to write.
+	 * @param manifest the manifest, or null for one with only the version in it.
+	 * @param time the time of every entry in milliseconds, or -1 for the time it is added.
+	 * @param level the compression level, 0 to store everything up to 9, or -1 for the default.
+	 * @throws IOException if the jar cannot be written.
+	 */
+
+	public JarWriter(File destfile, Manifest manifest, long time, int level) throws IOException {
+		if (manifest == null) {
+			manifest = new Manifest();
+		}
+		if (manifest.getMainAttributes().getValue(Attributes.Name.MANIFEST_VERSION) == null) {
+			manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		}
+		out = new ZipWriter(destfile, level, time);
+		fixedTime = time != -1;
+		// the manifest is written like any other entry, so it gets the same time
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		manifest.write(bytes);
+		out.addDirectory("META-INF/");
+		out.add(JarFile.MANIFEST_NAME, bytes.toByteArray());
+	}
+
+	/**
+	 * This method adds an entry.  An entry that is already in the jar is left as it is.
+	 * @param name the name of the entry, with / between the directories.
+	 * @param bytes the contents.
+	 * @throws IOException if the entry cannot be written.
+	 */
+
+	public synchronized void add(String name, byte[] bytes) throws IOException {
+		if (out.contains(name)) return;
+		addDirectories(name);
+		out.add(name, bytes);
+	}
+
+	/**
+	 * This method adds an entry in place of the one with the same name, see ZipWriter.replace().
+	 * @param name the name of the entry, with / between the directories.
+	 * @param bytes the new contents.
+	 * @throws IOException if the entry cannot be written.
+	 */
+
+	public synchronized void replace(String name, byte[] bytes) throws IOException {
+		addDirectories(name);
+		out.replace(name, bytes);
+	}
+
+	/**
+	 * This method takes an entry out of the jar, see ZipWriter.remove().
+	 * @param name the name of the entry.
+	 * @throws IOException if an entry cannot be written.
+	 */
+
+	public synchronized void remove(String name) throws IOException {
+		out.remove(name);
+	}
+
+	/**
+	 * This method adds a file from the disk as an entry.  A directory is added as a directory
+	 * entry.
+	 * @param name the name of the entry, with / between the directories.
+	 * @param file the file.
+	 * @throws IOException if the file cannot be read or the entry cannot be written.
+	 */
+
+	public synchronized void add(String name, File file) throws IOException {
+		if (file.isDirectory()) {
+			String dir = name.endsWith("/") ? name : name + "/";
+			addDirectories(dir);
+			out.addDirectory(dir);
+			return;
+		}
+		if (out.contains(name)) return;
+		addDirectories(name);
+		out.add(name, file);
+	}
+
+	/**
+	 * This method adds an entry of another zip as it is stored there, see ZipReader, so it is
+	 * not compressed again.  It keeps its time unless the jar has a fixed time.  An entry that
+	 * is already in the jar is left as it is.
+	 * @param entry the entry.
+	 * @throws IOException if the entry cannot be written.
+	 */
+
+	public synchronized void add(ZipWriter.Entry entry) throws IOException {
+		if (out.contains(entry.name)) return;
+		addDirectories(entry.name);
+		if (entry.name.endsWith("/")) {
+			out.addDirectory(entry.name);
+		} else {
+			out.addRaw(entry.name, entry.method, entry.crc, entry.size, fixedTime ? -1 : entry.dosTime, entry.getData());
+		}
+	}
+
+	/**
+	 * This method determines if an entry is in the jar.
+	 * @param name the name of the entry.
+	 * @return true if it has been added.
+	 */
+
+	public synchronized boolean contains(String name) {
+		return out.contains(name);
+	}
+
+	/**
+	 * This method returns the entries of the jar, with where they are in it, once it is closed.
+	 * @return the entries, in the order they are in the jar.
+	 */
+
+	public synchronized List<ZipWriter.Entry> getEntries() {
+		return out.getEntries();
+	}
+
+	/**
+	 * This method finishes the jar and moves it into place.
+	 * @throws IOException if the jar cannot be finished.
+	 */
+
+	public synchronized void close() throws IOException {
+		out.close();
+	}
+
+	/**
+	 * This method gives up on the jar, the one that was there before is left alone.
+	 */
+
+	public synchronized void abort() {
+		out.abort();
+	}
+
+	/**
+	 * This method adds the directories an entry is in, the ones that are not in the jar yet.
+	 * @param name the name of the entry.
+	 * @throws IOException if an entry cannot be written.
+	 */
+
+	private void addDirectories(String name) throws IOException {
+		int slash = name.indexOf('/');
+		while (slash != -1 && slash < name.length() - 1) {
+			out.addDirectory(name.substring(0, slash + 1));
+			slash = name.indexOf('/', slash + 1);
+		}
+	}
+}
@@ -40,27 +40,36 @@ public class JavaCommand implements Command {
 	 */
 	
 	public JavaCommand(Node currentNode, boolean debug) { 
-		NamedNodeMap attribs = currentNode.getAttributes();
-		if (attribs.getNamedItem("classname") == null) {
-			System.out.println("Java task does not have classname attribute defined.");
-			System.exit(0);
+		this(CommandNode.fromNode(currentNode), debug);
+	}
+
+	/**
+	 * This constructor uses the java node from the streaming parser and creates
+	 * what this tool needs to perform the command.
+	 * @param currentNode the parsed node that is used for this command.
+	 * @param debug the boolean flag that is used to determine if debugging is turned on.
+	 */
+	
+	public JavaCommand(CommandNode currentNode, boolean debug) { 
+		if (currentNode.getAttribute("classname") == null) {
+			throw new FailExecException("Java task does not have classname attribute defined.");
 		} else {
-			classname = attribs.getNamedItem("classname").getNodeValue();
+			classname = currentNode.getAttribute("classname");
 		}
-		if (attribs.getNamedItem("jar") != null) {
-			jar = attribs.getNamedItem("jar").getNodeValue();
+		if (currentNode.getAttribute("jar") != null) {
+			jar = currentNode.getAttribute("jar");
 		}
-		if (attribs.getNamedItem("classpath") != null) {
-			classpath = attribs.getNamedItem("classpath").getNodeValue();
+		if (currentNode.getAttribute("classpath") != null) {
+			classpath = currentNode.getAttribute("classpath");
 		}
-		String temp = attribs.getNamedItem("fork").getNodeValue();
+		String temp = currentNode.getAttribute("fork");
 		if (temp != null && temp.toLowerCase().matches("true")) {
 			fork = true;
 		} else {
 			fork = false;
 		}
-		if (attribs.getNamedItem("executable") != null) {
-			executable = attribs.getNamedItem("executable").getNodeValue();
+		if (currentNode.getAttribute("executable") != null) {
+			executable = currentNode.getAttribute("executable");
 		}
 		if (debug) System.out.println("java command: " + buildCmdString());
 	}
@@ -85,17 +94,14 @@ public class JavaCommand implements Command {
 	/**
 	 * This method takes the dictionary of build properties and passes those to this command to use the ones
 	 * applicable to it.
-	 * @param dict is the dictionary of key /value pairs with the build properties to use on this command.
+	 * @param scope is the build properties to use on this command.
 	 */
 
-	public void update(Dictionary dict) {
-		String[] keys = dict.getKeys();
-		for (int i = 0; i < keys.length; i++) {
-			jar = CommandFactory.adjust(jar, "${" + keys[i] + "}", dict.getValueForKey(keys[i]));
-			classpath = CommandFactory.adjust(classpath, "${" + keys[i] + "}", dict.getValueForKey(keys[i]));
-			classname = CommandFactory.adjust(classname, "${" + keys[i] + "}", dict.getValueForKey(keys[i]));
-			executable = CommandFactory.adjust(executable, "${" + keys[i] + "}", dict.getValueForKey(keys[i]));
-		}
+	public void update(PropertyScope scope) {
+		jar = Template.render(jar, scope);
+		classpath = Template.render(classpath, scope);
+		classname = Template.render(classname, scope);
+		executable = Template.render(executable, scope);
 	}
 
 	/**
@@ -142,6 +148,43 @@ public class JavaCommand implements Command {
 		return COMMAND_TYPE.JAVA;
 	}
 
+	/**
+	 * This function returns the resource pools this command needs a permit from before it
+	 * can run.  The application is run as a separate process.
+	 * @return the names of the pools.  See Command interface.
+	 */
+
+	public String[] getPools() {
+		return new String[]{POOL_FORKS};
+	}
+
+	/**
+	 * This function returns the files and directories this command reads.  Running an application is never up to date, so its target is never skipped.
+	 * @return the paths of the inputs.  See Command interface.
+	 */
+
+	public String[] getInputs() {
+		return null;
+	}
+
+	/**
+	 * This function returns the files and directories this command writes.
+	 * @return the paths of the outputs.  See Command interface.
+	 */
+
+	public String[] getOutputs() {
+		return null;
+	}
+
+	/**
+	 * This function returns the inputs of which only the ABI matters.
+	 * @return an empty array, since there are none.  See Command interface.
+	 */
+
+	public String[] getAbiInputs() {
+		return new String[0];
+	}
+
 	/**
      * This function returns a String that represents the MkDirCommand and the directory
 	 * that the object has.
@@ -29,11 +29,21 @@ public class MkDirCommand implements Command {
 	 */
 
 	public MkDirCommand(Node currentNode, boolean debug) {
-		if (currentNode.getAttributes().getNamedItem("dir") != null) {
-			dir = currentNode.getAttributes().getNamedItem("dir").getNodeValue();
+		this(CommandNode.fromNode(currentNode), debug);
+	}
+
+	/**
+	 * This constructor uses the node from the streaming parser and creates
+	 * what this tool needs to perform the command.
+	 * @param currentNode the parsed node that is used for the command.
+	 * @param debug the boolean flag that determines if debugging is turned on.
+	 */
+
+	public MkDirCommand(CommandNode currentNode, boolean debug) {
+		if (currentNode.getAttribute("dir") != null) {
+			dir = currentNode.getAttribute("dir");
 		} else {
-			System.out.println("MkDir task does not have dir attribute defined.");
-			System.exit(0);
+			throw new FailExecException("MkDir task does not have dir attribute defined.");
 		} 
 		if (debug) System.out.println("mkdir command: " + buildCmdString());
 
@@ -53,14 +63,11 @@ public class MkDirCommand implements Command {
 	/** 
 	 * This method updates all the variables this command uses based on the dictionary of key /value
 	 * pairs that are passed to it.
-	 * @param dict is the dictionary of key /value pairs that will modify the command variables.
+	 * @param scope is the build properties that will modify the command variables.
 	 */
 
-	public void update(Dictionary dict) {
-		String[] keys = dict.getKeys();
-		for (int i = 0; i < keys.length; i++) {
-			dir = CommandFactory.adjust(dir, "${" + keys[i] + "}", dict.getValueForKey(keys[i]));
-		}
+	public void update(PropertyScope scope) {
+		dir = Template.render(dir, scope);
 	}
 
 	/**
@@ -101,6 +108,44 @@ public class MkDirCommand implements Command {
 		return COMMAND_TYPE.MKDIR;
 	}
 
+	/**
+	 * This function returns the resource pools this command needs a permit from before it
+	 * can run.  Making a directory is a disk operation.
+	 * @return the names of the pools.  See Command interface.
+	 */
+
+	public String[] getPools() {
+		return new String[]{POOL_IO};
+	}
+
+	/**
+	 * This function returns the files and directories this command reads, which is nothing,
+	 * since making a directory does not depend on anything.
+	 * @return the paths of the inputs.  See Command interface.
+	 */
+
+	public String[] getInputs() {
+		return new String[0];
+	}
+
+	/**
+	 * This function returns the files and directories this command writes.
+	 * @return the paths of the outputs.  See Command interface.
+	 */
+
+	public String[] getOutputs() {
+		return new String[]{dir};
+	}
+
+	/**
+	 * This function returns the inputs of which only the ABI matters.
+	 * @return an empty array, since there are none.  See Command interface.
+	 */
+
+	public String[] getAbiInputs() {
+		return new String[0];
+	}
+
 	/**
      * This function returns a String that represents the MkDirCommand and the directory
 	 * that the object has.
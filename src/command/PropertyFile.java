@@ -0,0 +1,192 @@
+package command;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * This class reads the key=value files that the property tag points at with its file attribute.
+ * The file is memory mapped and parsed straight out of the mapping a character at a time, the
+ * same format as java.util.Properties: comments start with # or !, the key ends at the first
+ * =, : or space, a line ending in \ carries on to the next line and the usual escapes work.
+ * Like java.util.Properties, a key that is in a file twice gets the last value, while between
+ * files and layers the first one to set a property still wins, see Dictionary.add().
+ * The properties of each file are remembered with the size and modification time the file had,
+ * so a file that many targets refer to, or that the daemon sees build after build, is only
+ * parsed again when it changes.
+ */
+
+public class PropertyFile {
+
+	private static final ConcurrentHashMap<String, PropertyFile> cache = new ConcurrentHashMap<>();
+
+	private final long size;
+	private final long mtime;
+	private final Tuple[] tuples;
+
+	/**
+	 * The constructor keeps the properties of a file with the stat data they were read with.
+	 * @param size the size of the file.
+	 * @param mtime the modification time of the file in milliseconds.
+	 * @param tuples the properties in the order they are in the file.
+	 */
+
+	private PropertyFile(long size, long mtime, Tuple[] tuples) {
+		this.size = size;
+		this.mtime = mtime;
+		this.tuples = tuples;
+	}
+
+	/**
+	 * This method returns the properties in a file, reading it only if it changed since it was
+	 * last read.
+	 * @param filename the property file.
+	 * @return the properties in the order they are in the file, or null if there is no such
+	 * file.
+	 * @throws FailExecException if the file cannot be read.
+	 */
+
+	public static Tuple[] load(String filename) throws FailExecException {
+		Path path = Paths.get(filename).toAbsolutePath().normalize();
+		BasicFileAttributes attrs = null;
+		try {
+			attrs = Files.readAttributes(path, BasicFileAttributes.class);
+		} catch (IOException ioe) {
+			return null;
+		}
+		if (!attrs.isRegularFile()) return null;
+		String key = path.toString();
+		long mtime = attrs.lastModifiedTime().toMillis();
+		PropertyFile known = cache.get(key);
+		if (known != null && known.size == attrs.size() && known.mtime == mtime) return known.tuples.clone();
+		Tuple[] tuples = null;
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			tuples = parse(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		} catch (IOException ioe) {
+			throw new FailExecException("unable to read property file \'" + filename + "\'", ioe);
+		}
+		cache.put(key, new PropertyFile(attrs.size(), mtime, tuples));
+		return tuples.clone();
+	}
+
+	/**
+	 * This method parses the properties out of the bytes of a file, which are ISO 8859-1 like
+	 * java.util.Properties expects.  A key that is there more than once keeps the place of the
+	 * first one and the value of the last one.
+	 * @param buffer the contents of the file.
+	 * @return the properties in the order they are in the file, each key once.
+	 */
+
+	static Tuple[] parse(ByteBuffer buffer) {
+		LinkedHashMap<String, String> result = new LinkedHashMap<>();
+		StringBuilder key = new StringBuilder();
+		StringBuilder value = new StringBuilder();
+		int limit = buffer.limit();
+		int i = 0;
+		while (i < limit) {
+			// skip the blank space at the start of the line, and blank lines
+			char c = (char) (buffer.get(i) & 0xff);
+			if (c == ' ' || c == '\t' || c == '\f' || c == '\r' || c == '\n') {
+				i++;
+				continue;
+			}
+			if (c == '#' || c == '!') {
+				while (i < limit && buffer.get(i) != '\n' && buffer.get(i) != '\r') i++;
+				continue;
+			}
+			key.setLength(0);
+			value.setLength(0);
+			StringBuilder current = key;
+			boolean separated = false;
+			while (i < limit) {
+				c = (char) (buffer.get(i++) & 0xff);
+				if (c == '\r' || c == '\n') break;
+				if (c == '\\') {
+					if (i >= limit) break;
+					c = (char) (buffer.get(i++) & 0xff);
+					if (c == '\r' || c == '\n') {
+						// the line carries on, without the blank space at the start of the next one
+						if (c == '\r' && i < limit && buffer.get(i) == '\n') i++;
+						while (i < limit && (buffer.get(i) == ' ' || buffer.get(i) == '\t' || buffer.get(i) == '\f')) i++;
+						continue;
+					}
+					if (c == 'u' && i + 4 <= limit && isHex(buffer, i, 4)) {
+						c = (char) Integer.parseInt(ascii(buffer, i, 4), 16);
+						i += 4;
+					} else if (c == 't') {
+						c = '\t';
+					} else if (c == 'n') {
+						c = '\n';
+					} else if (c == 'r') {
+						c = '\r';
+					} else if (c == 'f') {
+						c = '\f';
+					}
+					current.append(c);
+					continue;
+				}
+				if (!separated && (c == '=' || c == ':' || c == ' ' || c == '\t' || c == '\f')) {
+					// the key is done, skip the blank space and at most one = or : after it
+					separated = true;
+					current = value;
+					boolean sawSeparator = c == '=' || c == ':';
+					while (i < limit) {
+						char next = (char) (buffer.get(i) & 0xff);
+						if (next == ' ' || next == '\t' || next == '\f') {
+							i++;
+						} else if (!sawSeparator && (next == '=' || next == ':')) {
+							sawSeparator = true;
+							i++;
+						} else {
+							break;
+						}
+					}
+					continue;
+				}
+				current.append(c);
+			}
+			result.put(key.toString(), value.toString());
+		}
+		Tuple[] tuples = new Tuple[result.size()];
+		int next = 0;
+		for (Map.Entry<String, String> entry : result.entrySet()) {
+			tuples[next++] = new Tuple(entry.getKey(), entry.getValue());
+		}
+		return tuples;
+	}
+
+	/**
+	 * This method determines if a few characters of the file are all hex digits.
+	 * @param buffer the contents of the file.
+	 * @param start where the characters start.
+	 * @param length how many characters there are.
+	 * @return true if they are all hex digits.
+	 */
+
+	private static boolean isHex(ByteBuffer buffer, int start, int length) {
+		for (int i = 0; i < length; i++) {
+			if (Character.digit((char) (buffer.get(start + i) & 0xff), 16) == -1) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * This method reads a few ASCII characters out of the file, for a unicode escape.
+	 * @param buffer the contents of the file.
+	 * @param start where the characters start.
+	 * @param length how many characters there are.
+	 * @return the characters.
+	 */
+
+	private static String ascii(ByteBuffer buffer, int start, int length) {
+		char[] chars = new char[length];
+		for (int i = 0; i < length; i++) {
+			chars[i] = (char) (buffer.get(start + i) & 0xff);
+		}
+		return new String(chars);
+	}
+}
@@ -0,0 +1,305 @@
+package command;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * This class is one layer of build properties, on top of the layers it was made from.  The
+ * layers of a build are, from the bottom up, the -D overrides from the command line, the system
+ * properties, the environment variables as env.NAME, the properties of the project and then the
+ * properties each target sees.  Like ant, the first layer to define a property wins, so a
+ * property cannot be changed once something below has set it.  A target that depends on others
+ * sees their layers through an include layer, see include(), which is shared rather than copied.
+ * <p>
+ * A layer never changes after it is made and only holds its own keys, so making a layer for a
+ * target costs as much as the properties that target adds, and any number of threads can read
+ * a layer without locking.  Values that refer to other properties are resolved the first time
+ * they are used and remembered in the layer that asked.  The system properties and environment
+ * variables are read when they are asked for, from this JVM or from the client a daemon is
+ * building for, see setExternal(), and every such lookup is noted so that the plan cache can
+ * tell when one of them changed, see getExternalLookups().
+ */
+
+public final class PropertyScope {
+
+	public static final String OVERRIDES = "overrides";
+	public static final String SYSTEM = "system";
+	public static final String ENVIRONMENT = "environment";
+
+	private static final String ENV_PREFIX = "env.";
+	private static final String MISSING = new String("\u0000missing");
+
+	private static volatile Map<String, String> externalSystem;
+	private static volatile Map<String, String> externalEnvironment;
+
+	private final PropertyScope parent;
+	private final String layer;
+	private final HashMap<String, String> values;
+	private final String[] keys;
+	private final Dictionary live;
+	private final PropertyScope[] includes;
+	private final ConcurrentHashMap<String, String> resolved = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, String> lookups;
+
+	/**
+	 * The constructor is only used by the factory methods.
+	 * @param parent the layer underneath, or null for the bottom layer.
+	 * @param layer the name of the layer.
+	 * @param dict the properties of the layer, copied unless the layer is live.
+	 * @param live true if the layer reads straight through to the dictionary.
+	 * @param includes the layers whose own properties this one has, or null.
+	 */
+
+	private PropertyScope(PropertyScope parent, String layer, Dictionary dict, boolean live, PropertyScope[] includes) {
+		this.parent = parent;
+		this.layer = layer;
+		this.live = live ? dict : null;
+		this.includes = includes;
+		lookups = layer.equals(SYSTEM) || layer.equals(ENVIRONMENT) ? new ConcurrentHashMap<String, String>() : null;
+		if (live || dict == null) {
+			values = null;
+			keys = new String[0];
+		} else {
+			keys = dict.getKeys();
+			values = new HashMap<>(keys.length * 2);
+			for (String key : keys) {
+				values.put(key, dict.getValueForKey(key));
+			}
+		}
+	}
+
+	/**
+	 * This method makes the bottom three layers of a build, the overrides with the system
+	 * properties and the environment on top of them.
+	 * @param overrides the -D properties from the command line, which may be empty.
+	 * @return the environment layer.
+	 */
+
+	public static PropertyScope base(Dictionary overrides) {
+		PropertyScope bottom = new PropertyScope(null, OVERRIDES, overrides, false, null);
+		PropertyScope system = new PropertyScope(bottom, SYSTEM, null, false, null);
+		return new PropertyScope(system, ENVIRONMENT, null, false, null);
+	}
+
+	/**
+	 * This method makes a new layer on top of this one.  The properties are copied, so the
+	 * dictionary can be reused afterwards.
+	 * @param layer the name of the new layer, used when debugging.
+	 * @param dict the properties of the new layer.
+	 * @return the new layer.
+	 */
+
+	public PropertyScope child(String layer, Dictionary dict) {
+		return new PropertyScope(this, layer, dict, false, null);
+	}
+
+	/**
+	 * This method makes a layer that reads straight through to a dictionary that is still being
+	 * filled, so that a property tag can use the ones before it.  Unlike every other layer it
+	 * changes when the dictionary does, so nothing is remembered in it and it must not be read
+	 * from more than one thread.
+	 * @param layer the name of the layer, used when debugging.
+	 * @param dict the dictionary being filled.
+	 * @return the live layer.
+	 */
+
+	public PropertyScope view(String layer, Dictionary dict) {
+		return new PropertyScope(this, layer, dict, true, null);
+	}
+
+	/**
+	 * This method makes a layer that has the own properties of other layers made on top of this
+	 * one, which is how a target sees the targets it depends on.  Nothing is copied, the layers
+	 * are shared, and the first of them to define a property wins.  Only the properties the
+	 * included layers hold themselves are used, the layers under them are this one's.
+	 * @param layer the name of the new layer, used when debugging.
+	 * @param layers the layers to include, none of them live, in the order they were made.
+	 * @return the new layer.
+	 */
+
+	public PropertyScope include(String layer, List<PropertyScope> layers) {
+		return new PropertyScope(this, layer, null, false, layers.toArray(new PropertyScope[0]));
+	}
+
+	/**
+	 * This method returns the name of this layer.
+	 * @return the name.
+	 */
+
+	public String getLayer() {
+		return layer;
+	}
+
+	/**
+	 * This method returns the value of a property as it was written, from the lowest layer
+	 * that defines it.
+	 * @param key the name of the property.
+	 * @return the value, or null if no layer defines it.
+	 */
+
+	public String getValueForKey(String key) {
+		if (key == null) return null;
+		if (parent != null) {
+			String value = parent.getValueForKey(key);
+			if (value != null) return value;
+		}
+		return ownValue(key);
+	}
+
+	/**
+	 * This method returns every property defined by this layer and the ones under it, except
+	 * for the system properties and environment variables, in the order they were defined.
+	 * @return the names of the properties.
+	 */
+
+	public String[] getKeys() {
+		LinkedHashSet<String> result = new LinkedHashSet<>();
+		addKeys(result);
+		return result.toArray(new String[0]);
+	}
+
+	/**
+	 * This method returns every system property and environment variable that was looked up
+	 * through this layer or the ones under it, with what the lookup found.
+	 * @return the lookups, each one the layer, the name and the value, which is null if there
+	 * was nothing there.
+	 */
+
+	public ArrayList<String[]> getExternalLookups() {
+		ArrayList<String[]> result = new ArrayList<>();
+		for (PropertyScope scope = this; scope != null; scope = scope.parent) {
+			if (scope.lookups == null) continue;
+			for (Map.Entry<String, String> entry : scope.lookups.entrySet()) {
+				String value = entry.getValue() == MISSING ? null : entry.getValue();
+				result.add(new String[]{scope.layer, entry.getKey(), value});
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * This method determines if a system property or environment variable still has the value
+	 * an earlier lookup found.
+	 * @param layer SYSTEM or ENVIRONMENT.
+	 * @param key the name that was looked up.
+	 * @param value what the lookup found, or null.
+	 * @return true if a lookup now finds the same thing.
+	 */
+
+	public static boolean isCurrent(String layer, String key, String value) {
+		String now = external(layer, key);
+		return now == null ? value == null : now.equals(value);
+	}
+
+	/**
+	 * This method makes the system properties and environment variables come from somewhere
+	 * other than this JVM.  The daemon uses it to build with the ones of the client that asked
+	 * for the build, and since it only runs one build at a time it simply sets them around it.
+	 * @param system the system properties, or null for the ones of this JVM.
+	 * @param environment the environment variables, or null for the ones of this JVM.
+	 */
+
+	public static void setExternal(Map<String, String> system, Map<String, String> environment) {
+		externalSystem = system;
+		externalEnvironment = environment;
+	}
+
+	/**
+	 * This method returns the value of a property with every property it refers to resolved,
+	 * as this layer sees them.  The result is remembered, except in a live layer.  A property
+	 * that ends up referring to itself is left with that reference in it.
+	 * @param key the name of the property.
+	 * @param resolving the names being resolved further up, or null at the top.
+	 * @return the resolved value, or null if no layer defines it.
+	 */
+
+	String resolve(String key, Set<String> resolving) {
+		String value = resolved.get(key);
+		if (value != null) return value;
+		value = getValueForKey(key);
+		if (value == null) return null;
+		if (value.indexOf("${") != -1) {
+			if (resolving != null && resolving.contains(key)) return null;
+			Set<String> path = resolving == null ? new HashSet<String>() : resolving;
+			path.add(key);
+			value = Template.compile(value).render(this, path);
+			path.remove(key);
+		}
+		if (!isLive()) resolved.put(key, value);
+		return value;
+	}
+
+	/**
+	 * This method determines if this layer, or one under it, reads through to a dictionary that
+	 * is still being filled.
+	 * @return true if values seen through this layer can still change.
+	 */
+
+	private boolean isLive() {
+		for (PropertyScope scope = this; scope != null; scope = scope.parent) {
+			if (scope.live != null) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * This method returns the value this layer itself gives a property.
+	 * @param key the name of the property.
+	 * @return the value, or null if this layer does not define it.
+	 */
+
+	private String ownValue(String key) {
+		if (live != null) return live.getValueForKey(key);
+		if (values != null) return values.get(key);
+		if (includes != null) {
+			for (PropertyScope scope : includes) {
+				String value = scope.ownValue(key);
+				if (value != null) return value;
+			}
+			return null;
+		}
+		if (lookups == null) return null;
+		if (layer.equals(ENVIRONMENT) && !key.startsWith(ENV_PREFIX)) return null;
+		String value = external(layer, key);
+		lookups.putIfAbsent(key, value == null ? MISSING : value);
+		return value;
+	}
+
+	/**
+	 * This method adds the names of the properties of this layer and the ones under it.
+	 * @param result the names found so far.
+	 */
+
+	private void addKeys(LinkedHashSet<String> result) {
+		if (parent != null) parent.addKeys(result);
+		if (live != null) {
+			result.addAll(Arrays.asList(live.getKeys()));
+		} else if (includes != null) {
+			for (PropertyScope scope : includes) {
+				result.addAll(Arrays.asList(scope.keys));
+			}
+		} else {
+			result.addAll(Arrays.asList(keys));
+		}
+	}
+
+	/**
+	 * This method reads a system property or environment variable.
+	 * @param layer SYSTEM or ENVIRONMENT.
+	 * @param key the name of the property, with env. in front for the environment.
+	 * @return the value, or null if there is none.
+	 */
+
+	private static String external(String layer, String key) {
+		if (layer.equals(SYSTEM)) {
+			Map<String, String> system = externalSystem;
+			return system == null ? System.getProperty(key) : system.get(key);
+		}
+		if (layer.equals(ENVIRONMENT) && key.startsWith(ENV_PREFIX)) {
+			Map<String, String> environment = externalEnvironment;
+			String name = key.substring(ENV_PREFIX.length());
+			return environment == null ? System.getenv(name) : environment.get(name);
+		}
+		return null;
+	}
+}
@@ -0,0 +1,180 @@
+package command;
+
+import java.util.*;
+
+/**
+ * This class is an attribute value from the build file, like "${build.dir}/classes", broken up
+ * once into its literal text and its ${...} placeholders.  Rendering it against the build
+ * properties is then a single pass with a hash lookup per placeholder, instead of a search and
+ * replace for every property there is.  The name inside a placeholder can have placeholders of
+ * its own, like ${lib.${platform}}, and a property whose value refers to other properties is
+ * resolved all the way down, once per scope, see PropertyScope.  A placeholder with no property is left as
+ * it is, the way the build file wrote it.  The templates are kept for the texts that were used
+ * most recently, up to a fixed number, so a daemon that serves build after build does not keep
+ * every text it ever saw.
+ */
+
+public class Template {
+
+	private static final int CACHE_SIZE = 4096;
+	private static final Map<String, Template> cache = Collections.synchronizedMap(new LinkedHashMap<String, Template>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		protected boolean removeEldestEntry(Map.Entry<String, Template> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	});
+
+	private final String text;
+	private final String[] literals;
+	private final Template[] keys;
+
+	/**
+	 * The constructor is only used by compile, the pieces alternate between literal text and
+	 * placeholders, starting and ending with literal text.
+	 * @param text the text the template was made from.
+	 * @param literals the literal text before, between and after the placeholders.
+	 * @param keys the names of the placeholders.
+	 */
+
+	private Template(String text, String[] literals, Template[] keys) {
+		this.text = text;
+		this.literals = literals;
+		this.keys = keys;
+	}
+
+	/**
+	 * This method returns the template for some text.  A text that was used recently is not
+	 * broken up again, the same template is handed back.
+	 * @param text the text from the build file.
+	 * @return the template.
+	 */
+
+	public static Template compile(String text) {
+		Template result = cache.get(text);
+		if (result == null) {
+			// two threads may both parse the same text, which gives the same template
+			result = parse(text);
+			cache.put(text, result);
+		}
+		return result;
+	}
+
+	/**
+	 * This method substitutes the build properties into some text, which is what every command
+	 * does with its attributes.
+	 * @param text the text from the build file, which may be null.
+	 * @param scope the build properties.
+	 * @return the text with every known property substituted, or null if the text was null.
+	 */
+
+	public static String render(String text, PropertyScope scope) {
+		if (text == null || text.indexOf("${") == -1) return text;
+		return compile(text).render(scope);
+	}
+
+	/**
+	 * This method determines if the template has any placeholders at all.
+	 * @return true if rendering it can change it.
+	 */
+
+	public boolean isLiteral() {
+		return keys.length == 0;
+	}
+
+	/**
+	 * This method renders the template against the build properties.
+	 * @param scope the build properties.
+	 * @return the text with every known property substituted.
+	 */
+
+	public String render(PropertyScope scope) {
+		return render(scope, null);
+	}
+
+	/**
+	 * This method renders the template, keeping track of the properties that are being resolved
+	 * so that a property that refers to itself is left alone instead of going round forever.
+	 * @param scope the build properties.
+	 * @param resolving the properties being resolved further up, or null at the top.
+	 * @return the text with every known property substituted.
+	 */
+
+	String render(PropertyScope scope, Set<String> resolving) {
+		if (keys.length == 0) return text;
+		StringBuilder buffer = new StringBuilder(text.length() + 16 * keys.length);
+		for (int i = 0; i < keys.length; i++) {
+			buffer.append(literals[i]);
+			String key = keys[i].render(scope, resolving);
+			String value = scope.resolve(key, resolving);
+			if (value == null) {
+				buffer.append("${").append(key).append('}');
+			} else {
+				buffer.append(value);
+			}
+		}
+		buffer.append(literals[keys.length]);
+		return buffer.toString();
+	}
+
+	/**
+	 * This method returns the text the template was made from.
+	 * @return the text.
+	 */
+
+	public String toString() {
+		return text;
+	}
+
+	/**
+	 * This method breaks text up into literal text and placeholders.  A ${ without a closing }
+	 * is just literal text.
+	 * @param text the text to break up.
+	 * @return the template.
+	 */
+
+	private static Template parse(String text) {
+		ArrayList<String> literals = new ArrayList<>();
+		ArrayList<Template> keys = new ArrayList<>();
+		StringBuilder literal = new StringBuilder();
+		int index = 0;
+		while (index < text.length()) {
+			int start = text.indexOf("${", index);
+			int end = start == -1 ? -1 : closing(text, start + 2);
+			if (end == -1) {
+				literal.append(text, index, text.length());
+				break;
+			}
+			literal.append(text, index, start);
+			literals.add(literal.toString());
+			literal.setLength(0);
+			keys.add(compile(text.substring(start + 2, end)));
+			index = end + 1;
+		}
+		literals.add(literal.toString());
+		return new Template(text, literals.toArray(new String[0]), keys.toArray(new Template[0]));
+	}
+
+	/**
+	 * This method finds the } that closes a placeholder, skipping over any placeholders nested
+	 * inside it.
+	 * @param text the text.
+	 * @param from the first character of the name of the placeholder.
+	 * @return the position of the closing }, or -1 if there is none.
+	 */
+
+	private static int closing(String text, int from) {
+		int depth = 0;
+		for (int i = from; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c == '$' && i + 1 < text.length() && text.charAt(i + 1) == '{') {
+				depth++;
+				i++;
+			} else if (c == '}') {
+				if (depth == 0) return i;
+				depth--;
+			}
+		}
+		return -1;
+	}
+}
@@ -10,11 +10,10 @@ public class Tuple {
 
     public String key;
     public String value;
-    public Tuple next;
 
     /**
      * This is the most basic and only constructor for the class.  You add a key and a value
-     * and it gives you a Tuple object.  Its essentially a linked list tuple.
+     * and it gives you a Tuple object.
      * @param key is the String for a key.
      * @param value is the String for a value as part of the key / value pair.
      */
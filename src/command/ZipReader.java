@@ -0,0 +1,132 @@
+package command;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * This class reads the entries of a zip, or a jar, the way they are stored, without
+ * decompressing anything.  The zip is memory mapped and only its central directory is read,
+ * and the data of each entry is a slice of the mapping that can go straight into a ZipWriter,
+ * see ZipWriter.addRaw().  The mapping stays good after the zip is closed, for as long as the
+ * entries are around.  Zip64 archives are read, but not ones that are encrypted or bigger than
+ * 2 GB, or that have entries compressed some other way than stored or deflated, which a jar
+ * cannot have.  Like java.util.zip, a name is UTF-8 when the entry says so and CP437 when it
+ * does not.
+ */
+
+public class ZipReader {
+
+	private static final int UTF8_FLAG = 0x800;
+	private static final Charset CP437 = Charset.forName("IBM437");
+
+	/**
+	 * The constructor is not used, everything here is static.
+	 */
+
+	private ZipReader() { }
+
+	/**
+	 * This method reads the entries of a zip, in the order of its central directory.
+	 * @param file the zip.
+	 * @return the entries, with their data still compressed.
+	 * @throws IOException if the zip cannot be read or is not a zip.
+	 */
+
+	public static List<ZipWriter.Entry> read(File file) throws IOException {
+		ByteBuffer map;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE) throw new IOException(file + " is too big to map");
+			map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+		}
+		int end = findEnd(map);
+		if (end == -1) throw new IOException(file + " is not a zip");
+		long count = map.getShort(end + 10) & 0xFFFF;
+		long position = map.getInt(end + 16) & ZipWriter.LIMIT;
+		if (end >= 20 && map.getInt(end - 20) == ZipWriter.ZIP64_LOCATOR) {
+			int zip64 = index(map, map.getLong(end - 12), 56, file);
+			if (map.getInt(zip64) == ZipWriter.ZIP64_END) {
+				count = map.getLong(zip64 + 32);
+				position = map.getLong(zip64 + 48);
+			}
+		}
+		ArrayList<ZipWriter.Entry> result = new ArrayList<>();
+		for (long i = 0; i < count; i++) {
+			int central = index(map, position, 46, file);
+			if (map.getInt(central) != ZipWriter.CENTRAL_HEADER) throw new IOException(file + " has a broken central directory");
+			int flags = map.getShort(central + 8) & 0xFFFF;
+			int method = map.getShort(central + 10) & 0xFFFF;
+			int dosTime = map.getInt(central + 12);
+			long crc = map.getInt(central + 16) & ZipWriter.LIMIT;
+			long compressedSize = map.getInt(central + 20) & ZipWriter.LIMIT;
+			long size = map.getInt(central + 24) & ZipWriter.LIMIT;
+			int nameLength = map.getShort(central + 28) & 0xFFFF;
+			int extraLength = map.getShort(central + 30) & 0xFFFF;
+			int commentLength = map.getShort(central + 32) & 0xFFFF;
+			long offset = map.getInt(central + 42) & ZipWriter.LIMIT;
+			byte[] name = new byte[nameLength];
+			map.get(index(map, central + 46, nameLength, file), name);
+			String entryName = new String(name, (flags & UTF8_FLAG) != 0 ? StandardCharsets.UTF_8 : CP437);
+			if ((flags & 1) != 0) throw new IOException(entryName + " in " + file + " is encrypted");
+			if (method != ZipWriter.STORED && method != ZipWriter.DEFLATED) {
+				throw new IOException(entryName + " in " + file + " is compressed with method " + method + ", which a jar cannot have");
+			}
+			// the sizes and offset that do not fit are in the zip64 extra field, in this order
+			int extra = central + 46 + nameLength;
+			int extraEnd = index(map, extra, extraLength, file) + extraLength;
+			while (extra + 4 <= extraEnd) {
+				int id = map.getShort(extra) & 0xFFFF;
+				int length = map.getShort(extra + 2) & 0xFFFF;
+				if (id == 1) {
+					int field = extra + 4;
+					if (size == ZipWriter.LIMIT) { size = map.getLong(field); field += 8; }
+					if (compressedSize == ZipWriter.LIMIT) { compressedSize = map.getLong(field); field += 8; }
+					if (offset == ZipWriter.LIMIT) offset = map.getLong(field);
+				}
+				extra += 4 + length;
+			}
+			int local = index(map, offset, 30, file);
+			if (map.getInt(local) != ZipWriter.LOCAL_HEADER) throw new IOException(entryName + " in " + file + " has no local header");
+			int start = local + 30 + (map.getShort(local + 26) & 0xFFFF) + (map.getShort(local + 28) & 0xFFFF);
+			ByteBuffer data = map.slice(index(map, start, compressedSize, file), (int) compressedSize);
+			ZipWriter.Entry entry = new ZipWriter.Entry(entryName, method, crc, compressedSize, size, dosTime, data);
+			entry.offset = offset;
+			result.add(entry);
+			position = central + 46 + nameLength + extraLength + commentLength;
+		}
+		return result;
+	}
+
+	/**
+	 * This method finds the end of central directory record, which is at the end of the zip
+	 * before the comment.
+	 * @param map the zip.
+	 * @return where the record is, or -1 if there is none.
+	 */
+
+	private static int findEnd(ByteBuffer map) {
+		int last = map.limit() - 22;
+		for (int i = last; i >= 0 && i >= last - 0xFFFF; i--) {
+			if (map.getInt(i) == ZipWriter.END) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * This method checks that a part of the zip is inside of it.
+	 * @param map the zip.
+	 * @param position where the part starts.
+	 * @param length how long it is.
+	 * @param file the zip, for the message.
+	 * @return the position.
+	 * @throws IOException if the part goes past the end.
+	 */
+
+	private static int index(ByteBuffer map, long position, long length, File file) throws IOException {
+		if (position < 0 || length < 0 || position + length > map.limit()) throw new IOException(file + " is cut short");
+		return (int) position;
+	}
+}
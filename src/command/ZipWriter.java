@@ -0,0 +1,577 @@
+package command;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+/**
+ * This class writes a zip file, which is what a jar is, without java.util.zip.ZipOutputStream.
+ * Every entry is compressed on its own, on a pool of threads shared by every zip of the build,
+ * into a blob that already has its CRC and sizes.  The thread that adds the entries writes the
+ * blobs out in the order the entries were added, with their local headers, as soon as the blob
+ * at the front is ready, and the central directory at the end, so the zip is the same whatever
+ * order the blobs were finished in.  Only so many blobs are kept waiting, so a big archive does
+ * not end up in memory.  Level 0 stores the entries without compressing them at all, and an
+ * entry that does not get smaller is stored as well.  Entries that are already compressed, like
+ * the ones of another zip, can be added as they are, see addRaw().  An entry can be replaced or
+ * removed after it was written, see replace(), which leaves its old bytes behind until the zip
+ * is closed and the entries after them are moved down over them.
+ * <p>
+ * The zip is written to a temporary file next to the real one and moved into place when it is
+ * closed, so a build that fails part way through leaves the last good one alone.  Zip64 records
+ * are written when there are more than 65535 entries or the zip gets past 4 GB.
+ */
+
+public class ZipWriter implements Closeable {
+
+	public static final int STORED = 0;
+	public static final int DEFLATED = 8;
+
+	static final int LOCAL_HEADER = 0x04034b50;
+	static final int CENTRAL_HEADER = 0x02014b50;
+	static final int END = 0x06054b50;
+	static final int ZIP64_END = 0x06064b50;
+	static final int ZIP64_LOCATOR = 0x07064b50;
+	static final long LIMIT = 0xFFFFFFFFL;
+	private static final int UTF8 = 0x0800;
+	private static final int MAP_THRESHOLD = 64 * 1024;
+	private static final int HEADER_SIZE = 64 * 1024;
+	private static final int COPY_SIZE = 1024 * 1024;
+
+	private static ExecutorService pool;
+	private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<>();
+
+	private final File destfile;
+	private final File temp;
+	private final FileChannel out;
+	private final int level;
+	private final int dosTime;
+	private final int maxPending;
+	private final ArrayDeque<Future<Entry>> pending = new ArrayDeque<>();
+	private final ArrayList<Entry> written = new ArrayList<>();
+	private final HashSet<String> names = new HashSet<>();
+	private final ByteBuffer header = ByteBuffer.allocateDirect(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+	private long position;
+	private boolean closed;
+	private boolean holes;
+
+	/**
+	 * This class is an entry of the zip, as it is in the central directory.
+	 */
+
+	public static class Entry {
+
+		public final String name;
+		public final int method;
+		public final long crc;
+		public final long compressedSize;
+		public final long size;
+		public final int dosTime;
+		public long offset;
+		private ByteBuffer data;
+
+		/**
+		 * The constructor sets all of the values of the entry.
+		 * @param name the name of the entry, with / between the directories.
+		 * @param method STORED or DEFLATED.
+		 * @param crc the CRC-32 of the contents.
+		 * @param compressedSize the size of the data.
+		 * @param size the size of the contents.
+		 * @param dosTime the time of the entry, the way zip files keep it.
+		 * @param data the data, compressed or not as the method says.
+		 */
+
+		public Entry(String name, int method, long crc, long compressedSize, long size, int dosTime, ByteBuffer data) {
+			this.name = name;
+			this.method = method;
+			this.crc = crc;
+			this.compressedSize = compressedSize;
+			this.size = size;
+			this.dosTime = dosTime;
+			this.data = data;
+		}
+
+		/**
+		 * @return the data of the entry, or null once it has been written.
+		 */
+
+		public ByteBuffer getData() {
+			return data == null ? null : data.duplicate();
+		}
+	}
+
+	/**
+	 * The constructor starts the zip.
+	 * @param destfile the zip to write.
+	 * @param level the compression level, 0 to store everything up to 9, or -1 for the default.
+	 * @param time the time of every entry in milliseconds, or -1 for now.
+	 * @throws IOException if the zip cannot be written.
+	 */
+
+	public ZipWriter(File destfile, int level, long time) throws IOException {
+		this.destfile = destfile.getAbsoluteFile();
+		this.destfile.getParentFile().mkdirs();
+		this.level = level;
+		dosTime = dosTime(time == -1 ? LocalDateTime.now() : LocalDateTime.ofEpochSecond(Math.floorDiv(time, 1000L), 0, ZoneOffset.UTC));
+		temp = new File(this.destfile.getParentFile(), "." + this.destfile.getName() + ".tmp");
+		out = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		maxPending = 64 * Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * This method adds an entry, which is compressed on the pool.  An entry with a name that is
+	 * already in the zip is left out.
+	 * @param name the name of the entry, with / between the directories.
+	 * @param bytes the contents.
+	 * @throws IOException if an entry that was ready could not be written.
+	 */
+
+	public synchronized void add(final String name, final byte[] bytes) throws IOException {
+		if (!names.add(name)) return;
+		submit(new Callable<Entry>() {
+			public Entry call() {
+				return compress(name, ByteBuffer.wrap(bytes));
+			}
+		});
+	}
+
+	/**
+	 * This method adds a file from the disk as an entry, which is read and compressed on the
+	 * pool.  A big file is memory mapped rather than read.
+	 * @param name the name of the entry, with / between the directories.
+	 * @param file the file.
+	 * @throws IOException if an entry that was ready could not be written.
+	 */
+
+	public synchronized void add(final String name, final File file) throws IOException {
+		if (!names.add(name)) return;
+		submit(new Callable<Entry>() {
+			public Entry call() throws IOException {
+				try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+					long size = channel.size();
+					if (size >= MAP_THRESHOLD) return compress(name, channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+					ByteBuffer buffer = ByteBuffer.allocate((int) size);
+					while (buffer.hasRemaining() && channel.read(buffer) != -1) { }
+					buffer.flip();
+					return compress(name, buffer);
+				}
+			}
+		});
+	}
+
+	/**
+	 * This method adds a directory entry.
+	 * @param name the name of the directory, ending with /.
+	 * @throws IOException if an entry that was ready could not be written.
+	 */
+
+	public synchronized void addDirectory(String name) throws IOException {
+		if (!names.add(name)) return;
+		addDone(new Entry(name, STORED, 0, 0, 0, dosTime, ByteBuffer.allocate(0)));
+	}
+
+	/**
+	 * This method adds an entry whose data is already what goes in the zip, like an entry of
+	 * another zip, so nothing is compressed or even looked at.
+	 * @param name the name of the entry, with / between the directories.
+	 * @param method STORED or DEFLATED.
+	 * @param crc the CRC-32 of the contents.
+	 * @param size the size of the contents.
+	 * @param entryTime the time of the entry the way zip files keep it, or -1 for the time of
+	 * this zip.
+	 * @param data the data, which must not change until the zip is closed.
+	 * @throws IOException if an entry that was ready could not be written.
+	 */
+
+	public synchronized void addRaw(String name, int method, long crc, long size, int entryTime, ByteBuffer data) throws IOException {
+		if (!names.add(name)) return;
+		addDone(new Entry(name, method, crc, data.remaining(), size, entryTime == -1 ? dosTime : entryTime, data));
+	}
+
+	/**
+	 * This method adds an entry in place of the one with the same name, or as a new entry if
+	 * there is none.  It is for a file that changed after it was added, like a class compiled
+	 * again, and the new entry goes at the end.
+	 * @param name the name of the entry, with / between the directories.
+	 * @param bytes the contents.
+	 * @throws IOException if an entry could not be written.
+	 */
+
+	public synchronized void replace(String name, byte[] bytes) throws IOException {
+		remove(name);
+		add(name, bytes);
+	}
+
+	/**
+	 * This method takes an entry out of the zip.  The entries that are still being compressed
+	 * are written first, so the entry is left out of the central directory and its bytes are
+	 * squeezed out when the zip is closed.
+	 * @param name the name of the entry.
+	 * @throws IOException if an entry could not be written.
+	 */
+
+	public synchronized void remove(String name) throws IOException {
+		if (!names.remove(name)) return;
+		flush(true);
+		for (Iterator<Entry> entries = written.iterator(); entries.hasNext(); ) {
+			if (entries.next().name.equals(name)) {
+				entries.remove();
+				holes = true;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * This method determines if an entry is in the zip.
+	 * @param name the name of the entry.
+	 * @return true if it has been added.
+	 */
+
+	public synchronized boolean contains(String name) {
+		return names.contains(name);
+	}
+
+	/**
+	 * This method returns the entries written so far, with where they are in the zip.  After
+	 * close it is every entry.
+	 * @return the entries, in the order they are in the zip.
+	 */
+
+	public synchronized List<Entry> getEntries() {
+		return Collections.unmodifiableList(written);
+	}
+
+	/**
+	 * This method writes every entry that is left and the central directory, and moves the zip
+	 * into place.
+	 * @throws IOException if the zip cannot be written.
+	 */
+
+	public synchronized void close() throws IOException {
+		if (closed) return;
+		flush(true);
+		if (holes) compact();
+		long start = position;
+		for (Entry entry : written) {
+			writeCentral(entry);
+		}
+		writeEnd(start, position - start);
+		closed = true;
+		out.close();
+		Files.move(temp.toPath(), destfile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * This method gives up on the zip, the one that was there before is left alone.
+	 */
+
+	public synchronized void abort() {
+		if (closed) return;
+		closed = true;
+		for (Future<Entry> entry : pending) {
+			entry.cancel(true);
+		}
+		pending.clear();
+		try {
+			out.close();
+		} catch (IOException ioe) {
+			// the file is deleted anyway
+		}
+		temp.delete();
+	}
+
+	/**
+	 * This method returns the time of this zip the way zip files keep it.
+	 * @return the time.
+	 */
+
+	public int getDosTime() {
+		return dosTime;
+	}
+
+	/**
+	 * This method hands an entry to the pool and writes out the entries that are ready.
+	 * @param task what makes the entry.
+	 * @throws IOException if an entry could not be written.
+	 */
+
+	private void submit(Callable<Entry> task) throws IOException {
+		pending.add(getPool().submit(task));
+		flush(false);
+	}
+
+	/**
+	 * This method queues an entry that needs no work.
+	 * @param entry the entry.
+	 * @throws IOException if an entry could not be written.
+	 */
+
+	private void addDone(Entry entry) throws IOException {
+		CompletableFuture<Entry> done = new CompletableFuture<>();
+		done.complete(entry);
+		pending.add(done);
+		flush(false);
+	}
+
+	/**
+	 * This method writes out the entries at the front of the queue that are ready, in order.
+	 * It waits for the front one when too many are waiting, or when all of them must be
+	 * written.
+	 * @param all true to write every entry.
+	 * @throws IOException if an entry could not be made or written.
+	 */
+
+	private void flush(boolean all) throws IOException {
+		while (!pending.isEmpty() && (all || pending.size() > maxPending || pending.peek().isDone())) {
+			Entry entry = null;
+			try {
+				entry = pending.poll().get();
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new IOException("interrupted writing " + destfile, ie);
+			} catch (ExecutionException ee) {
+				throw new IOException("unable to compress an entry of " + destfile, ee.getCause());
+			}
+			writeLocal(entry);
+		}
+	}
+
+	/**
+	 * This method moves the entries down over the ones that were removed, so the zip has no
+	 * bytes in it that the central directory does not point at.  The entries are in the order
+	 * they were written, so each one only ever moves towards the start and is read before
+	 * anything is written over it.
+	 * @throws IOException if the zip cannot be read or written.
+	 */
+
+	private void compact() throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(COPY_SIZE);
+		long next = 0;
+		for (Entry entry : written) {
+			long length = 30 + entry.name.getBytes(StandardCharsets.UTF_8).length + entry.compressedSize;
+			for (long done = 0; entry.offset != next && done < length; ) {
+				buffer.clear();
+				buffer.limit((int) Math.min(buffer.capacity(), length - done));
+				while (buffer.hasRemaining()) {
+					if (out.read(buffer, entry.offset + done + buffer.position()) == -1) throw new EOFException(temp + " is cut short");
+				}
+				buffer.flip();
+				while (buffer.hasRemaining()) {
+					out.write(buffer, next + done + buffer.position());
+				}
+				done += buffer.limit();
+			}
+			entry.offset = next;
+			next += length;
+		}
+		out.truncate(next);
+		out.position(next);
+		position = next;
+		holes = false;
+	}
+
+	/**
+	 * This method compresses the contents of an entry, or stores them when the level is 0 or
+	 * compressing does not make them smaller.
+	 * @param name the name of the entry.
+	 * @param input the contents.
+	 * @return the entry.
+	 */
+
+	private Entry compress(String name, ByteBuffer input) {
+		long size = input.remaining();
+		CRC32 crc = new CRC32();
+		crc.update(input.duplicate());
+		if (level == 0 || size == 0) return new Entry(name, STORED, crc.getValue(), size, size, dosTime, input);
+		Deflater deflater = deflaters.get();
+		if (deflater == null) {
+			deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+			deflaters.set(deflater);
+		}
+		deflater.reset();
+		deflater.setLevel(level);
+		deflater.setInput(input.duplicate());
+		deflater.finish();
+		byte[] buffer = new byte[(int) Math.min(Math.max(size / 2, 64), Integer.MAX_VALUE - 8)];
+		int length = 0;
+		while (!deflater.finished()) {
+			if (length == buffer.length) buffer = Arrays.copyOf(buffer, (int) Math.min(buffer.length * 2L, Integer.MAX_VALUE - 8));
+			length += deflater.deflate(buffer, length, buffer.length - length);
+		}
+		if (length >= size) return new Entry(name, STORED, crc.getValue(), size, size, dosTime, input);
+		return new Entry(name, DEFLATED, crc.getValue(), length, size, dosTime, ByteBuffer.wrap(buffer, 0, length));
+	}
+
+	/**
+	 * This method writes the local header and the data of an entry.
+	 * @param entry the entry.
+	 * @throws IOException if the zip cannot be written.
+	 */
+
+	private void writeLocal(Entry entry) throws IOException {
+		if (entry.compressedSize >= LIMIT || entry.size >= LIMIT) throw new IOException(entry.name + " is too big for a zip");
+		byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+		header.clear();
+		header.putInt(LOCAL_HEADER);
+		header.putShort((short) (entry.method == DEFLATED ? 20 : 10));
+		header.putShort((short) flags(entry.name, name));
+		header.putShort((short) entry.method);
+		header.putInt(entry.dosTime);
+		header.putInt((int) entry.crc);
+		header.putInt((int) entry.compressedSize);
+		header.putInt((int) entry.size);
+		header.putShort((short) name.length);
+		header.putShort((short) 0);
+		header.put(name);
+		header.flip();
+		entry.offset = position;
+		position += write(header);
+		ByteBuffer data = entry.data.duplicate();
+		position += write(data);
+		entry.data = null;
+		written.add(entry);
+	}
+
+	/**
+	 * This method writes the central directory header of an entry.
+	 * @param entry the entry.
+	 * @throws IOException if the zip cannot be written.
+	 */
+
+	private void writeCentral(Entry entry) throws IOException {
+		byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+		boolean zip64 = entry.offset >= LIMIT;
+		header.clear();
+		header.putInt(CENTRAL_HEADER);
+		header.putShort((short) (zip64 ? 45 : 20));
+		header.putShort((short) (zip64 ? 45 : entry.method == DEFLATED ? 20 : 10));
+		header.putShort((short) flags(entry.name, name));
+		header.putShort((short) entry.method);
+		header.putInt(entry.dosTime);
+		header.putInt((int) entry.crc);
+		header.putInt((int) entry.compressedSize);
+		header.putInt((int) entry.size);
+		header.putShort((short) name.length);
+		header.putShort((short) (zip64 ? 12 : 0));
+		header.putShort((short) 0);
+		header.putShort((short) 0);
+		header.putShort((short) 0);
+		header.putInt(entry.name.endsWith("/") ? 0x10 : 0);
+		header.putInt(zip64 ? (int) LIMIT : (int) entry.offset);
+		header.put(name);
+		if (zip64) {
+			header.putShort((short) 1);
+			header.putShort((short) 8);
+			header.putLong(entry.offset);
+		}
+		header.flip();
+		position += write(header);
+	}
+
+	/**
+	 * This method writes the end of the central directory, with the zip64 records first when
+	 * they are needed.
+	 * @param start where the central directory starts.
+	 * @param size the size of the central directory.
+	 * @throws IOException if the zip cannot be written.
+	 */
+
+	private void writeEnd(long start, long size) throws IOException {
+		int count = written.size();
+		boolean zip64 = count > 0xFFFF || start >= LIMIT || size >= LIMIT;
+		header.clear();
+		if (zip64) {
+			long end = position;
+			header.putInt(ZIP64_END);
+			header.putLong(44);
+			header.putShort((short) 45);
+			header.putShort((short) 45);
+			header.putInt(0);
+			header.putInt(0);
+			header.putLong(count);
+			header.putLong(count);
+			header.putLong(size);
+			header.putLong(start);
+			header.putInt(ZIP64_LOCATOR);
+			header.putInt(0);
+			header.putLong(end);
+			header.putInt(1);
+		}
+		header.putInt(END);
+		header.putShort((short) 0);
+		header.putShort((short) 0);
+		header.putShort((short) Math.min(count, 0xFFFF));
+		header.putShort((short) Math.min(count, 0xFFFF));
+		header.putInt((int) Math.min(size, LIMIT));
+		header.putInt((int) Math.min(start, LIMIT));
+		header.putShort((short) 0);
+		header.flip();
+		position += write(header);
+	}
+
+	/**
+	 * This method writes all of a buffer to the zip.
+	 * @param buffer the buffer.
+	 * @return how many bytes were written.
+	 * @throws IOException if the zip cannot be written.
+	 */
+
+	private int write(ByteBuffer buffer) throws IOException {
+		int length = buffer.remaining();
+		while (buffer.hasRemaining()) {
+			out.write(buffer);
+		}
+		return length;
+	}
+
+	/**
+	 * This method returns the general purpose flags of an entry, which only say if the name is
+	 * in UTF-8.
+	 * @param name the name.
+	 * @param bytes the name in UTF-8.
+	 * @return the flags.
+	 */
+
+	private static int flags(String name, byte[] bytes) {
+		return bytes.length == name.length() ? 0 : UTF8;
+	}
+
+	/**
+	 * This method turns a time into the way zip files keep it.  Zip files cannot go back past
+	 * 1980.
+	 * @param time the time.
+	 * @return the time.
+	 */
+
+	private static int dosTime(LocalDateTime time) {
+		if (time.getYear() < 1980) return (1 << 21) | (1 << 16);
+		return (time.getYear() - 1980) << 25 | time.getMonthValue() << 21 | time.getDayOfMonth() << 16
+			| time.getHour() << 11 | time.getMinute() << 5 | time.getSecond() >> 1;
+	}
+
+	/**
+	 * This method returns the pool the entries are compressed on, which is shared by every zip
+	 * and has a thread for each core.
+	 * @return the pool.
+	 */
+
+	private static synchronized ExecutorService getPool() {
+		if (pool == null) {
+			pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "zip");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return pool;
+	}
+}